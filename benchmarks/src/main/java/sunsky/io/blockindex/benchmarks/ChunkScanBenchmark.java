@@ -0,0 +1,93 @@
+package sunsky.io.blockindex.benchmarks;
+
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import sunsky.io.blockindex.ChunkScanResult;
+import sunsky.io.blockindex.ChunkScanner;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 区块扫描内层循环 (区块加载时 syncChunk 的第一步)
+ * 每次调用扫描一个 1.20 高度 (-64 ~ 320) 的合成区块，被追踪方块的密度由参数控制
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkScanBenchmark {
+
+    private static final int MIN_Y = -64;
+    private static final int MAX_Y = 320;
+    private static final int CHUNKS = 64;
+
+    /**
+     * 地表以下被追踪方块的比例：0 为荒野，0.0001 约为自然生成的村庄与矿井，0.01 以上为玩家密集建造的区域
+     */
+    @Param({"0", "0.0001", "0.01", "0.1"})
+    public double density;
+
+    /**
+     * 地表高度，其上的区块段为空，扫描时直接跳过
+     */
+    @Param({"64", "320"})
+    public int surfaceY;
+
+    private SyntheticChunkSnapshot[] snapshots;
+    private ChunkScanner scanner;
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42L);
+        snapshots = new SyntheticChunkSnapshot[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            snapshots[i] = new SyntheticChunkSnapshot(i, 0, MIN_Y, MAX_Y, surfaceY, density, Fixtures.TRACKED, random);
+        }
+        scanner = new ChunkScanner(Fixtures.TRACKED);
+    }
+
+    @Benchmark
+    public long scan() {
+        SyntheticChunkSnapshot snapshot = snapshots[next];
+        next = (next + 1) % CHUNKS;
+        ChunkScanResult result = scanner.scan(snapshot, MIN_Y, MAX_Y);
+        return result.getFingerprint() + result.size();
+    }
+
+    /**
+     * 对照组：只遍历方块类型、不做任何判断，用于区分快照读取与扫描本身的开销
+     */
+    @Benchmark
+    public int readOnly() {
+        SyntheticChunkSnapshot snapshot = snapshots[next];
+        next = (next + 1) % CHUNKS;
+        int hash = 0;
+        for (int y = MIN_Y; y < MAX_Y; y++) {
+            if (snapshot.isSectionEmpty((y - MIN_Y) >> 4)) {
+                y += 15;
+                continue;
+            }
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    Material material = snapshot.getBlockType(x, y, z);
+                    hash += material.ordinal();
+                }
+            }
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,155 @@
+package sunsky.io.blockindex.benchmarks;
+
+import org.bukkit.Material;
+import org.bukkit.plugin.Plugin;
+import sunsky.io.blockindex.BlockKey;
+import sunsky.io.blockindex.BlockMutation;
+import sunsky.io.blockindex.BlockStorage;
+import sunsky.io.blockindex.DatabaseManager;
+import sunsky.io.blockindex.RegionFileStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * 基准共用的存储后端与测试数据
+ */
+final class Fixtures {
+
+    /**
+     * 与默认 config.yml 相同的被追踪类型
+     */
+    static final List<Material> TRACKED = Collections.unmodifiableList(Arrays.asList(
+            Material.CHEST, Material.FURNACE, Material.BEACON, Material.ENCHANTING_TABLE, Material.CRAFTING_TABLE,
+            Material.BLAST_FURNACE, Material.SMOKER, Material.LOOM, Material.ANVIL, Material.CAMPFIRE,
+            Material.SOUL_CAMPFIRE, Material.BREWING_STAND, Material.BEEHIVE, Material.BEE_NEST, Material.LECTERN,
+            Material.ENDER_CHEST, Material.BARREL, Material.END_PORTAL_FRAME, Material.FARMLAND, Material.LODESTONE,
+            Material.COMPOSTER, Material.CAULDRON, Material.BELL, Material.TRAPPED_CHEST, Material.LIGHTNING_ROD
+    ));
+
+    static final UUID WORLD = new UUID(0x426C6F636BL, 0x496E646578L);
+    static final String WORLD_UID = WORLD.toString();
+    static final int MIN_Y = -64;
+    static final int MAX_Y = 320;
+
+    private static final Logger LOGGER = Logger.getLogger("BlockIndex-Benchmark");
+    private static final int SEED_BATCH = 5000;
+
+    private Fixtures() {
+    }
+
+    /**
+     * 在临时目录中打开一个空的存储后端
+     * @param backend sqlite 为嵌入式 SQLite 数据库 (与 MySQL 使用相同的表结构与查询)，region 为内存映射区域文件
+     */
+    static BlockStorage openStorage(String backend, File directory) throws IOException, SQLException {
+        if ("region".equals(backend)) {
+            RegionFileStorage storage = new RegionFileStorage(new File(directory, "regions"), LOGGER);
+            storage.open();
+            return storage;
+        }
+        if (!"sqlite".equals(backend)) {
+            throw new IllegalArgumentException("未知的存储后端: " + backend);
+        }
+        Files.write(new File(directory, "mysql.yml").toPath(),
+                "database:\n  type: sqlite\n  file: benchmark.db\n".getBytes(StandardCharsets.UTF_8));
+        DatabaseManager manager = new DatabaseManager(pluginAt(directory));
+        if (!manager.setupDatabaseConfig()) {
+            throw new SQLException("SQLite 数据库初始化失败");
+        }
+        return manager;
+    }
+
+    /**
+     * 在 sizeInChunks x sizeInChunks 个区块的范围内写入 rows 个随机方块 (坐标可能重复，实际行数略少)
+     */
+    static void seed(BlockStorage storage, int rows, int sizeInChunks, Random random) throws SQLException {
+        List<BlockMutation> batch = new ArrayList<>(SEED_BATCH);
+        for (int i = 0; i < rows; i++) {
+            batch.add(randomUpload(random, sizeInChunks << 4));
+            if (batch.size() == SEED_BATCH) {
+                storage.applyBlockMutations(dedupe(batch), Collections.emptyMap());
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            storage.applyBlockMutations(dedupe(batch), Collections.emptyMap());
+        }
+    }
+
+    /**
+     * [0, size) x [MIN_Y, MAX_Y) x [0, size) 范围内的随机写入
+     */
+    static BlockMutation randomUpload(Random random, int size) {
+        return BlockMutation.upload(WORLD_UID, random.nextInt(size), MIN_Y + random.nextInt(MAX_Y - MIN_Y), random.nextInt(size),
+                TRACKED.get(random.nextInt(TRACKED.size())).name());
+    }
+
+    /**
+     * 一批变更中同一坐标只能出现一次，保留最后一次
+     */
+    static List<BlockMutation> dedupe(List<BlockMutation> mutations) {
+        Map<BlockKey, BlockMutation> unique = new LinkedHashMap<>();
+        for (BlockMutation mutation : mutations) {
+            unique.put(mutation.getKey(), mutation);
+        }
+        return new ArrayList<>(unique.values());
+    }
+
+    static File createTempDirectory() throws IOException {
+        return Files.createTempDirectory("blockindex-bench").toFile();
+    }
+
+    static void deleteRecursively(File directory) throws IOException {
+        if (directory == null || !directory.exists()) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * DatabaseManager 只用到插件目录与日志
+     */
+    private static Plugin pluginAt(File dataFolder) {
+        return (Plugin) Proxy.newProxyInstance(Fixtures.class.getClassLoader(), new Class<?>[]{Plugin.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getDataFolder":
+                    return dataFolder;
+                case "getLogger":
+                    return LOGGER;
+                case "getName":
+                    return "BlockIndex";
+                case "saveResource":
+                    return null;
+                case "isEnabled":
+                    return true;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "BlockIndex-Benchmark";
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}
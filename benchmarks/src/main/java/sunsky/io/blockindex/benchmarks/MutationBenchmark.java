@@ -0,0 +1,141 @@
+package sunsky.io.blockindex.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sunsky.io.blockindex.BlockKey;
+import sunsky.io.blockindex.BlockMutation;
+import sunsky.io.blockindex.BlockStorage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 逐行写入与批量写入的对比
+ * 两个方法每次调用写入同样的 mutations 条变更：singleRowWrites 逐条调用 uploadBlockData (每条一个事务)，
+ * batchedWrites 一次 applyBlockMutations (写回队列与区块同步的写法)。结果除以 mutations 即为每条变更的耗时。
+ * 存储预先写入 rows 个方块；每批一半删除已写入的坐标、一半写入新坐标，表的大小在各轮之间保持不变。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MutationBenchmark {
+
+    private static final int SEED_BATCH = 5000;
+
+    @Param({"sqlite", "region"})
+    public String backend;
+
+    @Param({"100", "1000"})
+    public int mutations;
+
+    @Param({"100000"})
+    public int rows;
+
+    /**
+     * 写入范围的边长 (区块)
+     */
+    @Param({"32"})
+    public int sizeInChunks;
+
+    private File directory;
+    private BlockStorage storage;
+    private Random random;
+    private List<BlockMutation> batch;
+    // 当前存在于存储中的坐标，删除从中随机选取
+    private List<BlockKey> live;
+    private Set<BlockKey> liveSet;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Fixtures.createTempDirectory();
+        storage = Fixtures.openStorage(backend, directory);
+        random = new Random(42L);
+        live = new ArrayList<>(rows);
+        liveSet = new HashSet<>(rows * 2);
+        List<BlockMutation> seed = new ArrayList<>(SEED_BATCH);
+        for (int i = 0; i < rows; i++) {
+            BlockMutation upload = Fixtures.randomUpload(random, sizeInChunks << 4);
+            if (addLive(upload.getKey())) {
+                seed.add(upload);
+            }
+            if (seed.size() == SEED_BATCH || i == rows - 1) {
+                storage.applyBlockMutations(seed, Collections.emptyMap());
+                seed.clear();
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void nextBatch() {
+        List<BlockMutation> generated = new ArrayList<>(mutations);
+        while (generated.size() < mutations) {
+            if (generated.size() % 2 == 0 && !live.isEmpty()) {
+                // 删除一个已写入的坐标 (交换到末尾后移除)
+                int index = random.nextInt(live.size());
+                BlockKey key = live.get(index);
+                live.set(index, live.get(live.size() - 1));
+                live.remove(live.size() - 1);
+                liveSet.remove(key);
+                generated.add(BlockMutation.delete(key.getUid(), key.getX(), key.getY(), key.getZ()));
+            } else {
+                BlockMutation upload = Fixtures.randomUpload(random, sizeInChunks << 4);
+                if (addLive(upload.getKey())) {
+                    generated.add(upload);
+                }
+            }
+        }
+        // 同一批中先删除后又写入的坐标只保留写入
+        batch = Fixtures.dedupe(generated);
+    }
+
+    private boolean addLive(BlockKey key) {
+        if (!liveSet.add(key)) {
+            return false;
+        }
+        live.add(key);
+        return true;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.closeDatabase();
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void singleRowWrites() throws Exception {
+        for (BlockMutation mutation : batch) {
+            BlockKey key = mutation.getKey();
+            if (mutation.isDelete()) {
+                storage.deleteBlockData(key.getUid(), key.getX(), key.getY(), key.getZ());
+            } else {
+                storage.uploadBlockData(key.getUid(), key.getX(), key.getY(), key.getZ(), mutation.getBlockType());
+            }
+        }
+    }
+
+    @Benchmark
+    public void batchedWrites() throws Exception {
+        storage.applyBlockMutations(batch, Collections.emptyMap());
+    }
+}
@@ -0,0 +1,119 @@
+package sunsky.io.blockindex.benchmarks;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sunsky.io.blockindex.BlockStorage;
+import sunsky.io.blockindex.NearestBlockFinder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 存储后端的点查询、范围查询、范围计数与最近邻查询 (即区块未加载时 BlockDataAPI 走的路径)
+ * 每个后端在临时目录中建立，预先写入 rows 个随机方块，查询中心随机分布在数据范围内
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class StorageQueryBenchmark {
+
+    private static final int QUERY_POINTS = 4096;
+
+    @Param({"sqlite", "region"})
+    public String backend;
+
+    @Param({"1000000"})
+    public int rows;
+
+    /**
+     * 数据分布的边长 (区块)，与 rows 一起决定密度
+     */
+    @Param({"256"})
+    public int sizeInChunks;
+
+    /**
+     * 范围查询、计数与最近邻搜索的半径
+     */
+    @Param({"16", "64"})
+    public int range;
+
+    private File directory;
+    private BlockStorage storage;
+    private NearestBlockFinder nearestFinder;
+    private Location[] points;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Fixtures.createTempDirectory();
+        storage = Fixtures.openStorage(backend, directory);
+        Random random = new Random(42L);
+        Fixtures.seed(storage, rows, sizeInChunks, random);
+        // 不传内存索引，所有查询都落到存储
+        nearestFinder = new NearestBlockFinder(null, storage);
+        int size = sizeInChunks << 4;
+        points = new Location[QUERY_POINTS];
+        for (int i = 0; i < QUERY_POINTS; i++) {
+            points[i] = new Location(null, random.nextInt(size), Fixtures.MIN_Y + random.nextInt(Fixtures.MAX_Y - Fixtures.MIN_Y), random.nextInt(size));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        storage.closeDatabase();
+        Fixtures.deleteRecursively(directory);
+    }
+
+    private Location nextPoint() {
+        Location point = points[next];
+        next = (next + 1) % QUERY_POINTS;
+        return point;
+    }
+
+    @Benchmark
+    public Material pointLookup() throws Exception {
+        return storage.getBlockTypeAtLocation(Fixtures.WORLD, nextPoint());
+    }
+
+    @Benchmark
+    public List<Location> rangeQuery() throws Exception {
+        return storage.getBlockLocationsInRange(Fixtures.WORLD, nextPoint(), Material.CHEST, range);
+    }
+
+    @Benchmark
+    public int countQuery() throws Exception {
+        return storage.countBlocksInRange(Fixtures.WORLD, nextPoint(), range);
+    }
+
+    @Benchmark
+    public Map<String, Integer> countByTypeQuery() throws Exception {
+        return storage.countBlockTypesInRange(Fixtures.WORLD_UID, nextPoint(), range);
+    }
+
+    @Benchmark
+    public long[] nearestQuery() throws Exception {
+        Location point = nextPoint();
+        return nearestFinder.findNearest(Fixtures.WORLD_UID, point.getBlockX(), point.getBlockY(), point.getBlockZ(),
+                Collections.singleton(Material.CHEST), range, 8);
+    }
+}
@@ -0,0 +1,139 @@
+package sunsky.io.blockindex.benchmarks;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+import org.bukkit.block.Biome;
+import org.bukkit.block.data.BlockData;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 以数组保存方块类型的区块快照，只实现扫描用到的方法
+ * 地表以下为石头，地表以上为空气 (对应的区块段为空)，被追踪的方块按给定密度随机分布在地表以下
+ */
+final class SyntheticChunkSnapshot implements ChunkSnapshot {
+
+    private final int chunkX;
+    private final int chunkZ;
+    private final int minY;
+    private final Material[] blocks;
+    private final boolean[] emptySections;
+
+    /**
+     * @param density 地表以下被追踪方块所占的比例
+     * @param tracked 随机选用的被追踪类型
+     */
+    SyntheticChunkSnapshot(int chunkX, int chunkZ, int minY, int maxY, int surfaceY, double density, List<Material> tracked, Random random) {
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.minY = minY;
+        this.blocks = new Material[(maxY - minY) << 8];
+        this.emptySections = new boolean[(maxY - minY + 15) >> 4];
+        for (int y = minY; y < maxY; y++) {
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    Material material = Material.AIR;
+                    if (y < surfaceY) {
+                        material = random.nextDouble() < density ? tracked.get(random.nextInt(tracked.size())) : Material.STONE;
+                    }
+                    blocks[index(x, y, z)] = material;
+                }
+            }
+        }
+        for (int section = 0; section < emptySections.length; section++) {
+            emptySections[section] = minY + (section << 4) >= surfaceY;
+        }
+    }
+
+    private int index(int x, int y, int z) {
+        return ((y - minY) << 8) | (z << 4) | x;
+    }
+
+    @Override
+    public int getX() {
+        return chunkX;
+    }
+
+    @Override
+    public int getZ() {
+        return chunkZ;
+    }
+
+    @Override
+    public String getWorldName() {
+        return "benchmark";
+    }
+
+    @Override
+    public Material getBlockType(int x, int y, int z) {
+        return blocks[index(x, y, z)];
+    }
+
+    @Override
+    public boolean isSectionEmpty(int sy) {
+        return emptySections[sy];
+    }
+
+    @Override
+    public BlockData getBlockData(int x, int y, int z) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @Deprecated
+    public int getData(int x, int y, int z) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getBlockSkyLight(int x, int y, int z) {
+        return 0;
+    }
+
+    @Override
+    public int getBlockEmittedLight(int x, int y, int z) {
+        return 0;
+    }
+
+    @Override
+    public int getHighestBlockYAt(int x, int z) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    @Deprecated
+    public Biome getBiome(int x, int z) {
+        return Biome.PLAINS;
+    }
+
+    @Override
+    public Biome getBiome(int x, int y, int z) {
+        return Biome.PLAINS;
+    }
+
+    @Override
+    @Deprecated
+    public double getRawBiomeTemperature(int x, int z) {
+        return 0.8;
+    }
+
+    @Override
+    public double getRawBiomeTemperature(int x, int y, int z) {
+        return 0.8;
+    }
+
+    @Override
+    public long getCaptureFullTime() {
+        return 0L;
+    }
+
+    @Override
+    public boolean contains(BlockData block) {
+        throw new UnsupportedOperationException();
+    }
+
+    public boolean contains(Biome biome) {
+        return biome == Biome.PLAINS;
+    }
+}
@@ -0,0 +1,110 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Material;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 索引变化的合并与发布
+ * 各线程 (主线程事件、区块同步线程) 记录的变化按区块、按坐标合并，
+ * 每个 tick 在主线程为每个有变化的区块触发一个 BlockIndexChangeEvent。
+ * 没有插件监听该事件时，合并的变化在发布时直接丢弃。
+ */
+public class BlockChangeFeed {
+
+    private Map<ChunkPos, Map<Long, Change>> pending = new LinkedHashMap<>();
+    private BukkitTask task;
+
+    /**
+     * 开始每 tick 发布一次
+     */
+    public void start(Plugin plugin) {
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::publish, 1L, 1L);
+    }
+
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        synchronized (this) {
+            pending = new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * 记录一个坐标的索引变化
+     * @param previous 变化前的被追踪类型，原来没有索引时为 null
+     * @param current 变化后的被追踪类型，索引被移除时为 null
+     */
+    public synchronized void record(String uid, int x, int y, int z, Material previous, Material current) {
+        Map<Long, Change> chunk = pending.computeIfAbsent(new ChunkPos(uid, x >> 4, z >> 4), k -> new LinkedHashMap<>());
+        long pos = BlockCoords.pack(x, y, z);
+        Change change = chunk.get(pos);
+        if (change == null) {
+            chunk.put(pos, new Change(previous, current));
+        } else {
+            // 保留本 tick 第一次变化前的类型
+            change.current = current;
+        }
+    }
+
+    /**
+     * 发布本 tick 合并的变化 (主线程)
+     */
+    public void publish() {
+        Map<ChunkPos, Map<Long, Change>> drained;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            drained = pending;
+            pending = new LinkedHashMap<>();
+        }
+        if (BlockIndexChangeEvent.getHandlerList().getRegisteredListeners().length == 0) {
+            return;
+        }
+        for (Map.Entry<ChunkPos, Map<Long, Change>> entry : drained.entrySet()) {
+            Map<Long, Change> changes = entry.getValue();
+            long[] positions = new long[changes.size()];
+            Material[] previous = new Material[changes.size()];
+            Material[] current = new Material[changes.size()];
+            int size = 0;
+            for (Map.Entry<Long, Change> change : changes.entrySet()) {
+                Change value = change.getValue();
+                if (value.previous == value.current) {
+                    continue;
+                }
+                positions[size] = change.getKey();
+                previous[size] = value.previous;
+                current[size] = value.current;
+                size++;
+            }
+            if (size == 0) {
+                continue;
+            }
+            if (size < positions.length) {
+                positions = Arrays.copyOf(positions, size);
+                previous = Arrays.copyOf(previous, size);
+                current = Arrays.copyOf(current, size);
+            }
+            ChunkPos chunk = entry.getKey();
+            Bukkit.getPluginManager().callEvent(new BlockIndexChangeEvent(chunk.getUid(), chunk.getX(), chunk.getZ(), positions, previous, current));
+        }
+    }
+
+    private static final class Change {
+        private final Material previous;
+        private Material current;
+
+        private Change(Material previous, Material current) {
+            this.previous = previous;
+            this.current = current;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package sunsky.io.blockindex;
+
+/**
+ * 坐标压缩工具
+ * 方块坐标压缩为一个 long：x、z 各 26 位，y 12 位 (与原版 BlockPos 的布局一致)
+ * 区块坐标压缩为一个 long：高 32 位为区块 X，低 32 位为偏移后的区块 Z，保证按 (X, Z) 单调递增
+ */
+public final class BlockCoords {
+
+    private BlockCoords() {
+    }
+
+    public static long pack(int x, int y, int z) {
+        return ((long) (x & 0x3FFFFFF) << 38) | ((long) (z & 0x3FFFFFF) << 12) | (y & 0xFFF);
+    }
+
+    public static int unpackX(long packed) {
+        return (int) (packed >> 38);
+    }
+
+    public static int unpackY(long packed) {
+        return (int) (packed << 52 >> 52);
+    }
+
+    public static int unpackZ(long packed) {
+        return (int) (packed << 26 >> 38);
+    }
+
+    public static long chunkKey(int chunkX, int chunkZ) {
+        return ((long) chunkX << 32) + ((long) chunkZ + 0x80000000L);
+    }
+
+    public static int chunkX(long chunkKey) {
+        return (int) (chunkKey >> 32);
+    }
+
+    public static int chunkZ(long chunkKey) {
+        return (int) ((chunkKey & 0xFFFFFFFFL) - 0x80000000L);
+    }
+}
@@ -3,21 +3,60 @@ package sunsky.io.blockindex;
 import org.bukkit.Bukkit;
 import org.bukkit.Location;
 import org.bukkit.Material;
+import org.bukkit.World;
 import org.bukkit.plugin.Plugin;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 public class BlockDataAPI {
 
-    private final DatabaseManager databaseManager;
+    private final Plugin plugin;
+    private final BlockStorage storage;
+    private final BlockMemoryIndex memoryIndex;
+    private final BlockLookupCache lookupCache;
+    private final BlockWriteQueue writeQueue;
+    private final NearestBlockFinder nearestFinder;
+    private final Executor ioExecutor;
+    private final Executor mainThreadExecutor;
 
-    public BlockDataAPI(Plugin plugin) {
-        this.databaseManager = new DatabaseManager(plugin);
-        if (!this.databaseManager.setupDatabaseConfig()) {
-            plugin.getLogger().severe("Failed to setup database configuration.");
-        }
+    /**
+     * 查询优先由已加载区块的内存索引回答，范围内有未加载区块时回退到数据库
+     * @param plugin 插件实例
+     * @param storage 与 BlockIndex 共享的存储后端
+     * @param memoryIndex 已加载区块的内存索引
+     * @param lookupCache 数据库点查询与小范围计数的缓存
+     * @param writeQueue 写回队列，上传与删除与方块事件的变更按入队顺序写入
+     * @param ioExecutor 异步方法使用的线程池
+     * @param dispatcher 主线程调度器，异步结果切换回主线程的回调在其中按 tick 分批执行
+     */
+    public BlockDataAPI(Plugin plugin, BlockStorage storage, BlockMemoryIndex memoryIndex, BlockLookupCache lookupCache, BlockWriteQueue writeQueue,
+                        Executor ioExecutor, MainThreadDispatcher dispatcher) {
+        this.plugin = plugin;
+        this.storage = storage;
+        this.memoryIndex = memoryIndex;
+        this.lookupCache = lookupCache;
+        this.writeQueue = writeQueue;
+        this.nearestFinder = new NearestBlockFinder(memoryIndex, storage);
+        this.ioExecutor = ioExecutor;
+        this.mainThreadExecutor = task -> {
+            if (Bukkit.isPrimaryThread()) {
+                task.run();
+            } else {
+                dispatcher.execute(task);
+            }
+        };
     }
     /**
      * 更新/应用指定坐标的索引数据
@@ -25,15 +64,12 @@ public class BlockDataAPI {
      * @param X 坐标
      * @param Y 坐标
      * @param Z 坐标
-     * @param blockType 类型
+     * @param blockType 类型 (Material 名称)
      * 当区块重新加载，或方块被重新放置时将重新被索引
+     * @throws IllegalArgumentException 如果 blockType 不是有效的 Material 名称
      */
     public void uploadBlockData(String UUID, int X, int Y, int Z, String blockType) {
-        try {
-            databaseManager.uploadBlockData(UUID, X, Y, Z, blockType);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        upload(UUID, X, Y, Z, blockType);
     }
     /**
      * 删除指定坐标的索引数据
@@ -44,11 +80,7 @@ public class BlockDataAPI {
      * 当区块重新加载，或方块被重新放置时将重新被索引
      */
     public void deleteBlockData(String UUID ,int X, int Y, int Z) {
-        try {
-            databaseManager.deleteBlockData(UUID,X, Y, Z);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        delete(UUID, X, Y, Z);
     }
 
     /**
@@ -60,8 +92,12 @@ public class BlockDataAPI {
      * @return 坐标列表
      */
     public List<Location> getBlockLocationsInRange(UUID serverUUID, Location location, Material material, int range) {
+        List<Location> locations = memoryLocationsInRange(serverUUID, location, material, range);
+        if (locations != null) {
+            return locations;
+        }
         try {
-            return databaseManager.getBlockLocationsInRange(serverUUID, location, material, range);
+            return storage.getBlockLocationsInRange(serverUUID, location, material, range);
         } catch (SQLException e) {
             Bukkit.getLogger().severe("Error querying block locations in range: " + e.getMessage());
             return null;
@@ -76,8 +112,12 @@ public class BlockDataAPI {
      * @return 方块条目数
      */
     public int countBlocksInRange(UUID serverUUID, Location location, int range) {
+        int count = memoryCountInRange(serverUUID, location, range);
+        if (count >= 0) {
+            return count;
+        }
         try {
-            return databaseManager.countBlocksInRange(serverUUID, location, range);
+            return lookupCache.countBlocksInRange(serverUUID, location, range);
         } catch (SQLException e) {
             Bukkit.getLogger().severe("Error counting blocks in range: " + e.getMessage());
             return 0;
@@ -91,8 +131,12 @@ public class BlockDataAPI {
      * @return 方块类型
      */
     public Material getBlockTypeAtLocation(UUID serverUUID, Location location) {
+        int ordinal = memoryIndex.lookup(serverUUID.toString(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        if (ordinal != BlockMemoryIndex.NOT_RESIDENT) {
+            return BlockMemoryIndex.toMaterial(ordinal);
+        }
         try {
-            return databaseManager.getBlockTypeAtLocation(serverUUID, location);
+            return lookupCache.getBlockTypeAtLocation(serverUUID, location);
         } catch (SQLException e) {
             Bukkit.getLogger().severe("Error getting block type at location: " + e.getMessage());
             return null;
@@ -104,16 +148,401 @@ public class BlockDataAPI {
      * @param serverUUID 服务器UUID
      * @param material 方块类型
      * @param location 中心坐标
+     * @param range 最大半径 (球形)
      * @return 最近的同类型方块坐标
      */
     public Location getNearestBlockLocation(UUID serverUUID, Material material, Location location,int range) {
-        Bukkit.getLogger().severe("参数: " + location.toString());
+        List<Location> nearest = getNearestBlockLocations(serverUUID, Collections.singleton(material), location, range, 1);
+        return nearest == null || nearest.isEmpty() ? null : nearest.get(0);
+    }
+
+    /**
+     * 获取与坐标最近的 k 个指定类型方块坐标
+     * 已加载区块由内存索引回答，其余区块按区块环批量查询数据库
+     * @param serverUUID 服务器UUID
+     * @param materials 方块类型
+     * @param location 中心坐标
+     * @param range 最大半径 (球形)
+     * @param k 最多返回的数量
+     * @return 按距离由近到远排列的坐标列表
+     */
+    public List<Location> getNearestBlockLocations(UUID serverUUID, Set<Material> materials, Location location, int range, int k) {
         try {
-            return databaseManager.getNearestBlockLocation(serverUUID, material, location, range);
+            return nearest(serverUUID, materials, location, range, k);
         } catch (SQLException e) {
             Bukkit.getLogger().severe("Error getting nearest block location: " + e.getMessage());
             return null;
         }
     }
 
+    /**
+     * 批量读取多个坐标的方块类型
+     * 所在区块已加载的坐标由内存索引回答，其余坐标合并为一次数据库查询
+     * @param serverUUID 服务器UUID
+     * @param locations 坐标
+     * @return 以传入的坐标为键的方块类型，未索引的坐标不在结果中
+     */
+    public Map<Location, Material> getBlockTypesAtLocations(UUID serverUUID, Collection<Location> locations) {
+        try {
+            return typesAtLocations(serverUUID, locations);
+        } catch (SQLException e) {
+            Bukkit.getLogger().severe("Error getting block types at locations: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 一次查询范围内多种类型方块的坐标
+     * @param serverUUID 服务器UUID
+     * @param location 中心坐标
+     * @param materials 方块类型
+     * @param range 范围
+     * @return 按类型分组的坐标，没有找到的类型对应空列表
+     */
+    public Map<Material, List<Location>> getBlockLocationsInRange(UUID serverUUID, Location location, Set<Material> materials, int range) {
+        Map<Material, List<Location>> locations = memoryLocationsInRange(serverUUID, location, materials, range);
+        if (locations != null) {
+            return locations;
+        }
+        try {
+            return storage.getBlockLocationsInRange(serverUUID, location, materials, range);
+        } catch (SQLException e) {
+            Bukkit.getLogger().severe("Error querying block locations in range: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 逐个遍历范围内的方块，不创建 Location 对象，也不把结果整体读入内存
+     * 范围内区块均已加载时遍历内存索引，否则通过数据库游标分批读取
+     * @param serverUUID 服务器UUID
+     * @param location 中心坐标
+     * @param range 范围
+     * @param materials 方块类型，为 null 时遍历全部类型
+     * @param visitor 在调用线程上逐个接收方块，返回 false 时停止
+     * @return 是否遍历成功 (数据库错误时返回 false)
+     */
+    public boolean forEachBlockInRange(UUID serverUUID, Location location, int range, Set<Material> materials, BlockVisitor visitor) {
+        try {
+            streamBlocks(serverUUID, location, range, materials, visitor);
+            return true;
+        } catch (SQLException e) {
+            Bukkit.getLogger().severe("Error streaming blocks in range: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 以压缩坐标缓冲区分批遍历范围内的方块，每装满 bufferSize 个坐标调用一次 consumer
+     * @param bufferSize 缓冲区大小，整个遍历过程只分配这一个数组
+     * @param consumer 返回 false 时停止
+     * @return 是否遍历成功 (数据库错误时返回 false)
+     */
+    public boolean forEachBlockPositionInRange(UUID serverUUID, Location location, int range, Set<Material> materials,
+                                               int bufferSize, PackedPositionConsumer consumer) {
+        long[] buffer = new long[Math.max(1, bufferSize)];
+        int[] count = {0};
+        boolean[] stopped = {false};
+        boolean success = forEachBlockInRange(serverUUID, location, range, materials, (x, y, z, material) -> {
+            buffer[count[0]++] = BlockCoords.pack(x, y, z);
+            if (count[0] == buffer.length) {
+                count[0] = 0;
+                stopped[0] = !consumer.accept(buffer, buffer.length);
+            }
+            return !stopped[0];
+        });
+        if (success && !stopped[0] && count[0] > 0) {
+            consumer.accept(buffer, count[0]);
+        }
+        return success;
+    }
+
+    /**
+     * uploadBlockData 的异步版本，变更入队后直接完成；blockType 无效时以 IllegalArgumentException 异常完成
+     */
+    public CompletableFuture<Void> uploadBlockDataAsync(String uid, int x, int y, int z, String blockType) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            upload(uid, x, y, z, blockType);
+            result.complete(null);
+        } catch (IllegalArgumentException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * deleteBlockData 的异步版本，变更入队后直接完成
+     */
+    public CompletableFuture<Void> deleteBlockDataAsync(String uid, int x, int y, int z) {
+        delete(uid, x, y, z);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * getBlockLocationsInRange 的异步版本，范围内区块均已加载时直接完成
+     */
+    public CompletableFuture<List<Location>> getBlockLocationsInRangeAsync(UUID serverUUID, Location location, Material material, int range) {
+        List<Location> locations = memoryLocationsInRange(serverUUID, location, material, range);
+        if (locations != null) {
+            return CompletableFuture.completedFuture(locations);
+        }
+        return supplyAsync(() -> storage.getBlockLocationsInRange(serverUUID, location, material, range));
+    }
+
+    /**
+     * countBlocksInRange 的异步版本，范围内区块均已加载时直接完成
+     */
+    public CompletableFuture<Integer> countBlocksInRangeAsync(UUID serverUUID, Location location, int range) {
+        int count = memoryCountInRange(serverUUID, location, range);
+        if (count >= 0) {
+            return CompletableFuture.completedFuture(count);
+        }
+        return supplyAsync(() -> lookupCache.countBlocksInRange(serverUUID, location, range));
+    }
+
+    /**
+     * getBlockTypeAtLocation 的异步版本，坐标所在区块已加载时直接完成
+     */
+    public CompletableFuture<Material> getBlockTypeAtLocationAsync(UUID serverUUID, Location location) {
+        int ordinal = memoryIndex.lookup(serverUUID.toString(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        if (ordinal != BlockMemoryIndex.NOT_RESIDENT) {
+            return CompletableFuture.completedFuture(BlockMemoryIndex.toMaterial(ordinal));
+        }
+        return supplyAsync(() -> lookupCache.getBlockTypeAtLocation(serverUUID, location));
+    }
+
+    /**
+     * getBlockTypesAtLocations 的异步版本，全部坐标所在区块已加载时直接完成
+     */
+    public CompletableFuture<Map<Location, Material>> getBlockTypesAtLocationsAsync(UUID serverUUID, Collection<Location> locations) {
+        Map<Location, Material> result = new HashMap<>();
+        List<Location> missing = memoryTypesAtLocations(serverUUID, locations, result);
+        if (missing.isEmpty()) {
+            return CompletableFuture.completedFuture(result);
+        }
+        return supplyAsync(() -> {
+            result.putAll(lookupCache.getBlockTypesAtLocations(serverUUID, missing));
+            return result;
+        });
+    }
+
+    /**
+     * 多类型 getBlockLocationsInRange 的异步版本，范围内区块均已加载时直接完成
+     */
+    public CompletableFuture<Map<Material, List<Location>>> getBlockLocationsInRangeAsync(UUID serverUUID, Location location, Set<Material> materials, int range) {
+        Map<Material, List<Location>> locations = memoryLocationsInRange(serverUUID, location, materials, range);
+        if (locations != null) {
+            return CompletableFuture.completedFuture(locations);
+        }
+        return supplyAsync(() -> storage.getBlockLocationsInRange(serverUUID, location, materials, range));
+    }
+
+    /**
+     * getNearestBlockLocation 的异步版本
+     */
+    public CompletableFuture<Location> getNearestBlockLocationAsync(UUID serverUUID, Material material, Location location, int range) {
+        return getNearestBlockLocationsAsync(serverUUID, Collections.singleton(material), location, range, 1)
+                .thenApply(nearest -> nearest.isEmpty() ? null : nearest.get(0));
+    }
+
+    /**
+     * getNearestBlockLocations 的异步版本
+     */
+    public CompletableFuture<List<Location>> getNearestBlockLocationsAsync(UUID serverUUID, Set<Material> materials, Location location, int range, int k) {
+        return supplyAsync(() -> nearest(serverUUID, materials, location, range, k));
+    }
+
+    /**
+     * forEachBlockInRange 的异步版本，visitor 在 I/O 线程上调用
+     * 对返回的 Future 调用 cancel 会在下一行结果时停止遍历并释放数据库连接
+     */
+    public CompletableFuture<Void> forEachBlockInRangeAsync(UUID serverUUID, Location location, int range, Set<Material> materials, BlockVisitor visitor) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        try {
+            ioExecutor.execute(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                try {
+                    streamBlocks(serverUUID, location, range, materials,
+                            (x, y, z, material) -> !result.isDone() && visitor.visit(x, y, z, material));
+                    result.complete(null);
+                } catch (SQLException | RuntimeException e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * 在主线程上执行任务的 Executor，可用于 thenAcceptAsync 等方法；已在主线程时直接执行
+     */
+    public Executor getMainThreadExecutor() {
+        return mainThreadExecutor;
+    }
+
+    /**
+     * 返回一个在主线程上完成的 Future，其后的回调 (thenAccept 等) 都在主线程执行，可以安全调用 Bukkit API
+     * @param future 异步方法返回的 Future
+     */
+    public <T> CompletableFuture<T> completeOnMainThread(CompletableFuture<T> future) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((value, error) -> {
+            if (!plugin.isEnabled()) {
+                result.completeExceptionally(new IllegalStateException("BlockIndex is disabled"));
+                return;
+            }
+            mainThreadExecutor.execute(() -> {
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(value);
+                }
+            });
+        });
+        return result;
+    }
+
+    // 与方块事件一样经写回队列写入：同坐标的变更按入队顺序生效，区块同步也不会用更早的快照覆盖
+    private void upload(String uid, int x, int y, int z, String blockType) {
+        Material material = blockType == null ? null : Material.getMaterial(blockType);
+        if (material == null) {
+            throw new IllegalArgumentException("Unknown block type: " + blockType);
+        }
+        writeQueue.enqueueUpload(uid, x, y, z, material.name());
+        memoryIndex.apply(uid, x, y, z, material);
+        lookupCache.invalidate(uid, x, y, z);
+    }
+
+    private void delete(String uid, int x, int y, int z) {
+        writeQueue.enqueueDelete(uid, x, y, z);
+        memoryIndex.apply(uid, x, y, z, null);
+        lookupCache.invalidate(uid, x, y, z);
+    }
+
+    /**
+     * @return 范围内区块未全部驻留内存时返回 null
+     */
+    private List<Location> memoryLocationsInRange(UUID serverUUID, Location location, Material material, int range) {
+        World world = location.getWorld();
+        List<Location> locations = new ArrayList<>();
+        boolean resident = memoryIndex.forEachInBox(serverUUID.toString(),
+                location.getBlockX() - range, location.getBlockY() - range, location.getBlockZ() - range,
+                location.getBlockX() + range, location.getBlockY() + range, location.getBlockZ() + range,
+                material, (x, y, z, type) -> {
+                    locations.add(new Location(world, x, y, z));
+                    return true;
+                });
+        return resident ? locations : null;
+    }
+
+    /**
+     * @return 范围内区块未全部驻留内存时返回 null
+     */
+    private Map<Material, List<Location>> memoryLocationsInRange(UUID serverUUID, Location location, Set<Material> materials, int range) {
+        World world = location.getWorld();
+        Map<Material, List<Location>> locations = new HashMap<>();
+        for (Material material : materials) {
+            locations.put(material, new ArrayList<>());
+        }
+        boolean resident = memoryIndex.forEachInBox(serverUUID.toString(),
+                location.getBlockX() - range, location.getBlockY() - range, location.getBlockZ() - range,
+                location.getBlockX() + range, location.getBlockY() + range, location.getBlockZ() + range,
+                null, (x, y, z, type) -> {
+                    List<Location> list = locations.get(type);
+                    if (list != null) {
+                        list.add(new Location(world, x, y, z));
+                    }
+                    return true;
+                });
+        return resident ? locations : null;
+    }
+
+    private Map<Location, Material> typesAtLocations(UUID serverUUID, Collection<Location> locations) throws SQLException {
+        Map<Location, Material> result = new HashMap<>();
+        List<Location> missing = memoryTypesAtLocations(serverUUID, locations, result);
+        if (!missing.isEmpty()) {
+            result.putAll(lookupCache.getBlockTypesAtLocations(serverUUID, missing));
+        }
+        return result;
+    }
+
+    /**
+     * 由内存索引回答所在区块已加载的坐标
+     * @return 所在区块未驻留内存的坐标
+     */
+    private List<Location> memoryTypesAtLocations(UUID serverUUID, Collection<Location> locations, Map<Location, Material> result) {
+        String uid = serverUUID.toString();
+        List<Location> missing = new ArrayList<>();
+        for (Location location : locations) {
+            int ordinal = memoryIndex.lookup(uid, location.getBlockX(), location.getBlockY(), location.getBlockZ());
+            if (ordinal == BlockMemoryIndex.NOT_RESIDENT) {
+                missing.add(location);
+            } else if (ordinal != BlockMemoryIndex.ABSENT) {
+                result.put(location, BlockMemoryIndex.toMaterial(ordinal));
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * @return 范围内区块未全部驻留内存时返回 -1
+     */
+    private int memoryCountInRange(UUID serverUUID, Location location, int range) {
+        return memoryIndex.countInBox(serverUUID.toString(),
+                location.getBlockX() - range, location.getBlockY() - range, location.getBlockZ() - range,
+                location.getBlockX() + range, location.getBlockY() + range, location.getBlockZ() + range, null);
+    }
+
+    private void streamBlocks(UUID serverUUID, Location location, int range, Set<Material> materials, BlockVisitor visitor) throws SQLException {
+        BlockVisitor filtered = materials == null ? visitor
+                : (x, y, z, material) -> !materials.contains(material) || visitor.visit(x, y, z, material);
+        boolean resident = memoryIndex.forEachInBox(serverUUID.toString(),
+                location.getBlockX() - range, location.getBlockY() - range, location.getBlockZ() - range,
+                location.getBlockX() + range, location.getBlockY() + range, location.getBlockZ() + range,
+                materials != null && materials.size() == 1 ? materials.iterator().next() : null, filtered);
+        if (!resident) {
+            storage.forEachBlockInBoxes(serverUUID.toString(),
+                    Collections.singletonList(BlockBox.around(location.getBlockX(), location.getBlockY(), location.getBlockZ(), range)),
+                    materials, visitor);
+        }
+    }
+
+    private List<Location> nearest(UUID serverUUID, Set<Material> materials, Location location, int range, int k) throws SQLException {
+        long[] nearest = nearestFinder.findNearest(serverUUID.toString(),
+                location.getBlockX(), location.getBlockY(), location.getBlockZ(), materials, range, k);
+        List<Location> locations = new ArrayList<>(nearest.length);
+        for (long packed : nearest) {
+            locations.add(new Location(location.getWorld(), BlockCoords.unpackX(packed), BlockCoords.unpackY(packed), BlockCoords.unpackZ(packed)));
+        }
+        return locations;
+    }
+
+    /**
+     * 在 I/O 线程池中执行，SQLException 作为 Future 的异常；线程池已满时返回以 RejectedExecutionException 完成的 Future
+     */
+    private <T> CompletableFuture<T> supplyAsync(SqlSupplier<T> supplier) {
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return supplier.get();
+                } catch (SQLException e) {
+                    throw new CompletionException(e);
+                }
+            }, ioExecutor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(e);
+            return rejected;
+        }
+    }
+
+    private interface SqlSupplier<T> {
+        T get() throws SQLException;
+    }
+
 }
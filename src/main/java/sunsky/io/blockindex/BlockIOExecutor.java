@@ -0,0 +1,67 @@
+package sunsky.io.blockindex;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BlockDataAPI 异步查询专用线程池
+ * 固定线程数、有界队列，队满时拒绝新任务 (对应的 CompletableFuture 以异常完成)，
+ * 不会在调用线程上执行数据库操作。线程数不宜超过连接池大小。
+ */
+public class BlockIOExecutor implements Executor {
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param threads 线程数
+     * @param queueCapacity 等待执行的任务上限
+     */
+    public BlockIOExecutor(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        int size = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+                    Thread thread = new Thread(runnable, "BlockIndex-IO-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(command);
+    }
+
+    /**
+     * 停止接受新任务，等待已提交的任务执行完毕
+     * @param timeoutMillis 最长等待时间
+     */
+    public void shutdown(long timeoutMillis) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 排队中的任务数
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * 正在执行的任务数
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+}
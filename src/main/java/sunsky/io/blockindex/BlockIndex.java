@@ -2,25 +2,35 @@ package sunsky.io.blockindex;
 
 import org.bukkit.*;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
+import org.bukkit.block.PistonMoveReaction;
 import org.bukkit.boss.BarColor;
 import org.bukkit.boss.BarStyle;
 import org.bukkit.boss.BossBar;
 import org.bukkit.configuration.file.FileConfiguration;
+import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.*;
+import org.bukkit.event.entity.EntityExplodeEvent;
 import org.bukkit.event.player.PlayerCommandPreprocessEvent;
 import org.bukkit.event.player.PlayerInteractEvent;
 import org.bukkit.event.world.ChunkLoadEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
 import org.bukkit.inventory.ItemStack;
 import org.bukkit.plugin.java.JavaPlugin;
-import org.bukkit.scheduler.BukkitRunnable;
 
+import java.io.File;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
@@ -32,6 +42,22 @@ public final class BlockIndex extends JavaPlugin implements Listener {
     public UUID ServerUUID = null;
     private BlockDataAPI blockDataAPI;
     private DatabaseManager dbManager;
+    private BlockStorage storage;
+    private BlockWriteQueue writeQueue;
+    private ChunkSynchronizer chunkSynchronizer;
+    private ChunkFingerprints fingerprints;
+    private ChunkScanner chunkScanner;
+    private ChunkSyncExecutor chunkSyncExecutor;
+    private SchemaMigrator schemaMigrator;
+    private BlockIOExecutor ioExecutor;
+    private BlockLookupCache lookupCache;
+    private BulkIndexer bulkIndexer;
+    private ChangeLogTailer changeLogTailer;
+    private StorageReconnector reconnector;
+    private MainThreadDispatcher dispatcher;
+    private final BlockIndexMetrics metrics = new BlockIndexMetrics();
+    private final BlockChangeFeed changeFeed = new BlockChangeFeed();
+    private final BlockMemoryIndex memoryIndex = new BlockMemoryIndex();
 
     private final Set<Material> trackedBlocks = new HashSet<>(Arrays.asList(
             Material.CHEST, Material.FURNACE, Material.BEACON, Material.ENCHANTING_TABLE, Material.CRAFTING_TABLE,
@@ -43,29 +69,175 @@ public final class BlockIndex extends JavaPlugin implements Listener {
 
     @Override
     public void onEnable() {
-        this.blockDataAPI = new BlockDataAPI(this);
         // 插件启动逻辑
         saveDefaultConfig(); // 保存默认配置文件
 
         // 读取或初始化配置
         initializeTrackedBlocks();
+        chunkScanner = new ChunkScanner(trackedBlocks);
 
-        dbManager = new DatabaseManager(this);
-        if (!dbManager.setupDatabaseConfig()) {
-            getLogger().log(Level.SEVERE, "数据库尚未链接 请尝试配置 本插件目录下的mysql.yml");
-            MysqlEnable = false;
+        FileConfiguration storageConfig = loadStorageConfig();
+        if ("region".equalsIgnoreCase(storageConfig.getString("database.type", "mysql"))) {
+            // 单服使用内存映射区域文件，不需要数据库
+            RegionFileStorage regionStorage = new RegionFileStorage(
+                    new File(getDataFolder(), storageConfig.getString("database.directory", "regions")), getLogger());
+            storage = new InstrumentedStorage(regionStorage, metrics);
+            try {
+                regionStorage.open();
+                ServerUUID = getPropertyValue("ServerUUID");
+                MysqlEnable = true;
+            } catch (SQLException e) {
+                getLogger().log(Level.SEVERE, "区域文件存储打开失败: " + e.getMessage());
+                MysqlEnable = false;
+            }
         } else {
-            ServerUUID = getPropertyValue("ServerUUID");
-            MysqlEnable = true;
+            dbManager = new DatabaseManager(this);
+            dbManager.setMetrics(metrics);
+            storage = new InstrumentedStorage(dbManager, metrics);
+            if (getConfig().getBoolean("changeLog.enabled", false)) {
+                dbManager.enableChangeLog(changeLogServerId());
+            }
+            if (!dbManager.setupDatabaseConfig()) {
+                getLogger().log(Level.SEVERE, "数据库尚未链接 请尝试配置 本插件目录下的mysql.yml");
+                MysqlEnable = false;
+            } else {
+                ServerUUID = getPropertyValue("ServerUUID");
+                MysqlEnable = true;
+            }
+            // 旧表在后台分批迁移到新表
+            schemaMigrator = new SchemaMigrator(this, dbManager, getConfig().getInt("migration.batchSize", 5000));
+            schemaMigrator.start(getConfig().getLong("migration.intervalTicks", 10L));
+        }
+        // 数据库点查询与小范围计数缓存
+        lookupCache = new BlockLookupCache(storage,
+                getConfig().getInt("cache.pointSize", 50000), getConfig().getInt("cache.countSize", 5000),
+                getConfig().getLong("cache.ttlSeconds", 60L) * 1000L, getConfig().getInt("cache.maxCountChunks", 16));
+        // API 与插件共用同一个连接池，异步方法在专用线程池中执行
+        ioExecutor = new BlockIOExecutor(getConfig().getInt("api.ioThreads", 4), getConfig().getInt("api.ioQueueCapacity", 10000));
+        // 延迟检查与异步查询回调每 tick 在主线程集中执行，受时间预算限制
+        dispatcher = new MainThreadDispatcher(getConfig().getLong("dispatcher.budgetMicros", 1000L), getLogger(), metrics);
+        dispatcher.start(this);
+
+        // 区块指纹，未变化的区块加载时跳过同步
+        fingerprints = new ChunkFingerprints(storage, getConfig().getInt("chunkSync.fingerprintCacheSize", 100000));
+        // 索引变更异步批量写入
+        writeQueue = new BlockWriteQueue(this, storage, fingerprints, lookupCache, getConfig().getInt("writeBehind.batchSize", 500));
+        lookupCache.setWriteQueue(writeQueue);
+        this.blockDataAPI = new BlockDataAPI(this, storage, memoryIndex, lookupCache, writeQueue, ioExecutor, dispatcher);
+        if (dbManager != null) {
+            // 数据库不可用时变更记入本地日志，恢复后重放；重连在异步线程中进行
+            openJournal();
+            reconnector = new StorageReconnector(this, dbManager, metrics,
+                    getConfig().getLong("reconnect.initialDelaySeconds", 1L) * 1000L,
+                    getConfig().getLong("reconnect.maxDelaySeconds", 60L) * 1000L, this::onStorageReconnected);
+            reconnector.start();
+        }
+        writeQueue.start(getConfig().getLong("writeBehind.flushIntervalTicks", 20L));
+        // 索引变化每 tick 按区块合并后以 BlockIndexChangeEvent 发布
+        changeFeed.start(this);
+        chunkSynchronizer = new ChunkSynchronizer(writeQueue, storage, fingerprints, changeFeed);
+        // 多服共用数据库时读取其他服务器的变更，使本服缓存失效
+        if (dbManager != null && getConfig().getBoolean("changeLog.enabled", false)) {
+            changeLogTailer = new ChangeLogTailer(this, dbManager, lookupCache, fingerprints,
+                    getConfig().getInt("changeLog.batchSize", 5000), getConfig().getLong("changeLog.gapTimeoutMillis", 5000L),
+                    getConfig().getLong("changeLog.retentionMinutes", 1440L) * 60000L);
+            changeLogTailer.start(getConfig().getLong("changeLog.pollIntervalTicks", 20L),
+                    getConfig().getLong("changeLog.pruneIntervalMinutes", 10L) * 1200L);
         }
+        // 区块同步专用线程池
+        chunkSyncExecutor = new ChunkSyncExecutor(this::syncChunk, getLogger(),
+                getConfig().getInt("chunkSync.workers", 2), getConfig().getInt("chunkSync.queueCapacity", 4096));
+        chunkSyncExecutor.start();
+        // 运行指标，可通过 /blockindex stats 或 JMX 查看
+        metrics.bindQueues(writeQueue::getPendingCount, chunkSyncExecutor::getQueueDepth, ioExecutor::getQueueDepth, dispatcher::getQueueDepth);
+        metrics.register(getLogger());
+        // 离线批量索引现有世界的区域文件
+        bulkIndexer = new BulkIndexer(storage, memoryIndex, fingerprints, lookupCache, trackedBlocks, getLogger(),
+                new File(getDataFolder(), "bulkindex"), getConfig().getInt("bulkIndex.parallelism", 2), getConfig().getInt("bulkIndex.batchSize", 5000));
+        BlockIndexCommand command = new BlockIndexCommand(bulkIndexer, metrics, lookupCache);
+        getCommand("blockindex").setExecutor(command);
+        getCommand("blockindex").setTabCompleter(command);
 
         // 注册事件监听器
         Bukkit.getPluginManager().registerEvents(this, this);
+        // 插件重载时已加载的区块不会再触发加载事件
+        for (World world : Bukkit.getWorlds()) {
+            for (Chunk chunk : world.getLoadedChunks()) {
+                onChunkLoaded(chunk);
+            }
+        }
         getLogger().info("BLOCKINDEX已启动 可为其引用插件提供方块坐标索引");
     }
+    /**
+     * 读取 mysql.yml，不存在时返回空配置 (使用默认的 MySQL 存储，由 DatabaseManager 生成默认文件)
+     */
+    private FileConfiguration loadStorageConfig() {
+        File file = new File(getDataFolder(), "mysql.yml");
+        return file.exists() ? YamlConfiguration.loadConfiguration(file) : new YamlConfiguration();
+    }
+
+    /**
+     * 变更日志中本服的标识：server.properties 中的 ServerUUID，未配置时每次启动随机生成
+     */
+    private UUID changeLogServerId() {
+        UUID serverId = getPropertyValue("ServerUUID");
+        if (serverId == null) {
+            getLogger().warning("server.properties 中未配置 ServerUUID，变更日志使用随机的服务器标识");
+            serverId = UUID.randomUUID();
+        }
+        return serverId;
+    }
+
+    private void openJournal() {
+        WriteJournal journal = new WriteJournal(new File(getDataFolder(), "journal"),
+                getConfig().getInt("journal.segmentSizeMB", 16) << 20);
+        try {
+            journal.open();
+        } catch (IOException e) {
+            getLogger().log(Level.SEVERE, "本地日志打开失败，数据库不可用时变更只保存在内存中: " + e.getMessage());
+            return;
+        }
+        if (!journal.isEmpty()) {
+            getLogger().info("本地日志中有 " + journal.size() + " 条变更尚未写入数据库，将在数据库可用时重放");
+        }
+        writeQueue.setJournal(journal, getConfig().getInt("journal.replayBatchSize", 5000));
+    }
+
+    /**
+     * 数据库重新连接后 (异步线程)
+     */
+    private void onStorageReconnected() {
+        ServerUUID = getPropertyValue("ServerUUID");
+        MysqlEnable = true;
+        if (schemaMigrator != null) {
+            schemaMigrator.start(getConfig().getLong("migration.intervalTicks", 10L));
+        }
+    }
+
     public BlockDataAPI getBlockDataAPI() {
         return blockDataAPI;
     }
+
+    /**
+     * 数据库查询缓存，可读取命中、未命中与淘汰统计
+     */
+    public BlockLookupCache getLookupCache() {
+        return lookupCache;
+    }
+
+    /**
+     * 运行指标：存储操作与区块扫描同步耗时、错误与重连次数、队列深度
+     */
+    public BlockIndexMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 区块同步调度器，可读取队列深度、合并数与丢弃数
+     */
+    public ChunkSyncExecutor getChunkSyncExecutor() {
+        return chunkSyncExecutor;
+    }
     private void initializeTrackedBlocks() {
         FileConfiguration config = getConfig();
         if (!config.contains("trackedBlocks") || config.getStringList("trackedBlocks").isEmpty()) {
@@ -93,9 +265,39 @@ public final class BlockIndex extends JavaPlugin implements Listener {
     @Override
     public void onDisable() {
         // 插件关闭逻辑
+        if (chunkSyncExecutor != null) {
+            chunkSyncExecutor.shutdown(5000L);
+        }
+        if (bulkIndexer != null) {
+            bulkIndexer.shutdown(5000L);
+        }
+        if (reconnector != null) {
+            reconnector.shutdown();
+        }
+        if (schemaMigrator != null) {
+            schemaMigrator.shutdown();
+        }
+        if (changeLogTailer != null) {
+            changeLogTailer.shutdown();
+        }
+        if (ioExecutor != null) {
+            ioExecutor.shutdown(5000L);
+        }
+        if (dispatcher != null) {
+            // 异步查询结束后再执行剩余的检查与回调，且在写回队列关闭之前
+            dispatcher.shutdown();
+        }
+        if (writeQueue != null) {
+            writeQueue.shutdown();
+        }
+        changeFeed.shutdown();
+        if (lookupCache != null) {
+            getLogger().info("查询缓存统计: " + lookupCache);
+        }
+        metrics.unregister();
         try {
-            if (dbManager != null) {
-                dbManager.closeDatabase();
+            if (storage != null) {
+                storage.closeDatabase();
             }
         } catch (SQLException e) {
             e.printStackTrace();
@@ -105,58 +307,95 @@ public final class BlockIndex extends JavaPlugin implements Listener {
 
 
     public void uploadBlockData(String worlduid, int x, int y, int z, String blockType) {
-        try {
-            dbManager.uploadBlockData(worlduid, x, y, z, blockType);
-        } catch (SQLException e) {
-            e.printStackTrace();
-        }
+        writeQueue.enqueueUpload(worlduid, x, y, z, blockType);
     }
 
     public void deleteBlockData(String worlduid,int x, int y, int z) {
-        try {
-            dbManager.deleteBlockData(worlduid,x, y, z);
-        } catch (SQLException e) {
-            e.printStackTrace();
+        writeQueue.enqueueDelete(worlduid, x, y, z);
+    }
+
+    /**
+     * 记录一次方块变化：变更进入写回队列，并增量更新所在区块的指纹
+     * @param block 方块
+     * @param before 变化前的类型
+     * @param after 变化后的类型，为 null 时删除该坐标的索引
+     */
+    private void recordBlockChange(Block block, Material before, Material after) {
+        BlockChangeBatch batch = new BlockChangeBatch();
+        batch.add(block, before, after);
+        batch.commit();
+    }
+
+    /**
+     * 记录一批方块被移除 (爆炸、燃烧)，只处理被追踪的方块，整批一次加入写回队列
+     */
+    private void recordBlocksRemoved(List<Block> blocks) {
+        BlockChangeBatch batch = new BlockChangeBatch();
+        for (Block block : blocks) {
+            Material material = block.getType();
+            if (trackedBlocks.contains(material)) {
+                batch.add(block, material, null);
+            }
+        }
+        batch.commit();
+    }
+
+    /**
+     * 记录活塞推动/拉回的方块：先移除所有原坐标，再写入移动后的坐标，
+     * 这样前一个方块移入后一个方块原来的位置时不会被删除；被活塞破坏的方块只移除
+     * @param direction 方块移动的方向
+     */
+    private void recordPistonMove(List<Block> blocks, BlockFace direction) {
+        BlockChangeBatch batch = new BlockChangeBatch();
+        List<Block> moved = new ArrayList<>();
+        List<Material> movedTypes = new ArrayList<>();
+        for (Block block : blocks) {
+            Material material = block.getType();
+            if (trackedBlocks.contains(material)) {
+                batch.add(block, material, null);
+                if (block.getPistonMoveReaction() != PistonMoveReaction.BREAK) {
+                    moved.add(block);
+                    movedTypes.add(material);
+                }
+            }
+        }
+        for (int i = 0; i < moved.size(); i++) {
+            batch.add(moved.get(i).getRelative(direction), null, movedTypes.get(i));
         }
+        batch.commit();
+    }
+
+    private Material trackedOrNull(Material material) {
+        return material != null && trackedBlocks.contains(material) ? material : null;
     }
 
     public Material getBlockType(String worlduid,Location loc) {
         try {
-            return dbManager.getBlockTypeAtLocation(UUID.fromString(worlduid),loc);
+            return lookupCache.getBlockTypeAtLocation(UUID.fromString(worlduid),loc);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
-    @EventHandler
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onBlockPlace(BlockPlaceEvent event) {
-        if(!dbManager.isConnected()){
-            dbManager.setupDatabaseConfig();
-            event.setCancelled(true);
-        }
         Material material = event.getBlock().getType();
         if (trackedBlocks.contains(material)) {
-            Location loc = event.getBlock().getLocation();
-            uploadBlockData(event.getBlock().getWorld().getUID().toString(), loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), material.toString());
+            recordBlockChange(event.getBlock(), event.getBlockReplacedState().getType(), material);
         }
     }
 
-    @EventHandler
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onBlockBreak(BlockBreakEvent event) {
-        if(!dbManager.isConnected()){
-            dbManager.setupDatabaseConfig();
-            event.setCancelled(true);
-        }
         Material material = event.getBlock().getType();
         if (trackedBlocks.contains(material)) {
-            Location loc = event.getBlock().getLocation();
-            deleteBlockData(event.getBlock().getWorld().getUID().toString(),loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
+            recordBlockChange(event.getBlock(), material, null);
         }
     }
     @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
     public void onBlockFade(BlockFadeEvent event) {
         if (event.getBlock().getType() == Material.FARMLAND) {
-            deleteBlockData(event.getBlock().getWorld().getUID().toString(), event.getBlock().getX(), event.getBlock().getY(), event.getBlock().getZ());
+            recordBlockChange(event.getBlock(), Material.FARMLAND, null);
         }
     }
 
@@ -167,69 +406,131 @@ public final class BlockIndex extends JavaPlugin implements Listener {
             ItemStack item = event.getItem();
             if (block != null && (block.getType() == Material.DIRT || block.getType() == Material.GRASS_BLOCK)
                     && item != null && item.getType().name().endsWith("_HOE")) {
-                scheduleFarmlandCheck(block, event);
+                scheduleFarmlandCheck(block);
             }
         }
     }
-    private void scheduleFarmlandCheck(Block block, PlayerInteractEvent event) {
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-            new BukkitRunnable() {
-                @Override
-                public void run() {
-                    // 检测方块是否变为耕地
-                    if (block.getType() == Material.FARMLAND) {
-                        uploadBlockData(block.getWorld().getUID().toString(), block.getX(), block.getY(), block.getZ(), block.getType().toString());
-                    }
-                }
-            }.runTaskLater(this, 3L); // 延迟1秒 (20 ticks)
-
+    /**
+     * 3 tick 后检测方块是否变为耕地；同一方块在检测前的重复右键只检测一次
+     */
+    private void scheduleFarmlandCheck(Block block) {
+        dispatcher.schedule(block.getLocation(), 3, () -> {
+            if (block.getType() == Material.FARMLAND) {
+                recordBlockChange(block, null, Material.FARMLAND);
+            }
         });
     }
 
-    @EventHandler
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onBlockExplode(BlockExplodeEvent event) {
-        if(!dbManager.isConnected()){
-            dbManager.setupDatabaseConfig();
-            event.setCancelled(true);
-        }
-        for (org.bukkit.block.Block block : event.blockList()) {
-            Material material = block.getType();
-            if (trackedBlocks.contains(material)) {
-                Location loc = block.getLocation();
-                deleteBlockData(event.getBlock().getWorld().getUID().toString(),loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
-            }
-        }
+        recordBlocksRemoved(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityExplode(EntityExplodeEvent event) {
+        recordBlocksRemoved(event.blockList());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onBlockBurn(BlockBurnEvent event) {
+        recordBlocksRemoved(Collections.singletonList(event.getBlock()));
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonExtend(BlockPistonExtendEvent event) {
+        recordPistonMove(event.getBlocks(), event.getDirection());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onPistonRetract(BlockPistonRetractEvent event) {
+        recordPistonMove(event.getBlocks(), event.getDirection());
     }
     public void scanAndSyncChunk(ChunkSnapshot chunkSnapshot, World world) {
-        Bukkit.getScheduler().runTaskAsynchronously(this, () -> {
-           // long startTime = System.currentTimeMillis();
-            for (int x = 0; x < 16; x++) {
-                for (int y = world.getMinHeight(); y < world.getMaxHeight(); y++) {
-                    for (int z = 0; z < 16; z++) {
-                        Material material = chunkSnapshot.getBlockType(x, y, z);
-
-                        if (trackedBlocks.contains(material)) {
-                            Location loc = new Location(world, chunkSnapshot.getX() * 16 + x, y, chunkSnapshot.getZ() * 16 + z);
-                            String worldUID = world.getUID().toString();
-                            if (material != getBlockType(worldUID, loc)) {
-                                deleteBlockData(worldUID, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ());
-                                uploadBlockData(worldUID, loc.getBlockX(), loc.getBlockY(), loc.getBlockZ(), material.toString());
-                            }
-                        }
-                    }
-                }
-            }
-           // long endTime = System.currentTimeMillis();
-           // getLogger().info("区块 (" + chunkSnapshot.getX() + ", " + chunkSnapshot.getZ() + ") 本次扫描同步耗时 " + (endTime - startTime) + " 毫秒");
-        });
+        ChunkPos pos = new ChunkPos(world.getUID().toString(), chunkSnapshot.getX(), chunkSnapshot.getZ());
+        double priority = nearestPlayerDistance(world, chunkSnapshot.getX(), chunkSnapshot.getZ());
+        // 快照之后入队的变更比快照新，同步时不被快照的差异覆盖
+        chunkSyncExecutor.submit(pos, chunkSnapshot, writeQueue.getSequence(), world.getMinHeight(), world.getMaxHeight(), priority);
+    }
+
+    private void syncChunk(ChunkPos pos, ChunkSnapshot chunkSnapshot, long writeSequence, int minY, int maxY) throws SQLException {
+        long scanStart = System.nanoTime();
+        ChunkScanResult scanned = chunkScanner.scan(chunkSnapshot, minY, maxY);
+        metrics.recordChunkScan(scanStart, scanned.size());
+        memoryIndex.install(pos.getUid(), pos.getX(), pos.getZ(), chunkSnapshot, scanned);
+        long syncStart = System.nanoTime();
+        chunkSynchronizer.sync(pos.getUid(), pos.getX(), pos.getZ(), scanned, writeSequence);
+        metrics.recordChunkSync(syncStart);
+    }
+
+    /**
+     * 区块到同世界最近玩家的距离平方 (以区块为单位)，用作同步优先级
+     * @return 世界中没有玩家时 (如预生成) 返回 Double.MAX_VALUE
+     */
+    private double nearestPlayerDistance(World world, int chunkX, int chunkZ) {
+        double nearest = Double.MAX_VALUE;
+        for (Player player : world.getPlayers()) {
+            Location loc = player.getLocation();
+            double dx = (loc.getBlockX() >> 4) - chunkX;
+            double dz = (loc.getBlockZ() >> 4) - chunkZ;
+            nearest = Math.min(nearest, dx * dx + dz * dz);
+        }
+        return nearest;
     }
 
     @EventHandler
     public void onChunkLoad(ChunkLoadEvent event) {
-        Chunk chunk = event.getChunk();
+        onChunkLoaded(event.getChunk());
+    }
+
+    private void onChunkLoaded(Chunk chunk) {
         ChunkSnapshot snapshot = chunk.getChunkSnapshot();
+        memoryIndex.beginLoad(chunk.getWorld().getUID().toString(), chunk.getX(), chunk.getZ(), snapshot);
         scanAndSyncChunk(snapshot, chunk.getWorld());
     }
 
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(ChunkUnloadEvent event) {
+        Chunk chunk = event.getChunk();
+        memoryIndex.unload(chunk.getWorld().getUID().toString(), chunk.getX(), chunk.getZ());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(WorldUnloadEvent event) {
+        memoryIndex.unloadWorld(event.getWorld().getUID().toString());
+    }
+
+    /**
+     * 一次事件中的多个方块变化
+     * 变更先整批进入写回队列，再更新指纹、内存索引和查询缓存 (指纹中计入的变更必须已经入队)，并发布到变化订阅
+     */
+    private final class BlockChangeBatch {
+        private final List<BlockMutation> mutations = new ArrayList<>();
+        private final List<Material> before = new ArrayList<>();
+        private final List<Material> after = new ArrayList<>();
 
+        private void add(Block block, Material previous, Material current) {
+            String worldUID = block.getWorld().getUID().toString();
+            mutations.add(current != null
+                    ? BlockMutation.upload(worldUID, block.getX(), block.getY(), block.getZ(), current.toString())
+                    : BlockMutation.delete(worldUID, block.getX(), block.getY(), block.getZ()));
+            before.add(previous);
+            after.add(current);
+        }
+
+        private void commit() {
+            if (mutations.isEmpty()) {
+                return;
+            }
+            writeQueue.enqueueAll(mutations);
+            for (int i = 0; i < mutations.size(); i++) {
+                BlockKey key = mutations.get(i).getKey();
+                Material previous = trackedOrNull(before.get(i));
+                Material current = trackedOrNull(after.get(i));
+                fingerprints.applyChange(key.getUid(), key.getX(), key.getY(), key.getZ(), previous, current);
+                memoryIndex.apply(key.getUid(), key.getX(), key.getY(), key.getZ(), after.get(i));
+                changeFeed.record(key.getUid(), key.getX(), key.getY(), key.getZ(), previous, current);
+            }
+            lookupCache.invalidate(mutations);
+        }
+    }
 }
@@ -0,0 +1,106 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Material;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+
+/**
+ * 一个区块在一个 tick 内的索引变化 (新增、移除、类型变化)，在主线程触发
+ * 来源包括方块放置、破坏、褪色、爆炸、燃烧、活塞和区块加载时的同步。
+ * 同一 tick 内同一坐标的多次变化合并为一条，最终与开始时相同的坐标不会出现。
+ * 坐标以 BlockCoords.pack 压缩保存，数组由所有监听器共享，请不要修改。
+ * 区块同步补齐的差异可能与之前的事件重复 (如写入数据库前区块被重新加载)，请按坐标幂等地处理。
+ */
+public class BlockIndexChangeEvent extends Event {
+
+    private static final HandlerList HANDLERS = new HandlerList();
+
+    private final String worldUid;
+    private final int chunkX;
+    private final int chunkZ;
+    private final long[] positions;
+    private final Material[] previous;
+    private final Material[] current;
+
+    public BlockIndexChangeEvent(String worldUid, int chunkX, int chunkZ, long[] positions, Material[] previous, Material[] current) {
+        this.worldUid = worldUid;
+        this.chunkX = chunkX;
+        this.chunkZ = chunkZ;
+        this.positions = positions;
+        this.previous = previous;
+        this.current = current;
+    }
+
+    public String getWorldUid() {
+        return worldUid;
+    }
+
+    public int getChunkX() {
+        return chunkX;
+    }
+
+    public int getChunkZ() {
+        return chunkZ;
+    }
+
+    /**
+     * 变化的坐标数
+     */
+    public int size() {
+        return positions.length;
+    }
+
+    /**
+     * 全部变化坐标 (BlockCoords.pack 压缩)
+     */
+    public long[] getPositions() {
+        return positions;
+    }
+
+    public int getX(int i) {
+        return BlockCoords.unpackX(positions[i]);
+    }
+
+    public int getY(int i) {
+        return BlockCoords.unpackY(positions[i]);
+    }
+
+    public int getZ(int i) {
+        return BlockCoords.unpackZ(positions[i]);
+    }
+
+    /**
+     * 第 i 个坐标变化前的类型，原来没有索引时为 null
+     */
+    public Material getPrevious(int i) {
+        return previous[i];
+    }
+
+    /**
+     * 第 i 个坐标变化后的类型，索引被移除时为 null
+     */
+    public Material getCurrent(int i) {
+        return current[i];
+    }
+
+    public boolean isAddition(int i) {
+        return previous[i] == null;
+    }
+
+    public boolean isRemoval(int i) {
+        return current[i] == null;
+    }
+
+    public boolean isTypeChange(int i) {
+        return previous[i] != null && current[i] != null;
+    }
+
+    @Override
+    public HandlerList getHandlers() {
+        return HANDLERS;
+    }
+
+    public static HandlerList getHandlerList() {
+        return HANDLERS;
+    }
+}
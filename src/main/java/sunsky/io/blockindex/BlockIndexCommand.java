@@ -0,0 +1,84 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Bukkit;
+import org.bukkit.World;
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandSender;
+import org.bukkit.command.TabExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * /blockindex 管理命令
+ */
+public class BlockIndexCommand implements TabExecutor {
+
+    private final BulkIndexer bulkIndexer;
+    private final BlockIndexMetrics metrics;
+    private final BlockLookupCache lookupCache;
+
+    public BlockIndexCommand(BulkIndexer bulkIndexer, BlockIndexMetrics metrics, BlockLookupCache lookupCache) {
+        this.bulkIndexer = bulkIndexer;
+        this.metrics = metrics;
+        this.lookupCache = lookupCache;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        if (args.length >= 1 && "stats".equalsIgnoreCase(args[0])) {
+            if (args.length >= 2 && "reset".equalsIgnoreCase(args[1])) {
+                metrics.reset();
+                sender.sendMessage("运行指标已清空");
+                return true;
+            }
+            for (String line : metrics.report()) {
+                sender.sendMessage(line);
+            }
+            sender.sendMessage("查询缓存: " + lookupCache);
+            return true;
+        }
+        if (args.length >= 2 && "bulkindex".equalsIgnoreCase(args[0])) {
+            World world = Bukkit.getWorld(args[1]);
+            if (world == null) {
+                sender.sendMessage("未找到世界: " + args[1]);
+                return true;
+            }
+            if (bulkIndexer.isRunning(world)) {
+                sender.sendMessage("世界 " + world.getName() + " 正在批量索引");
+                return true;
+            }
+            boolean reset = args.length >= 3 && "reset".equalsIgnoreCase(args[2]);
+            if (bulkIndexer.start(world, reset)) {
+                sender.sendMessage("已开始批量索引世界 " + world.getName() + "，进度见控制台日志");
+            } else {
+                sender.sendMessage("世界 " + world.getName() + " 没有可读取的区域文件目录");
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public List<String> onTabComplete(CommandSender sender, Command command, String alias, String[] args) {
+        List<String> completions = new ArrayList<>();
+        if (args.length == 1) {
+            completions.add("bulkindex");
+            completions.add("stats");
+        } else if (args.length == 2 && "stats".equalsIgnoreCase(args[0])) {
+            completions.add("reset");
+        } else if (args.length == 2 && "bulkindex".equalsIgnoreCase(args[0])) {
+            for (World world : Bukkit.getWorlds()) {
+                completions.add(world.getName());
+            }
+        } else if (args.length == 3 && "bulkindex".equalsIgnoreCase(args[0])) {
+            completions.add("reset");
+        } else {
+            return Collections.emptyList();
+        }
+        String prefix = args[args.length - 1].toLowerCase();
+        completions.removeIf(completion -> !completion.toLowerCase().startsWith(prefix));
+        return completions;
+    }
+}
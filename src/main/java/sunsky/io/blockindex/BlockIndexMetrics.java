@@ -0,0 +1,240 @@
+package sunsky.io.blockindex;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 插件运行指标：存储操作与区块扫描同步的耗时直方图、扫描命中数、错误与重连次数、各队列深度、主线程调度每 tick 的耗时
+ * 可通过 /blockindex stats 查看，也以 JMX MXBean 暴露，供监控系统采集与告警
+ */
+public class BlockIndexMetrics implements BlockIndexMetricsMXBean {
+
+    private static final String OBJECT_NAME = "sunsky.io.blockindex:type=Metrics";
+
+    private final Map<String, Histogram> storageLatency = new ConcurrentHashMap<>();
+    private final Histogram chunkScanLatency = new Histogram();
+    private final Histogram chunkSyncLatency = new Histogram();
+    private final Histogram blocksPerChunk = new Histogram();
+    private final Histogram dispatchLatency = new Histogram();
+    private final LongAdder dispatchOverruns = new LongAdder();
+    private final LongAdder storageErrors = new LongAdder();
+    private final LongAdder reconnectAttempts = new LongAdder();
+    private final LongAdder reconnectFailures = new LongAdder();
+
+    private volatile IntSupplier writeQueueDepth = () -> 0;
+    private volatile IntSupplier chunkSyncQueueDepth = () -> 0;
+    private volatile IntSupplier ioQueueDepth = () -> 0;
+    private volatile IntSupplier dispatcherQueueDepth = () -> 0;
+    private ObjectName registeredName;
+
+    /**
+     * 记录一次存储操作
+     * @param operation 操作名
+     * @param startNanos 操作开始时的 System.nanoTime()
+     * @param failed 操作是否抛出了异常
+     */
+    public void recordStorage(String operation, long startNanos, boolean failed) {
+        storageLatency.computeIfAbsent(operation, k -> new Histogram()).record(micros(startNanos));
+        if (failed) {
+            storageErrors.increment();
+        }
+    }
+
+    /**
+     * 记录一次区块扫描
+     * @param startNanos 扫描开始时的 System.nanoTime()
+     * @param blocks 扫描出的被追踪方块数
+     */
+    public void recordChunkScan(long startNanos, int blocks) {
+        chunkScanLatency.record(micros(startNanos));
+        blocksPerChunk.record(blocks);
+    }
+
+    /**
+     * 记录一次区块同步
+     * @param startNanos 同步开始时的 System.nanoTime()
+     */
+    public void recordChunkSync(long startNanos) {
+        chunkSyncLatency.record(micros(startNanos));
+    }
+
+    /**
+     * 记录一次数据库重连
+     * @param succeeded 是否连接成功
+     */
+    public void recordReconnect(boolean succeeded) {
+        reconnectAttempts.increment();
+        if (!succeeded) {
+            reconnectFailures.increment();
+        }
+    }
+
+    /**
+     * 记录主线程调度器一个 tick 的执行
+     * @param startNanos 开始执行时的 System.nanoTime()
+     * @param overrun 本 tick 的执行时间是否超出预算 (至少执行一个任务，单个任务也可能超出)
+     */
+    public void recordDispatch(long startNanos, boolean overrun) {
+        dispatchLatency.record(micros(startNanos));
+        if (overrun) {
+            dispatchOverruns.increment();
+        }
+    }
+
+    /**
+     * 绑定各队列的深度
+     */
+    public void bindQueues(IntSupplier writeQueueDepth, IntSupplier chunkSyncQueueDepth, IntSupplier ioQueueDepth, IntSupplier dispatcherQueueDepth) {
+        this.writeQueueDepth = writeQueueDepth;
+        this.chunkSyncQueueDepth = chunkSyncQueueDepth;
+        this.ioQueueDepth = ioQueueDepth;
+        this.dispatcherQueueDepth = dispatcherQueueDepth;
+    }
+
+    /**
+     * 注册到平台 MBeanServer，注册失败 (如同名 MBean 未注销) 只记录警告
+     */
+    public synchronized void register(Logger logger) {
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            registeredName = name;
+        } catch (JMException e) {
+            logger.log(Level.WARNING, "JMX 指标注册失败", e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        } catch (JMException ignored) {
+            // 已被注销
+        }
+        registeredName = null;
+    }
+
+    /**
+     * 供命令输出的文本报告
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        lines.add("队列: 写回 " + getWriteQueueDepth() + "，区块同步 " + getChunkSyncQueueDepth() + "，异步查询 " + getIoQueueDepth()
+                + "，主线程调度 " + getDispatcherQueueDepth());
+        lines.add("存储错误 " + getStorageErrors() + "，重连 " + getReconnectAttempts() + " 次 (失败 " + getReconnectFailures() + " 次)");
+        lines.add("区块扫描 (微秒): " + getChunkScanLatency());
+        lines.add("区块同步 (微秒): " + getChunkSyncLatency());
+        lines.add("每区块方块数: " + getBlocksPerChunk());
+        lines.add("主线程调度每 tick (微秒): " + getDispatchLatency() + "，超出预算 " + getDispatchOverruns() + " 次");
+        for (Map.Entry<String, HistogramSummary> entry : getStorageLatency().entrySet()) {
+            lines.add(entry.getKey() + " (微秒): " + entry.getValue());
+        }
+        return lines;
+    }
+
+    @Override
+    public Map<String, HistogramSummary> getStorageLatency() {
+        Map<String, HistogramSummary> summaries = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : storageLatency.entrySet()) {
+            summaries.put(entry.getKey(), entry.getValue().summary());
+        }
+        return summaries;
+    }
+
+    @Override
+    public HistogramSummary getChunkScanLatency() {
+        return chunkScanLatency.summary();
+    }
+
+    @Override
+    public HistogramSummary getChunkSyncLatency() {
+        return chunkSyncLatency.summary();
+    }
+
+    @Override
+    public HistogramSummary getBlocksPerChunk() {
+        return blocksPerChunk.summary();
+    }
+
+    @Override
+    public HistogramSummary getDispatchLatency() {
+        return dispatchLatency.summary();
+    }
+
+    @Override
+    public long getDispatchOverruns() {
+        return dispatchOverruns.sum();
+    }
+
+    @Override
+    public long getStorageErrors() {
+        return storageErrors.sum();
+    }
+
+    @Override
+    public long getReconnectAttempts() {
+        return reconnectAttempts.sum();
+    }
+
+    @Override
+    public long getReconnectFailures() {
+        return reconnectFailures.sum();
+    }
+
+    @Override
+    public int getWriteQueueDepth() {
+        return writeQueueDepth.getAsInt();
+    }
+
+    @Override
+    public int getChunkSyncQueueDepth() {
+        return chunkSyncQueueDepth.getAsInt();
+    }
+
+    @Override
+    public int getIoQueueDepth() {
+        return ioQueueDepth.getAsInt();
+    }
+
+    @Override
+    public int getDispatcherQueueDepth() {
+        return dispatcherQueueDepth.getAsInt();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram histogram : storageLatency.values()) {
+            histogram.reset();
+        }
+        chunkScanLatency.reset();
+        chunkSyncLatency.reset();
+        blocksPerChunk.reset();
+        dispatchLatency.reset();
+        dispatchOverruns.reset();
+        storageErrors.reset();
+        reconnectAttempts.reset();
+        reconnectFailures.reset();
+    }
+
+    private static long micros(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+    }
+}
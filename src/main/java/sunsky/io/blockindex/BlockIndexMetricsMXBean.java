@@ -0,0 +1,71 @@
+package sunsky.io.blockindex;
+
+import java.util.Map;
+
+/**
+ * 通过 JMX 暴露的运行指标 (ObjectName 为 sunsky.io.blockindex:type=Metrics)
+ * 耗时单位均为微秒
+ */
+public interface BlockIndexMetricsMXBean {
+
+    /**
+     * 各存储操作的耗时，键为 BlockStorage 的方法名
+     */
+    Map<String, HistogramSummary> getStorageLatency();
+
+    /**
+     * 区块扫描耗时
+     */
+    HistogramSummary getChunkScanLatency();
+
+    /**
+     * 区块扫描后与存储同步的耗时 (指纹未变化时很短)
+     */
+    HistogramSummary getChunkSyncLatency();
+
+    /**
+     * 每个区块扫描出的被追踪方块数
+     */
+    HistogramSummary getBlocksPerChunk();
+
+    /**
+     * 主线程调度器每 tick 的执行时间 (只统计有任务的 tick)
+     */
+    HistogramSummary getDispatchLatency();
+
+    /**
+     * 主线程调度器执行时间超出预算的 tick 数
+     */
+    long getDispatchOverruns();
+
+    long getStorageErrors();
+
+    long getReconnectAttempts();
+
+    long getReconnectFailures();
+
+    /**
+     * 写回队列中尚未写入的变更数
+     */
+    int getWriteQueueDepth();
+
+    /**
+     * 等待同步的区块数
+     */
+    int getChunkSyncQueueDepth();
+
+    /**
+     * 等待执行的异步 API 查询数
+     */
+    int getIoQueueDepth();
+
+    /**
+     * 等待在主线程执行的任务数
+     */
+    int getDispatcherQueueDepth();
+
+    /**
+     * 清空直方图与计数器
+     */
+    void reset();
+}
@@ -0,0 +1,61 @@
+package sunsky.io.blockindex;
+
+/**
+ * 方块索引的主键：世界UID + 方块坐标
+ */
+public final class BlockKey {
+
+    private final String uid;
+    private final int x;
+    private final int y;
+    private final int z;
+
+    public BlockKey(String uid, int x, int y, int z) {
+        this.uid = uid;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getY() {
+        return y;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BlockKey)) {
+            return false;
+        }
+        BlockKey other = (BlockKey) o;
+        return x == other.x && y == other.y && z == other.z && uid.equals(other.uid);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = uid.hashCode();
+        result = 31 * result + x;
+        result = 31 * result + y;
+        result = 31 * result + z;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return uid + "(" + x + ", " + y + ", " + z + ")";
+    }
+}
@@ -0,0 +1,426 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 数据库点查询与小范围计数的读穿缓存
+ * 按容量 (LRU) 和存活时间淘汰，没有索引的坐标也会缓存 (负缓存)。
+ * 插件自身的方块事件、区块同步和写回队列提交后都会精确失效受影响的坐标与计数；
+ * 写回队列中尚未提交的变更优先于缓存和数据库返回。
+ */
+public class BlockLookupCache {
+
+    private static final int INVALIDATION_HISTORY = 4096;
+
+    private final BlockStorage storage;
+    private final int pointCapacity;
+    private final int countCapacity;
+    private final long ttlNanos;
+    private final int maxCountChunks;
+
+    private final LinkedHashMap<BlockKey, PointEntry> points;
+    private final LinkedHashMap<CountKey, CountEntry> counts;
+    // 计数缓存按区块建立的反向索引，用于按坐标失效
+    private final Map<ChunkPos, Set<CountKey>> countsByChunk = new HashMap<>();
+    // 每次失效加一，加载开始时记下当前值
+    private long clock;
+    // 最近失效过的区块及其失效时的 clock；加载开始后所在区块失效过的结果不写入缓存
+    private final LinkedHashMap<ChunkPos, Long> invalidatedChunks;
+    // 已从 invalidatedChunks 淘汰的记录中最大的 clock，不在表中的区块按此值判断
+    private long invalidationFloor;
+
+    private volatile BlockWriteQueue writeQueue;
+
+    private long hits;
+    private long misses;
+    private long negativeHits;
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+
+    /**
+     * @param storage 存储后端
+     * @param pointCapacity 点查询缓存条目上限
+     * @param countCapacity 计数缓存条目上限
+     * @param ttlMillis 条目存活时间
+     * @param maxCountChunks 覆盖区块数不超过该值的范围计数才会缓存
+     */
+    public BlockLookupCache(BlockStorage storage, int pointCapacity, int countCapacity, long ttlMillis, int maxCountChunks) {
+        this.storage = storage;
+        this.pointCapacity = Math.max(0, pointCapacity);
+        this.countCapacity = Math.max(0, countCapacity);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0L, ttlMillis));
+        this.maxCountChunks = Math.max(0, maxCountChunks);
+        this.points = new LinkedHashMap<BlockKey, PointEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<BlockKey, PointEntry> eldest) {
+                if (size() > BlockLookupCache.this.pointCapacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.invalidatedChunks = new LinkedHashMap<ChunkPos, Long>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ChunkPos, Long> eldest) {
+                if (size() > INVALIDATION_HISTORY) {
+                    invalidationFloor = Math.max(invalidationFloor, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+        this.counts = new LinkedHashMap<CountKey, CountEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CountKey, CountEntry> eldest) {
+                if (size() > BlockLookupCache.this.countCapacity) {
+                    evictions++;
+                    unindex(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 设置写回队列，用于读取尚未提交的变更
+     */
+    public void setWriteQueue(BlockWriteQueue writeQueue) {
+        this.writeQueue = writeQueue;
+    }
+
+    /**
+     * 读取坐标的方块类型
+     * @return 方块类型，没有索引时返回 null
+     * @throws SQLException 如果数据库操作失败
+     */
+    public Material getBlockTypeAtLocation(UUID serverUUID, Location location) throws SQLException {
+        BlockKey key = new BlockKey(serverUUID.toString(), location.getBlockX(), location.getBlockY(), location.getBlockZ());
+        BlockMutation pending = peekPending(key);
+        if (pending != null) {
+            return pending.isDelete() ? null : Material.getMaterial(pending.getBlockType());
+        }
+        long loadGeneration;
+        synchronized (this) {
+            PointEntry entry = getPoint(key);
+            if (entry != null) {
+                return entry.material;
+            }
+            loadGeneration = clock;
+        }
+        Material material = storage.getBlockTypeAtLocation(serverUUID, location);
+        putPoint(key, material, loadGeneration);
+        return material;
+    }
+
+    /**
+     * 批量读取坐标的方块类型，未命中缓存的坐标合并为一次数据库查询
+     * @return 以传入的坐标为键的方块类型，没有索引的坐标不在结果中
+     * @throws SQLException 如果数据库操作失败
+     */
+    public Map<Location, Material> getBlockTypesAtLocations(UUID serverUUID, Collection<Location> locations) throws SQLException {
+        String uid = serverUUID.toString();
+        Map<Location, Material> result = new HashMap<>();
+        List<Location> missing = new ArrayList<>();
+        long loadGeneration;
+        synchronized (this) {
+            for (Location location : locations) {
+                BlockKey key = new BlockKey(uid, location.getBlockX(), location.getBlockY(), location.getBlockZ());
+                BlockMutation pending = peekPending(key);
+                PointEntry entry = pending == null ? getPoint(key) : null;
+                if (pending != null) {
+                    Material material = pending.isDelete() ? null : Material.getMaterial(pending.getBlockType());
+                    if (material != null) {
+                        result.put(location, material);
+                    }
+                } else if (entry != null) {
+                    if (entry.material != null) {
+                        result.put(location, entry.material);
+                    }
+                } else {
+                    missing.add(location);
+                }
+            }
+            loadGeneration = clock;
+        }
+        if (missing.isEmpty()) {
+            return result;
+        }
+        Map<Location, Material> loaded = storage.getBlockTypesAtLocations(serverUUID, missing);
+        result.putAll(loaded);
+        for (Location location : missing) {
+            putPoint(new BlockKey(uid, location.getBlockX(), location.getBlockY(), location.getBlockZ()), loaded.get(location), loadGeneration);
+        }
+        return result;
+    }
+
+    /**
+     * 统计范围内的方块数，覆盖区块数较少的范围会被缓存
+     * @throws SQLException 如果数据库操作失败
+     */
+    public int countBlocksInRange(UUID serverUUID, Location location, int range) throws SQLException {
+        BlockBox box = BlockBox.around(location.getBlockX(), location.getBlockY(), location.getBlockZ(), range);
+        long chunks = (long) ((box.getMaxX() >> 4) - (box.getMinX() >> 4) + 1) * ((box.getMaxZ() >> 4) - (box.getMinZ() >> 4) + 1);
+        if (chunks > maxCountChunks) {
+            return storage.countBlocksInRange(serverUUID, location, range);
+        }
+        CountKey key = new CountKey(serverUUID.toString(), box);
+        long loadGeneration;
+        synchronized (this) {
+            CountEntry entry = counts.get(key);
+            if (entry != null && !isExpired(entry.loadedAt)) {
+                hits++;
+                return entry.count;
+            }
+            if (entry != null) {
+                expirations++;
+                counts.remove(key);
+                unindex(key);
+            }
+            misses++;
+            loadGeneration = clock;
+        }
+        int count = storage.countBlocksInRange(serverUUID, location, range);
+        synchronized (this) {
+            if (countCapacity > 0 && !invalidatedSince(key, loadGeneration)) {
+                counts.put(key, new CountEntry(count, System.nanoTime()));
+                index(key);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 失效一个坐标的点查询缓存，以及包含该坐标的范围计数
+     */
+    public synchronized void invalidate(String uid, int x, int y, int z) {
+        clock++;
+        invalidations++;
+        points.remove(new BlockKey(uid, x, y, z));
+        ChunkPos chunk = new ChunkPos(uid, x >> 4, z >> 4);
+        // 先移除再放入，使该区块排到最后 (最晚淘汰)
+        invalidatedChunks.remove(chunk);
+        invalidatedChunks.put(chunk, clock);
+        Set<CountKey> keys = countsByChunk.get(chunk);
+        if (keys == null) {
+            return;
+        }
+        List<CountKey> affected = new ArrayList<>();
+        for (CountKey key : keys) {
+            if (key.box.contains(x, y, z)) {
+                affected.add(key);
+            }
+        }
+        for (CountKey key : affected) {
+            counts.remove(key);
+            unindex(key);
+        }
+    }
+
+    /**
+     * 失效一批变更涉及的坐标
+     */
+    public void invalidate(Collection<BlockMutation> mutations) {
+        for (BlockMutation mutation : mutations) {
+            BlockKey key = mutation.getKey();
+            invalidate(key.getUid(), key.getX(), key.getY(), key.getZ());
+        }
+    }
+
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * 命中中属于负缓存 (坐标没有索引) 的次数
+     */
+    public synchronized long getNegativeHitCount() {
+        return negativeHits;
+    }
+
+    /**
+     * 因容量淘汰的条目数
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * 因超过存活时间淘汰的条目数
+     */
+    public synchronized long getExpirationCount() {
+        return expirations;
+    }
+
+    public synchronized long getInvalidationCount() {
+        return invalidations;
+    }
+
+    public synchronized int getPointSize() {
+        return points.size();
+    }
+
+    public synchronized int getCountSize() {
+        return counts.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long lookups = hits + misses;
+        return "点查询 " + points.size() + "/" + pointCapacity + "，计数 " + counts.size() + "/" + countCapacity
+                + "，命中 " + hits + " (负缓存 " + negativeHits + ")，未命中 " + misses
+                + "，命中率 " + (lookups == 0 ? 0 : hits * 100 / lookups) + "%"
+                + "，容量淘汰 " + evictions + "，过期 " + expirations + "，失效 " + invalidations;
+    }
+
+    private BlockMutation peekPending(BlockKey key) {
+        BlockWriteQueue queue = writeQueue;
+        return queue == null ? null : queue.peek(key);
+    }
+
+    /**
+     * 调用方需持有 this 的锁
+     */
+    private PointEntry getPoint(BlockKey key) {
+        PointEntry entry = points.get(key);
+        if (entry != null && isExpired(entry.loadedAt)) {
+            expirations++;
+            points.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        if (entry.material == null) {
+            negativeHits++;
+        }
+        return entry;
+    }
+
+    private synchronized void putPoint(BlockKey key, Material material, long loadGeneration) {
+        if (pointCapacity > 0 && !invalidatedSince(new ChunkPos(key.getUid(), key.getX() >> 4, key.getZ() >> 4), loadGeneration)) {
+            points.put(key, new PointEntry(material, System.nanoTime()));
+        }
+    }
+
+    /**
+     * 区块在 loadGeneration 之后是否失效过 (调用方需持有 this 的锁)
+     */
+    private boolean invalidatedSince(ChunkPos chunk, long loadGeneration) {
+        Long stamp = invalidatedChunks.get(chunk);
+        return (stamp != null ? stamp : invalidationFloor) > loadGeneration;
+    }
+
+    /**
+     * 范围覆盖的区块在 loadGeneration 之后是否失效过 (调用方需持有 this 的锁)
+     */
+    private boolean invalidatedSince(CountKey key, long loadGeneration) {
+        BlockBox box = key.box;
+        for (int chunkX = box.getMinX() >> 4; chunkX <= box.getMaxX() >> 4; chunkX++) {
+            for (int chunkZ = box.getMinZ() >> 4; chunkZ <= box.getMaxZ() >> 4; chunkZ++) {
+                if (invalidatedSince(new ChunkPos(key.uid, chunkX, chunkZ), loadGeneration)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean isExpired(long loadedAt) {
+        return System.nanoTime() - loadedAt > ttlNanos;
+    }
+
+    private void index(CountKey key) {
+        BlockBox box = key.box;
+        for (int chunkX = box.getMinX() >> 4; chunkX <= box.getMaxX() >> 4; chunkX++) {
+            for (int chunkZ = box.getMinZ() >> 4; chunkZ <= box.getMaxZ() >> 4; chunkZ++) {
+                countsByChunk.computeIfAbsent(new ChunkPos(key.uid, chunkX, chunkZ), pos -> new HashSet<>()).add(key);
+            }
+        }
+    }
+
+    private void unindex(CountKey key) {
+        BlockBox box = key.box;
+        for (int chunkX = box.getMinX() >> 4; chunkX <= box.getMaxX() >> 4; chunkX++) {
+            for (int chunkZ = box.getMinZ() >> 4; chunkZ <= box.getMaxZ() >> 4; chunkZ++) {
+                ChunkPos pos = new ChunkPos(key.uid, chunkX, chunkZ);
+                Set<CountKey> keys = countsByChunk.get(pos);
+                if (keys != null) {
+                    keys.remove(key);
+                    if (keys.isEmpty()) {
+                        countsByChunk.remove(pos);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class PointEntry {
+        // null 表示该坐标没有索引
+        private final Material material;
+        private final long loadedAt;
+
+        private PointEntry(Material material, long loadedAt) {
+            this.material = material;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private static final class CountEntry {
+        private final int count;
+        private final long loadedAt;
+
+        private CountEntry(int count, long loadedAt) {
+            this.count = count;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private static final class CountKey {
+        private final String uid;
+        private final BlockBox box;
+
+        private CountKey(String uid, BlockBox box) {
+            this.uid = uid;
+            this.box = box;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CountKey)) {
+                return false;
+            }
+            CountKey other = (CountKey) o;
+            return uid.equals(other.uid) && box.equals(other.box);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * uid.hashCode() + box.hashCode();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 已加载区块的内存索引
+ * 按世界UID和压缩区块坐标分桶，每个区块以有序的局部坐标数组 + Material 序号数组保存被追踪的方块。
+ * 区块加载时登记，扫描完成后装入数据，卸载时移除；方块事件直接更新内存。
+ * 查询范围内所有区块都已驻留内存时由内存直接回答，否则由调用方回退到数据库。
+ */
+public class BlockMemoryIndex {
+
+    /** 区块未驻留内存，需要回退到数据库 */
+    public static final int NOT_RESIDENT = -2;
+    /** 区块已驻留内存，但该坐标没有被追踪的方块 */
+    public static final int ABSENT = -1;
+
+    private static final Material[] MATERIALS = Material.values();
+
+    private final Map<String, Map<Long, ChunkBucket>> worlds = new ConcurrentHashMap<>();
+
+    /**
+     * 区块加载时登记 (主线程)
+     * 登记后到扫描结果装入前发生的方块变化会被暂存，装入时重放
+     * @param snapshot 本次加载取得的区块快照，只有以该快照扫描出的结果才会被装入
+     */
+    public void beginLoad(String uid, int chunkX, int chunkZ, ChunkSnapshot snapshot) {
+        Map<Long, ChunkBucket> chunks = worlds.computeIfAbsent(uid, k -> new ConcurrentHashMap<>());
+        chunks.put(BlockCoords.chunkKey(chunkX, chunkZ), new ChunkBucket(snapshot));
+    }
+
+    /**
+     * 装入区块扫描结果
+     * @param snapshot 扫描所用的快照
+     * @param scanned 扫描结果
+     */
+    public void install(String uid, int chunkX, int chunkZ, ChunkSnapshot snapshot, ChunkScanResult scanned) {
+        ChunkBucket bucket = getBucket(uid, chunkX, chunkZ);
+        if (bucket == null) {
+            return;
+        }
+        int size = scanned.size();
+        long[] sorted = new long[size];
+        for (int i = 0; i < size; i++) {
+            long pos = scanned.getPosition(i);
+            int local = localPos(BlockCoords.unpackX(pos), BlockCoords.unpackY(pos), BlockCoords.unpackZ(pos));
+            // 高 32 位为局部坐标，低 16 位为类型序号，按坐标排序
+            sorted[i] = ((long) local << 32) | (scanned.getMaterialOrdinal(i) & 0xFFFFL);
+        }
+        Arrays.sort(sorted);
+        int[] positions = new int[size];
+        short[] materials = new short[size];
+        for (int i = 0; i < size; i++) {
+            positions[i] = (int) (sorted[i] >> 32);
+            materials[i] = (short) sorted[i];
+        }
+        bucket.install(snapshot, new ChunkData(positions, materials));
+    }
+
+    /**
+     * 区块卸载时移除
+     */
+    public void unload(String uid, int chunkX, int chunkZ) {
+        Map<Long, ChunkBucket> chunks = worlds.get(uid);
+        if (chunks != null) {
+            chunks.remove(BlockCoords.chunkKey(chunkX, chunkZ));
+        }
+    }
+
+    /**
+     * 世界卸载时移除该世界的全部区块
+     */
+    public void unloadWorld(String uid) {
+        worlds.remove(uid);
+    }
+
+    /**
+     * 记录方块变化
+     * @param material 变化后的被追踪类型，为 null 时移除该坐标
+     */
+    public void apply(String uid, int x, int y, int z, Material material) {
+        ChunkBucket bucket = getBucket(uid, x >> 4, z >> 4);
+        if (bucket != null) {
+            bucket.apply(localPos(x, y, z), material == null ? ABSENT : material.ordinal());
+        }
+    }
+
+    /**
+     * 区块是否已在服务器中加载 (包括扫描结果尚未装入的区块)
+     */
+    public boolean isLoaded(String uid, int chunkX, int chunkZ) {
+        return getBucket(uid, chunkX, chunkZ) != null;
+    }
+
+    /**
+     * 区块是否已驻留内存 (扫描结果已装入)
+     */
+    public boolean isResident(String uid, int chunkX, int chunkZ) {
+        ChunkBucket bucket = getBucket(uid, chunkX, chunkZ);
+        return bucket != null && bucket.data != null;
+    }
+
+    /**
+     * 查询坐标处的方块类型序号
+     * @return Material 序号；没有被追踪的方块时返回 ABSENT；区块未驻留时返回 NOT_RESIDENT
+     */
+    public int lookup(String uid, int x, int y, int z) {
+        ChunkBucket bucket = getBucket(uid, x >> 4, z >> 4);
+        ChunkData data = bucket == null ? null : bucket.data;
+        if (data == null) {
+            return NOT_RESIDENT;
+        }
+        int index = Arrays.binarySearch(data.positions, localPos(x, y, z));
+        return index >= 0 ? data.materials[index] : ABSENT;
+    }
+
+    /**
+     * 将 lookup 返回的序号转换为方块类型
+     * @return 方块类型，ABSENT 或 NOT_RESIDENT 时返回 null
+     */
+    public static Material toMaterial(int ordinal) {
+        return ordinal >= 0 ? MATERIALS[ordinal] : null;
+    }
+
+    /**
+     * 遍历长方体范围内的方块 (边界均包含)
+     * @param material 只遍历该类型，为 null 时遍历全部类型
+     * @return 范围内的区块全部驻留内存时返回 true；否则不做任何遍历并返回 false
+     */
+    public boolean forEachInBox(String uid, int minX, int minY, int minZ, int maxX, int maxY, int maxZ,
+                                Material material, BlockVisitor visitor) {
+        List<ChunkData> resident = residentChunks(uid, minX, minZ, maxX, maxZ);
+        if (resident == null) {
+            return false;
+        }
+        int filter = material == null ? ABSENT : material.ordinal();
+        int minChunkX = minX >> 4;
+        int minChunkZ = minZ >> 4;
+        int chunksZ = (maxZ >> 4) - minChunkZ + 1;
+        int lowKey = localPos(0, minY, 0);
+        int highKey = localPos(15, maxY, 15);
+        for (int i = 0; i < resident.size(); i++) {
+            ChunkData data = resident.get(i);
+            int baseX = (minChunkX + i / chunksZ) << 4;
+            int baseZ = (minChunkZ + i % chunksZ) << 4;
+            int from = lowerBound(data.positions, lowKey);
+            for (int j = from; j < data.positions.length && data.positions[j] <= highKey; j++) {
+                if (filter != ABSENT && data.materials[j] != filter) {
+                    continue;
+                }
+                int local = data.positions[j];
+                int x = baseX + (local & 15);
+                int z = baseZ + ((local >> 4) & 15);
+                if (x < minX || x > maxX || z < minZ || z > maxZ) {
+                    continue;
+                }
+                if (!visitor.visit(x, local >> 8, z, MATERIALS[data.materials[j]])) {
+                    return true;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 遍历单个区块在 [minY, maxY] 高度内的全部方块
+     * @return 区块驻留内存时返回 true；否则不做任何遍历并返回 false
+     */
+    public boolean forEachInChunk(String uid, int chunkX, int chunkZ, int minY, int maxY, BlockVisitor visitor) {
+        ChunkBucket bucket = getBucket(uid, chunkX, chunkZ);
+        ChunkData data = bucket == null ? null : bucket.data;
+        if (data == null) {
+            return false;
+        }
+        int baseX = chunkX << 4;
+        int baseZ = chunkZ << 4;
+        int highKey = localPos(15, maxY, 15);
+        for (int j = lowerBound(data.positions, localPos(0, minY, 0)); j < data.positions.length && data.positions[j] <= highKey; j++) {
+            int local = data.positions[j];
+            if (!visitor.visit(baseX + (local & 15), local >> 8, baseZ + ((local >> 4) & 15), MATERIALS[data.materials[j]])) {
+                break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 统计长方体范围内的方块数 (边界均包含)
+     * @param material 只统计该类型，为 null 时统计全部类型
+     * @return 方块数；范围内有区块未驻留内存时返回 -1
+     */
+    public int countInBox(String uid, int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Material material) {
+        final int[] count = {0};
+        boolean resident = forEachInBox(uid, minX, minY, minZ, maxX, maxY, maxZ, material, (x, y, z, type) -> {
+            count[0]++;
+            return true;
+        });
+        return resident ? count[0] : -1;
+    }
+
+    /**
+     * 按 X 优先、Z 次之的顺序取出范围内的区块数据
+     * @return 有区块未驻留时返回 null
+     */
+    private List<ChunkData> residentChunks(String uid, int minX, int minZ, int maxX, int maxZ) {
+        Map<Long, ChunkBucket> chunks = worlds.get(uid);
+        if (chunks == null) {
+            return null;
+        }
+        List<ChunkData> resident = new ArrayList<>();
+        for (int chunkX = minX >> 4; chunkX <= maxX >> 4; chunkX++) {
+            for (int chunkZ = minZ >> 4; chunkZ <= maxZ >> 4; chunkZ++) {
+                ChunkBucket bucket = chunks.get(BlockCoords.chunkKey(chunkX, chunkZ));
+                ChunkData data = bucket == null ? null : bucket.data;
+                if (data == null) {
+                    return null;
+                }
+                resident.add(data);
+            }
+        }
+        return resident;
+    }
+
+    private ChunkBucket getBucket(String uid, int chunkX, int chunkZ) {
+        Map<Long, ChunkBucket> chunks = worlds.get(uid);
+        return chunks == null ? null : chunks.get(BlockCoords.chunkKey(chunkX, chunkZ));
+    }
+
+    /**
+     * 区块内局部坐标：(y << 8) | (z << 4) | x，按数值排序即按 (y, z, x) 排序
+     */
+    private static int localPos(int x, int y, int z) {
+        return (y << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    private static int lowerBound(int[] positions, int key) {
+        int index = Arrays.binarySearch(positions, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * 一个区块的索引数据，不可变，更新时整体替换
+     */
+    private static final class ChunkData {
+        private final int[] positions;
+        private final short[] materials;
+
+        private ChunkData(int[] positions, short[] materials) {
+            this.positions = positions;
+            this.materials = materials;
+        }
+
+        private ChunkData with(int local, int ordinal) {
+            int index = Arrays.binarySearch(positions, local);
+            if (index >= 0) {
+                if (ordinal == ABSENT) {
+                    int[] newPositions = new int[positions.length - 1];
+                    short[] newMaterials = new short[materials.length - 1];
+                    System.arraycopy(positions, 0, newPositions, 0, index);
+                    System.arraycopy(positions, index + 1, newPositions, index, positions.length - index - 1);
+                    System.arraycopy(materials, 0, newMaterials, 0, index);
+                    System.arraycopy(materials, index + 1, newMaterials, index, materials.length - index - 1);
+                    return new ChunkData(newPositions, newMaterials);
+                }
+                short[] newMaterials = materials.clone();
+                newMaterials[index] = (short) ordinal;
+                return new ChunkData(positions, newMaterials);
+            }
+            if (ordinal == ABSENT) {
+                return this;
+            }
+            int insert = -index - 1;
+            int[] newPositions = new int[positions.length + 1];
+            short[] newMaterials = new short[materials.length + 1];
+            System.arraycopy(positions, 0, newPositions, 0, insert);
+            System.arraycopy(positions, insert, newPositions, insert + 1, positions.length - insert);
+            System.arraycopy(materials, 0, newMaterials, 0, insert);
+            System.arraycopy(materials, insert, newMaterials, insert + 1, materials.length - insert);
+            newPositions[insert] = local;
+            newMaterials[insert] = (short) ordinal;
+            return new ChunkData(newPositions, newMaterials);
+        }
+    }
+
+    /**
+     * 区块桶：扫描结果装入前 data 为 null，期间的变化暂存在 pending 中
+     */
+    private static final class ChunkBucket {
+        private final ChunkSnapshot expected;
+        private final List<int[]> pending = new ArrayList<>();
+        private volatile ChunkData data;
+
+        private ChunkBucket(ChunkSnapshot expected) {
+            this.expected = expected;
+        }
+
+        private synchronized void install(ChunkSnapshot snapshot, ChunkData scanned) {
+            // 旧快照 (区块在同步前已被卸载并重新加载) 的结果不装入
+            if (snapshot != expected || data != null) {
+                return;
+            }
+            ChunkData result = scanned;
+            for (int[] op : pending) {
+                result = result.with(op[0], op[1]);
+            }
+            pending.clear();
+            data = result;
+        }
+
+        private synchronized void apply(int local, int ordinal) {
+            if (data == null) {
+                pending.add(new int[]{local, ordinal});
+            } else {
+                data = data.with(local, ordinal);
+            }
+        }
+    }
+}
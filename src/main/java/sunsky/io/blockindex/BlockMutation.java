@@ -0,0 +1,42 @@
+package sunsky.io.blockindex;
+
+/**
+ * 一条待写入数据库的索引变更
+ * blockType 为 null 时表示删除该坐标的索引
+ */
+public final class BlockMutation {
+
+    private final BlockKey key;
+    private final String blockType;
+
+    private BlockMutation(BlockKey key, String blockType) {
+        this.key = key;
+        this.blockType = blockType;
+    }
+
+    /**
+     * 创建一条写入/覆盖索引的变更
+     */
+    public static BlockMutation upload(String uid, int x, int y, int z, String blockType) {
+        return new BlockMutation(new BlockKey(uid, x, y, z), blockType);
+    }
+
+    /**
+     * 创建一条删除索引的变更
+     */
+    public static BlockMutation delete(String uid, int x, int y, int z) {
+        return new BlockMutation(new BlockKey(uid, x, y, z), null);
+    }
+
+    public BlockKey getKey() {
+        return key;
+    }
+
+    public String getBlockType() {
+        return blockType;
+    }
+
+    public boolean isDelete() {
+        return blockType == null;
+    }
+}
@@ -0,0 +1,71 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 方块索引的存储后端
+ * BlockDataAPI、写回队列、区块同步与查询缓存只通过该接口读写索引，不关心数据保存在哪里。
+ * 实现需要线程安全：写入来自写回队列和区块同步线程，查询来自 API 的 IO 线程池。
+ */
+public interface BlockStorage {
+
+    /**
+     * 存储是否可用
+     */
+    boolean isConnected();
+
+    /**
+     * 在一个事务中写入一批变更，并保存区块指纹
+     * @param mutations 变更，同一坐标只能出现一次
+     * @param fingerprints 需要一起保存的区块指纹
+     * @throws SQLException 如果写入失败，此时整批变更都不生效
+     */
+    void applyBlockMutations(Collection<BlockMutation> mutations, Map<ChunkPos, Long> fingerprints) throws SQLException;
+
+    void uploadBlockData(String uid, int x, int y, int z, String blockType) throws SQLException;
+
+    void deleteBlockData(String uid, int x, int y, int z) throws SQLException;
+
+    /**
+     * 读取区块上次同步时记录的指纹
+     * @return 指纹，没有记录时返回 null
+     */
+    Long getChunkFingerprint(String uid, int chunkX, int chunkZ) throws SQLException;
+
+    /**
+     * 读取区块内已索引的方块
+     * @return 以 BlockCoords.pack 压缩的坐标为键的方块类型名称
+     */
+    Map<Long, String> getChunkBlockData(String uid, int chunkX, int chunkZ) throws SQLException;
+
+    Material getBlockTypeAtLocation(UUID serverUUID, Location location) throws SQLException;
+
+    Map<Location, Material> getBlockTypesAtLocations(UUID serverUUID, Collection<Location> locations) throws SQLException;
+
+    List<Location> getBlockLocationsInRange(UUID serverUUID, Location location, Material material, int range) throws SQLException;
+
+    Map<Material, List<Location>> getBlockLocationsInRange(UUID serverUUID, Location location, Set<Material> materials, int range) throws SQLException;
+
+    int countBlocksInRange(UUID serverUUID, Location location, int range) throws SQLException;
+
+    Map<String, Integer> countBlockTypesInRange(String uid, Location location, int range) throws SQLException;
+
+    /**
+     * 逐个遍历多个长方体范围内的方块，长方体之间不能重叠
+     * @param materials 只遍历这些类型，为 null 时遍历全部类型
+     */
+    void forEachBlockInBoxes(String uid, List<BlockBox> boxes, Collection<Material> materials, BlockVisitor visitor) throws SQLException;
+
+    /**
+     * 关闭存储，释放连接与文件
+     */
+    void closeDatabase() throws SQLException;
+}
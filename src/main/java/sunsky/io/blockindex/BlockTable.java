@@ -0,0 +1,104 @@
+package sunsky.io.blockindex;
+
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * 方块索引表的存储格式
+ * V1 (block_data)：uid 为 VARCHAR(36)，方块类型为名称字符串
+ * V2 (block_data_v2)：uid 为 BINARY(16)，方块类型为 block_material 字典中的编号，
+ * 另有区块键列 chunk_key (BlockCoords.chunkKey)，主键以 (uid, chunk_key) 开头
+ * V2_LEGACY (block_data_v2_legacy)：早期没有 chunk_key 列的 block_data_v2，启动时改名，由后台迁移复制到新表
+ * 查询语句按列名拼接，参数的写入与结果的读取由此类按格式转换。
+ */
+final class BlockTable {
+
+    static final BlockTable V1 = new BlockTable("block_data", "block_type", false, false);
+    static final BlockTable V2 = new BlockTable("block_data_v2", "material_id", true, true);
+    static final BlockTable V2_LEGACY = new BlockTable("block_data_v2_legacy", "material_id", true, false);
+
+    private final String name;
+    private final String materialColumn;
+    private final boolean compact;
+    private final boolean chunkKey;
+
+    private BlockTable(String name, String materialColumn, boolean compact, boolean chunkKey) {
+        this.name = name;
+        this.materialColumn = materialColumn;
+        this.compact = compact;
+        this.chunkKey = chunkKey;
+    }
+
+    String name() {
+        return name;
+    }
+
+    String materialColumn() {
+        return materialColumn;
+    }
+
+    boolean isCompact() {
+        return compact;
+    }
+
+    boolean hasChunkKey() {
+        return chunkKey;
+    }
+
+    void setUid(PreparedStatement stmt, int index, String uid) throws SQLException {
+        if (compact) {
+            stmt.setBytes(index, uuidBytes(uid));
+        } else {
+            stmt.setString(index, uid);
+        }
+    }
+
+    /**
+     * 读取结果中的世界 UID
+     */
+    String getUid(ResultSet rs) throws SQLException {
+        return compact ? uuidString(rs.getBytes("uid")) : rs.getString("uid");
+    }
+
+    /**
+     * @param blockType 方块类型名称，V2 格式下必须已在字典中 (见 MaterialDictionary.resolve)
+     */
+    void setMaterial(PreparedStatement stmt, int index, String blockType, MaterialDictionary dictionary) throws SQLException {
+        if (!compact) {
+            stmt.setString(index, blockType);
+            return;
+        }
+        Integer id = dictionary.cachedId(blockType);
+        if (id == null) {
+            throw new SQLException("Material " + blockType + " is not in the dictionary");
+        }
+        stmt.setInt(index, id);
+    }
+
+    /**
+     * 读取结果中的方块类型名称
+     */
+    String getMaterial(ResultSet rs, Connection connection, MaterialDictionary dictionary) throws SQLException {
+        if (!compact) {
+            return rs.getString(materialColumn);
+        }
+        return dictionary.nameOf(connection, rs.getInt(materialColumn));
+    }
+
+    static byte[] uuidBytes(String uid) {
+        UUID uuid = UUID.fromString(uid);
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    static String uuidString(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new UUID(buffer.getLong(), buffer.getLong()).toString();
+    }
+}
@@ -0,0 +1,19 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Material;
+
+/**
+ * 逐个接收查询结果中的方块，不为每个方块创建对象
+ */
+@FunctionalInterface
+public interface BlockVisitor {
+
+    /**
+     * @param x X坐标
+     * @param y Y坐标
+     * @param z Z坐标
+     * @param material 方块类型
+     * @return 返回 false 时停止遍历
+     */
+    boolean visit(int x, int y, int z, Material material);
+}
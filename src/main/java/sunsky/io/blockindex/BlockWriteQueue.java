@@ -0,0 +1,485 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * 索引变更的异步写回队列
+ * 主线程只负责入队，变更在异步线程中按数量或时间触发批量写入数据库。
+ * 同一坐标 (uid, x, y, z) 在一个刷新窗口内的多次变更只保留最后一次，
+ * 例如放置后立即破坏只会产生一条删除。
+ * 尚未提交的变更可通过 peek 读取，提交后失效查询缓存中对应的坐标。
+ * 设置了本地日志时，数据库不可用或写入失败的变更追加到日志中，数据库恢复后按批重放；
+ * 日志中还有变更时，新的变更同样追加在其后，保证同一坐标的写入顺序。
+ * 日志中尚未重放的变更在内存中按坐标保留最新的一条，peek 同样可以读取。
+ * 每次入队递增入队序号并记录近期变更的坐标与区块，区块同步据此丢弃比快照旧的差异 (applySnapshot)。
+ */
+public class BlockWriteQueue {
+
+    // 日志开头的同一批变更连续重放失败 (连接正常) 的次数上限，达到后逐条重放并隔离失败的变更
+    private static final int MAX_REPLAY_ATTEMPTS = 3;
+    // 记录入队序号的近期坐标数与区块数，更早的记录被淘汰后按已变化处理
+    private static final int RECENT_KEYS = 16384;
+    private static final int RECENT_CHUNKS = 4096;
+
+    private final Plugin plugin;
+    private final BlockStorage storage;
+    private final ChunkFingerprints fingerprints;
+    private final BlockLookupCache lookupCache;
+    private final int batchSize;
+    private final Object flushLock = new Object();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    private Map<BlockKey, BlockMutation> pending = new LinkedHashMap<>();
+    // 正在写入数据库的一批变更
+    private volatile Map<BlockKey, BlockMutation> inflight = Collections.emptyMap();
+    private BukkitTask flushTask;
+    private WriteJournal journal;
+    private int replayBatchSize;
+    private int replayFailures;
+    // 已记入本地日志、尚未重放的变更，按坐标保留最新的变更与日志中该坐标的记录数
+    private final Map<BlockKey, JournaledKey> journaled = new HashMap<>();
+    // 以下字段只在持有 this 时访问
+    private long sequence;
+    private final RecentStamps<BlockKey> recentKeys = new RecentStamps<>(RECENT_KEYS);
+    private final RecentStamps<ChunkPos> recentChunks = new RecentStamps<>(RECENT_CHUNKS);
+
+    /**
+     * @param plugin 插件实例
+     * @param storage 存储后端
+     * @param fingerprints 区块指纹，有变化的指纹与变更在同一事务中写入
+     * @param lookupCache 查询缓存，变更提交后失效对应的坐标
+     * @param batchSize 待写入变更达到该数量时立即触发一次刷新
+     */
+    public BlockWriteQueue(Plugin plugin, BlockStorage storage, ChunkFingerprints fingerprints, BlockLookupCache lookupCache, int batchSize) {
+        this.plugin = plugin;
+        this.storage = storage;
+        this.fingerprints = fingerprints;
+        this.lookupCache = lookupCache;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * 设置本地日志，在 start 之前调用
+     * @param journal 已打开的日志
+     * @param replayBatchSize 每批重放的变更数
+     */
+    void setJournal(WriteJournal journal, int replayBatchSize) {
+        this.journal = journal;
+        this.replayBatchSize = Math.max(1, replayBatchSize);
+        try {
+            // 上次运行留下的变更
+            addJournaled(journal.read(Integer.MAX_VALUE));
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.WARNING, "读取本地日志失败，重放完成前查询可能返回旧的索引: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 启动定时刷新
+     * @param intervalTicks 刷新间隔 (tick)
+     */
+    public void start(long intervalTicks) {
+        long interval = Math.max(1L, intervalTicks);
+        flushTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::flush, interval, interval);
+    }
+
+    /**
+     * 写入/覆盖指定坐标的索引
+     */
+    public void enqueueUpload(String uid, int x, int y, int z, String blockType) {
+        enqueue(BlockMutation.upload(uid, x, y, z, blockType));
+    }
+
+    /**
+     * 删除指定坐标的索引
+     */
+    public void enqueueDelete(String uid, int x, int y, int z) {
+        enqueue(BlockMutation.delete(uid, x, y, z));
+    }
+
+    public void enqueue(BlockMutation mutation) {
+        enqueueAll(Collections.singletonList(mutation));
+    }
+
+    /**
+     * 一次加入多条变更 (爆炸、活塞等一次改变大量方块的事件)，同坐标以后加入的为准
+     * 整批只加锁一次，达到批量大小时只触发一次刷新，随后在同一批语句中写入
+     */
+    public void enqueueAll(Collection<BlockMutation> mutations) {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        int size;
+        synchronized (this) {
+            long stamp = ++sequence;
+            for (BlockMutation mutation : mutations) {
+                BlockKey key = mutation.getKey();
+                pending.put(key, mutation);
+                recentKeys.stamp(key, stamp);
+                recentChunks.stamp(new ChunkPos(key.getUid(), key.getX() >> 4, key.getZ() >> 4), stamp);
+            }
+            size = pending.size();
+        }
+        if (size >= batchSize && plugin.isEnabled() && flushScheduled.compareAndSet(false, true)) {
+            Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+                flushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * 读取指定坐标尚未提交到数据库的变更
+     * @return 最新的变更，没有时返回 null
+     */
+    public BlockMutation peek(BlockKey key) {
+        BlockMutation mutation;
+        synchronized (this) {
+            mutation = pending.get(key);
+        }
+        if (mutation == null) {
+            mutation = inflight.get(key);
+        }
+        if (mutation == null) {
+            synchronized (journaled) {
+                JournaledKey entry = journaled.get(key);
+                mutation = entry == null ? null : entry.latest;
+            }
+        }
+        return mutation;
+    }
+
+    /**
+     * 当前的入队序号，区块快照时读取，之后入队的变更序号都比它大
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * 写入区块快照与数据库索引的差异
+     * 快照之后入队的同坐标变更 (无论是否已经写入) 比快照新，这些坐标的差异被丢弃。
+     * 与刷新互斥，之后入队的变更一定在差异之后写入；本地日志中还有变更时差异追加到日志末尾。
+     * 区块在快照之后没有任何变更时，快照的指纹与差异在同一事务中写入，否则不记录指纹，下次加载时重新同步。
+     * @param changes 差异
+     * @param chunk 快照所在的区块
+     * @param fingerprint 快照的区块指纹
+     * @param snapshotSequence 快照时的入队序号 (getSequence)
+     * @return 实际写入 (或记入日志) 的差异，顺序与 changes 一致
+     * @throws SQLException 如果数据库操作失败
+     */
+    public List<BlockMutation> applySnapshot(List<BlockMutation> changes, ChunkPos chunk, long fingerprint, long snapshotSequence) throws SQLException {
+        synchronized (flushLock) {
+            List<BlockMutation> accepted = changes;
+            boolean chunkChanged;
+            synchronized (this) {
+                chunkChanged = recentChunks.changedSince(chunk, snapshotSequence);
+                if (chunkChanged) {
+                    accepted = new ArrayList<>(changes.size());
+                    for (BlockMutation change : changes) {
+                        if (!recentKeys.changedSince(change.getKey(), snapshotSequence)) {
+                            accepted.add(change);
+                        }
+                    }
+                }
+            }
+            if (journal != null && (!journal.isEmpty() || !storage.isConnected())) {
+                // 指纹不能先于日志中的变更落库，留到下次加载时重新同步
+                if (!accepted.isEmpty() && !appendToJournal(accepted)) {
+                    return Collections.emptyList();
+                }
+                return accepted;
+            }
+            if (chunkChanged && accepted.isEmpty()) {
+                return accepted;
+            }
+            Map<ChunkPos, Long> chunkFingerprint = chunkChanged ? Collections.<ChunkPos, Long>emptyMap() : Collections.singletonMap(chunk, fingerprint);
+            inflight = byKey(accepted);
+            try {
+                storage.applyBlockMutations(accepted, chunkFingerprint);
+            } finally {
+                inflight = Collections.emptyMap();
+            }
+            if (!chunkChanged) {
+                fingerprints.recordSynced(chunk, fingerprint);
+            }
+            lookupCache.invalidate(accepted);
+            return accepted;
+        }
+    }
+
+    /**
+     * 当前尚未写入数据库的变更数
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * 将所有待写入的变更批量写入数据库
+     * 写入失败时变更记入本地日志；没有日志 (或日志写入失败) 时放回队列，已有更新的同坐标变更优先保留
+     */
+    public void flush() {
+        synchronized (flushLock) {
+            // 先取指纹再取变更：指纹中已计入的变更此时一定已经入队，不会先于变更落库
+            Map<ChunkPos, Long> dirtyFingerprints = fingerprints.drainDirty();
+            List<BlockMutation> batch = drain();
+            if (journal != null && (!journal.isEmpty() || !storage.isConnected())) {
+                // 指纹留到日志重放完之后写入，避免指纹先于变更落库
+                fingerprints.restoreDirty(dirtyFingerprints);
+                if (!batch.isEmpty()) {
+                    // 追加完成前这批变更仍可通过 peek 读取
+                    inflight = byKey(batch);
+                    try {
+                        if (!appendToJournal(batch)) {
+                            return;
+                        }
+                    } finally {
+                        inflight = Collections.emptyMap();
+                    }
+                }
+                replayJournal();
+                return;
+            }
+            if (batch.isEmpty() && dirtyFingerprints.isEmpty()) {
+                return;
+            }
+            inflight = byKey(batch);
+            try {
+                storage.applyBlockMutations(batch, dirtyFingerprints);
+                lookupCache.invalidate(batch);
+            } catch (SQLException e) {
+                fingerprints.restoreDirty(dirtyFingerprints);
+                if (journal == null) {
+                    plugin.getLogger().log(Level.WARNING, "批量写入方块索引失败，" + batch.size() + " 条变更将在下次刷新时重试: " + e.getMessage());
+                    requeue(batch);
+                } else if (appendToJournal(batch)) {
+                    plugin.getLogger().log(Level.WARNING, "批量写入方块索引失败，" + batch.size() + " 条变更已记入本地日志，数据库恢复后重放: " + e.getMessage());
+                }
+            } finally {
+                inflight = Collections.emptyMap();
+            }
+        }
+    }
+
+    /**
+     * 追加到本地日志，失败时放回队列
+     * @return 是否已写入日志
+     */
+    private boolean appendToJournal(List<BlockMutation> batch) {
+        try {
+            journal.append(batch);
+            addJournaled(batch);
+            return true;
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "写入本地日志失败，" + batch.size() + " 条变更将在下次刷新时重试: " + e.getMessage());
+            requeue(batch);
+            return false;
+        }
+    }
+
+    /**
+     * 数据库可用时按批重放本地日志，失败时保留进度在下次刷新时继续
+     * 连接失败会使存储标记为未连接，此后不再尝试重放，直到 StorageReconnector 重连成功。
+     * 连接正常时同一批连续失败 MAX_REPLAY_ATTEMPTS 次 (如数据错误)，改为逐条重放，仍失败的变更移入隔离文件后继续
+     */
+    private void replayJournal() {
+        if (!storage.isConnected()) {
+            return;
+        }
+        long replayed = 0;
+        try {
+            while (!journal.isEmpty()) {
+                List<BlockMutation> mutations = journal.read(replayBatchSize);
+                if (mutations.isEmpty()) {
+                    break;
+                }
+                // 一批中同一坐标只保留最后一次变更
+                Map<BlockKey, BlockMutation> unique = new LinkedHashMap<>();
+                for (BlockMutation mutation : mutations) {
+                    unique.put(mutation.getKey(), mutation);
+                }
+                try {
+                    storage.applyBlockMutations(unique.values(), Collections.<ChunkPos, Long>emptyMap());
+                    replayFailures = 0;
+                } catch (SQLException e) {
+                    if (!storage.isConnected() || ++replayFailures < MAX_REPLAY_ATTEMPTS) {
+                        throw e;
+                    }
+                    replayFailures = 0;
+                    replayIndividually(unique.values());
+                }
+                journal.commit();
+                lookupCache.invalidate(unique.values());
+                removeJournaled(mutations);
+                replayed += mutations.size();
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "重放本地日志失败，将在下次刷新时重试: " + e.getMessage());
+        } catch (IOException e) {
+            plugin.getLogger().log(Level.SEVERE, "读取本地日志失败: " + e.getMessage());
+        }
+        if (replayed > 0) {
+            plugin.getLogger().info("已将本地日志中的 " + replayed + " 条变更写入数据库，剩余 " + journal.size() + " 条");
+        }
+    }
+
+    private static Map<BlockKey, BlockMutation> byKey(List<BlockMutation> batch) {
+        Map<BlockKey, BlockMutation> map = new HashMap<>(batch.size() * 2);
+        for (BlockMutation mutation : batch) {
+            map.put(mutation.getKey(), mutation);
+        }
+        return map;
+    }
+
+    private void addJournaled(List<BlockMutation> mutations) {
+        synchronized (journaled) {
+            for (BlockMutation mutation : mutations) {
+                JournaledKey entry = journaled.computeIfAbsent(mutation.getKey(), key -> new JournaledKey());
+                entry.latest = mutation;
+                entry.records++;
+            }
+        }
+    }
+
+    /**
+     * 日志中的记录已重放 (或隔离)，坐标的记录全部处理完后不再由 peek 返回
+     */
+    private void removeJournaled(List<BlockMutation> mutations) {
+        synchronized (journaled) {
+            for (BlockMutation mutation : mutations) {
+                JournaledKey entry = journaled.get(mutation.getKey());
+                if (entry != null && --entry.records <= 0) {
+                    journaled.remove(mutation.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐条重放一批变更，失败的变更写入隔离文件
+     * @throws SQLException 连接中断时抛出，这批变更留在日志中
+     */
+    private void replayIndividually(Collection<BlockMutation> mutations) throws SQLException, IOException {
+        List<BlockMutation> failed = new ArrayList<>();
+        SQLException cause = null;
+        for (BlockMutation mutation : mutations) {
+            try {
+                storage.applyBlockMutations(Collections.singletonList(mutation), Collections.<ChunkPos, Long>emptyMap());
+            } catch (SQLException e) {
+                if (!storage.isConnected()) {
+                    throw e;
+                }
+                failed.add(mutation);
+                cause = e;
+            }
+        }
+        if (!failed.isEmpty()) {
+            journal.quarantine(failed);
+            plugin.getLogger().severe("本地日志中有 " + failed.size() + " 条变更无法写入数据库，已移入 "
+                    + journal.getQuarantineFile() + " 并跳过: " + cause.getMessage());
+        }
+    }
+
+    /**
+     * 本地日志中尚未重放的变更数
+     */
+    public long getJournalSize() {
+        return journal == null ? 0L : journal.size();
+    }
+
+    /**
+     * 停止定时刷新并写入剩余的变更，在插件关闭时调用
+     */
+    public void shutdown() {
+        if (flushTask != null) {
+            flushTask.cancel();
+            flushTask = null;
+        }
+        flush();
+        int remaining = getPendingCount();
+        if (remaining > 0) {
+            plugin.getLogger().severe("关闭时仍有 " + remaining + " 条方块索引变更未能写入数据库");
+        }
+        if (journal != null) {
+            if (!journal.isEmpty()) {
+                plugin.getLogger().warning("本地日志中有 " + journal.size() + " 条变更尚未写入数据库，将在下次启动后重放");
+            }
+            try {
+                journal.close();
+            } catch (IOException e) {
+                plugin.getLogger().log(Level.WARNING, "关闭本地日志失败: " + e.getMessage());
+            }
+        }
+    }
+
+    private synchronized List<BlockMutation> drain() {
+        if (pending.isEmpty()) {
+            return new ArrayList<>(0);
+        }
+        List<BlockMutation> batch = new ArrayList<>(pending.values());
+        pending = new LinkedHashMap<>();
+        return batch;
+    }
+
+    private synchronized void requeue(List<BlockMutation> batch) {
+        for (BlockMutation mutation : batch) {
+            pending.putIfAbsent(mutation.getKey(), mutation);
+        }
+    }
+
+    /**
+     * 近期变更的入队序号，超出容量时淘汰最早的记录并抬高下限
+     * 快照序号低于下限时无法判断，一律视为已变化
+     */
+    private static final class RecentStamps<K> {
+        private final LinkedHashMap<K, Long> stamps;
+        private long floor;
+
+        private RecentStamps(final int capacity) {
+            this.stamps = new LinkedHashMap<K, Long>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, Long> eldest) {
+                    if (size() > capacity) {
+                        floor = eldest.getValue();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        private void stamp(K key, long sequence) {
+            // 先移除再插入，保持按序号递增的插入顺序
+            stamps.remove(key);
+            stamps.put(key, sequence);
+        }
+
+        private boolean changedSince(K key, long sequence) {
+            if (sequence < floor) {
+                return true;
+            }
+            Long stamp = stamps.get(key);
+            return stamp != null && stamp > sequence;
+        }
+    }
+
+    private static final class JournaledKey {
+        private BlockMutation latest;
+        private int records;
+    }
+}
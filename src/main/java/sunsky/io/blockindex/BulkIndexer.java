@@ -0,0 +1,479 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Material;
+import org.bukkit.World;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * 离线批量索引
+ * 直接读取世界目录下的区域文件 (.mca)，不加载区块：每个区域文件一个 fork-join 任务，
+ * 一次查询读出该区域已有的索引行，与文件中的区块逐个比对，差异按批写入存储并记录区块指纹。
+ * 完成的区域文件记录在插件目录的进度文件中，中断后重新执行会跳过这些区域。
+ * 服务器中已加载的区块由区块同步负责，这里直接跳过。
+ */
+public class BulkIndexer {
+
+    private static final Pattern REGION_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.mca");
+    private static final Set<String> CHUNK_KEYS = new HashSet<>(Arrays.asList("Status", "sections"));
+    private static final int SECTOR_BYTES = 4096;
+    private static final int EXTERNAL_FLAG = 128;
+
+    private final BlockStorage storage;
+    private final BlockMemoryIndex memoryIndex;
+    private final ChunkFingerprints fingerprints;
+    private final BlockLookupCache lookupCache;
+    private final Logger logger;
+    private final File progressDirectory;
+    private final int batchSize;
+    private final ForkJoinPool pool;
+    /**
+     * 命名空间 ID (如 minecraft:chest) 到被追踪类型的映射
+     */
+    private final Map<String, Material> tracked = new HashMap<>();
+    private final Set<String> runningWorlds = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled;
+
+    /**
+     * @param storage 存储后端
+     * @param memoryIndex 内存索引，用于判断区块是否已加载
+     * @param fingerprints 区块指纹缓存
+     * @param lookupCache 查询缓存，写入后失效
+     * @param trackedMaterials 被追踪的方块类型
+     * @param logger 日志
+     * @param progressDirectory 进度文件目录
+     * @param parallelism 同时处理的区域文件数
+     * @param batchSize 每批写入的变更数
+     */
+    public BulkIndexer(BlockStorage storage, BlockMemoryIndex memoryIndex, ChunkFingerprints fingerprints, BlockLookupCache lookupCache,
+                       Collection<Material> trackedMaterials, Logger logger, File progressDirectory, int parallelism, int batchSize) {
+        this.storage = storage;
+        this.memoryIndex = memoryIndex;
+        this.fingerprints = fingerprints;
+        this.lookupCache = lookupCache;
+        this.logger = logger;
+        this.progressDirectory = progressDirectory;
+        this.batchSize = Math.max(1, batchSize);
+        for (Material material : trackedMaterials) {
+            tracked.put("minecraft:" + material.name().toLowerCase(Locale.ROOT), material);
+        }
+        AtomicInteger threadId = new AtomicInteger();
+        this.pool = new ForkJoinPool(Math.max(1, parallelism), p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("BlockIndex-BulkIndex-" + threadId.incrementAndGet());
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * 开始索引一个世界 (在主线程调用，读取世界信息后立即返回)
+     * @param reset 为 true 时清除进度，重新处理全部区域文件
+     * @return 区域文件目录不存在或该世界正在索引时返回 false
+     */
+    public boolean start(World world, boolean reset) {
+        File regionDirectory = regionDirectory(world);
+        String uid = world.getUID().toString();
+        if (regionDirectory == null || cancelled || !runningWorlds.add(uid)) {
+            return false;
+        }
+        File progressFile = new File(progressDirectory, uid + ".txt");
+        if (reset && progressFile.exists() && !progressFile.delete()) {
+            logger.warning("无法删除批量索引进度文件: " + progressFile);
+        }
+        pool.execute(new WorldTask(world.getName(), uid, regionDirectory, progressFile, world.getMinHeight(), world.getMaxHeight()));
+        return true;
+    }
+
+    /**
+     * 世界是否正在索引
+     */
+    public boolean isRunning(World world) {
+        return runningWorlds.contains(world.getUID().toString());
+    }
+
+    /**
+     * 停止索引 (插件关闭时)，正在处理的区域文件不会记入进度，下次从该区域重新开始
+     */
+    public void shutdown(long timeoutMillis) {
+        cancelled = true;
+        pool.shutdownNow();
+        try {
+            if (!pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                logger.warning("批量索引线程未能在 " + timeoutMillis + " 毫秒内停止");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 世界的区域文件目录，下界与末地的区域文件在 DIM-1、DIM1 子目录中 (取决于服务端的世界目录布局)
+     */
+    private static File regionDirectory(World world) {
+        File folder = world.getWorldFolder();
+        File[] candidates = {new File(folder, "region"), new File(folder, "DIM-1/region"), new File(folder, "DIM1/region")};
+        for (File candidate : candidates) {
+            if (candidate.isDirectory()) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 一个世界的全部区域文件
+     */
+    private final class WorldTask extends RecursiveAction {
+        private final String worldName;
+        private final String uid;
+        private final File regionDirectory;
+        private final File progressFile;
+        private final int minY;
+        private final int maxY;
+        private final Set<String> done = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger finishedRegions = new AtomicInteger();
+        private final AtomicLong chunks = new AtomicLong();
+        private final AtomicLong changes = new AtomicLong();
+        // 已有索引中无法识别类型 (如版本降级后不存在的 Material) 而跳过的行
+        private final AtomicLong unknownRows = new AtomicLong();
+        private int totalRegions;
+
+        private WorldTask(String worldName, String uid, File regionDirectory, File progressFile, int minY, int maxY) {
+            this.worldName = worldName;
+            this.uid = uid;
+            this.regionDirectory = regionDirectory;
+            this.progressFile = progressFile;
+            this.minY = minY;
+            this.maxY = maxY;
+        }
+
+        @Override
+        protected void compute() {
+            long startTime = System.currentTimeMillis();
+            try {
+                if (progressFile.exists()) {
+                    done.addAll(Files.readAllLines(progressFile.toPath(), StandardCharsets.UTF_8));
+                }
+                List<RegionTask> tasks = new ArrayList<>();
+                File[] files = regionDirectory.listFiles();
+                for (File file : files == null ? new File[0] : files) {
+                    Matcher matcher = REGION_NAME.matcher(file.getName());
+                    if (matcher.matches() && !done.contains(file.getName())) {
+                        tasks.add(new RegionTask(this, file, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))));
+                    }
+                }
+                totalRegions = tasks.size();
+                logger.info("批量索引 " + worldName + ": 共 " + tasks.size() + " 个区域文件待处理 (已完成 " + done.size() + " 个)");
+                invokeAll(tasks);
+                logger.info("批量索引 " + worldName + (cancelled ? " 已中断" : " 已完成") + ": 处理 " + finishedRegions.get() + " 个区域文件、"
+                        + chunks.get() + " 个区块，写入 " + changes.get() + " 条变更，耗时 " + (System.currentTimeMillis() - startTime) / 1000 + " 秒"
+                        + (unknownRows.get() > 0 ? "，跳过 " + unknownRows.get() + " 条未知类型的索引" : ""));
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "批量索引 " + worldName + " 读取进度失败", e);
+            } finally {
+                runningWorlds.remove(uid);
+            }
+        }
+
+        private synchronized void markDone(String regionName) throws IOException {
+            progressFile.getParentFile().mkdirs();
+            try (Writer writer = new FileWriter(progressFile, true)) {
+                writer.write(regionName + "\n");
+            }
+            int finished = finishedRegions.incrementAndGet();
+            if (finished % 16 == 0) {
+                logger.info("批量索引 " + worldName + ": " + finished + "/" + totalRegions + " 个区域文件，写入 " + changes.get() + " 条变更");
+            }
+        }
+    }
+
+    /**
+     * 一个区域文件 (32x32 个区块)
+     */
+    private final class RegionTask extends RecursiveAction {
+        private final WorldTask world;
+        private final File file;
+        private final int regionX;
+        private final int regionZ;
+        private final List<BlockMutation> pendingChanges = new ArrayList<>();
+        private final Map<ChunkPos, Long> pendingFingerprints = new HashMap<>();
+
+        private RegionTask(WorldTask world, File file, int regionX, int regionZ) {
+            this.world = world;
+            this.file = file;
+            this.regionX = regionX;
+            this.regionZ = regionZ;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled) {
+                return;
+            }
+            try {
+                if (indexRegion()) {
+                    world.markDone(file.getName());
+                }
+            } catch (IOException | SQLException e) {
+                logger.log(Level.WARNING, "批量索引区域文件 " + file + " 失败，下次执行时重试", e);
+            }
+        }
+
+        /**
+         * @return 区域文件是否处理完毕 (中断时返回 false)
+         */
+        private boolean indexRegion() throws IOException, SQLException {
+            String uid = world.uid;
+            int baseX = regionX << 9;
+            int baseZ = regionZ << 9;
+            // 该区域已有的索引，按区块分组
+            Map<Long, Map<Long, String>> indexed = new HashMap<>();
+            BlockBox regionBox = new BlockBox(baseX, world.minY, baseZ, baseX + 511, world.maxY - 1, baseZ + 511);
+            storage.forEachBlockInBoxes(uid, Collections.singletonList(regionBox), null, (x, y, z, material) -> {
+                if (material == null) {
+                    world.unknownRows.incrementAndGet();
+                    return true;
+                }
+                indexed.computeIfAbsent(BlockCoords.chunkKey(x >> 4, z >> 4), k -> new HashMap<>())
+                        .put(BlockCoords.pack(x, y, z), material.name());
+                return true;
+            });
+            ChunkScanResult scanned = new ChunkScanResult();
+            try (RandomAccessFile region = new RandomAccessFile(file, "r")) {
+                if (region.length() < SECTOR_BYTES) {
+                    return true;
+                }
+                int[] locations = new int[1024];
+                for (int i = 0; i < locations.length; i++) {
+                    locations[i] = region.readInt();
+                }
+                for (int i = 0; i < locations.length; i++) {
+                    if (cancelled) {
+                        return false;
+                    }
+                    int chunkX = (regionX << 5) + (i & 31);
+                    int chunkZ = (regionZ << 5) + (i >> 5);
+                    if (locations[i] == 0 || memoryIndex.isLoaded(uid, chunkX, chunkZ)) {
+                        continue;
+                    }
+                    Map<String, Object> chunk = readChunk(region, locations[i], chunkX, chunkZ);
+                    if (chunk == null || !isFull(chunk.get("Status"))) {
+                        // 未生成完毕的区块以后加载时由区块同步处理
+                        continue;
+                    }
+                    scanned.clear();
+                    scanChunk(chunk, chunkX, chunkZ, scanned);
+                    diff(uid, chunkX, chunkZ, scanned, indexed.remove(BlockCoords.chunkKey(chunkX, chunkZ)));
+                    world.chunks.incrementAndGet();
+                    if (pendingChanges.size() >= batchSize) {
+                        flush();
+                    }
+                }
+            }
+            flush();
+            return true;
+        }
+
+        /**
+         * 比对区块扫描结果与已有索引，差异与指纹加入待写入批次 (一个区块的变更不会拆到两批)
+         */
+        private void diff(String uid, int chunkX, int chunkZ, ChunkScanResult scanned, Map<Long, String> indexed) {
+            if (indexed == null) {
+                indexed = new HashMap<>();
+            }
+            for (int i = 0; i < scanned.size(); i++) {
+                long pos = scanned.getPosition(i);
+                String blockType = scanned.getMaterial(i).name();
+                if (!blockType.equals(indexed.remove(pos))) {
+                    pendingChanges.add(BlockMutation.upload(uid, BlockCoords.unpackX(pos), BlockCoords.unpackY(pos), BlockCoords.unpackZ(pos), blockType));
+                }
+            }
+            // 剩余的索引行在区块中已不存在
+            for (long pos : indexed.keySet()) {
+                pendingChanges.add(BlockMutation.delete(uid, BlockCoords.unpackX(pos), BlockCoords.unpackY(pos), BlockCoords.unpackZ(pos)));
+            }
+            pendingFingerprints.put(new ChunkPos(uid, chunkX, chunkZ), scanned.getFingerprint());
+        }
+
+        private void flush() throws SQLException {
+            if (pendingFingerprints.isEmpty()) {
+                return;
+            }
+            storage.applyBlockMutations(pendingChanges, pendingFingerprints);
+            for (Map.Entry<ChunkPos, Long> entry : pendingFingerprints.entrySet()) {
+                fingerprints.recordSynced(entry.getKey(), entry.getValue());
+            }
+            lookupCache.invalidate(pendingChanges);
+            world.changes.addAndGet(pendingChanges.size());
+            pendingChanges.clear();
+            pendingFingerprints.clear();
+        }
+
+        /**
+         * 读取并解压一个区块的 NBT
+         * @param location 区域文件头中的位置：高 24 位为起始扇区，低 8 位为扇区数
+         * @return 区块根标签，使用不支持的压缩格式时返回 null
+         */
+        private Map<String, Object> readChunk(RandomAccessFile region, int location, int chunkX, int chunkZ) throws IOException {
+            long offset = (long) (location >>> 8) * SECTOR_BYTES;
+            if (offset + 5 > region.length()) {
+                return null;
+            }
+            region.seek(offset);
+            int length = region.readInt();
+            int compression = region.readUnsignedByte();
+            InputStream raw;
+            if ((compression & EXTERNAL_FLAG) != 0) {
+                // 超过 1 MB 的区块单独保存在 c.<x>.<z>.mcc 文件中
+                File external = new File(file.getParentFile(), "c." + chunkX + "." + chunkZ + ".mcc");
+                if (!external.isFile()) {
+                    return null;
+                }
+                raw = new FileInputStream(external);
+                compression &= ~EXTERNAL_FLAG;
+            } else {
+                if (length <= 1 || offset + 4 + length > region.length()) {
+                    return null;
+                }
+                byte[] data = new byte[length - 1];
+                region.readFully(data);
+                raw = new ByteArrayInputStream(data);
+            }
+            try (InputStream in = decompress(raw, compression)) {
+                if (in == null) {
+                    logger.warning("区块 " + chunkX + ", " + chunkZ + " 使用了不支持的压缩格式 " + compression + "，已跳过");
+                    return null;
+                }
+                return NbtReader.readRoot(new DataInputStream(new BufferedInputStream(in)), CHUNK_KEYS);
+            }
+        }
+
+        private InputStream decompress(InputStream raw, int compression) throws IOException {
+            switch (compression) {
+                case 1:
+                    return new GZIPInputStream(raw);
+                case 2:
+                    return new InflaterInputStream(raw);
+                case 3:
+                    return raw;
+                default:
+                    raw.close();
+                    return null;
+            }
+        }
+
+        private boolean isFull(Object status) {
+            return "minecraft:full".equals(status) || "full".equals(status);
+        }
+
+        /**
+         * 扫描区块中被追踪的方块 (1.18 及以上的区块格式：sections 列表，每段 block_states 为调色板 + 紧凑位数组)
+         */
+        @SuppressWarnings("unchecked")
+        private void scanChunk(Map<String, Object> chunk, int chunkX, int chunkZ, ChunkScanResult result) {
+            Object sections = chunk.get("sections");
+            if (!(sections instanceof List)) {
+                return;
+            }
+            int baseX = chunkX << 4;
+            int baseZ = chunkZ << 4;
+            for (Object element : (List<Object>) sections) {
+                Map<String, Object> section = (Map<String, Object>) element;
+                Object y = section.get("Y");
+                Object states = section.get("block_states");
+                if (!(y instanceof Number) || !(states instanceof Map)) {
+                    continue;
+                }
+                int baseY = ((Number) y).intValue() << 4;
+                if (baseY + 16 <= world.minY || baseY >= world.maxY) {
+                    continue;
+                }
+                Object palette = ((Map<String, Object>) states).get("palette");
+                if (!(palette instanceof List)) {
+                    continue;
+                }
+                // 调色板编号到被追踪类型序号的映射，-1 表示不追踪
+                List<Object> entries = (List<Object>) palette;
+                int[] ordinals = new int[entries.size()];
+                boolean any = false;
+                for (int i = 0; i < ordinals.length; i++) {
+                    Material material = tracked.get(((Map<String, Object>) entries.get(i)).get("Name"));
+                    ordinals[i] = material == null ? -1 : material.ordinal();
+                    any |= material != null;
+                }
+                if (!any) {
+                    continue;
+                }
+                Object data = ((Map<String, Object>) states).get("data");
+                long[] words = data instanceof long[] ? (long[]) data : null;
+                if (ordinals.length == 1 || words == null) {
+                    // 单一类型的区块段没有位数组
+                    if (ordinals[0] >= 0) {
+                        for (int index = 0; index < 4096; index++) {
+                            addBlock(result, baseX, baseY, baseZ, index, ordinals[0]);
+                        }
+                    }
+                    continue;
+                }
+                int bits = Math.max(4, 32 - Integer.numberOfLeadingZeros(ordinals.length - 1));
+                int perWord = 64 / bits;
+                long mask = (1L << bits) - 1;
+                if (words.length < (4096 + perWord - 1) / perWord) {
+                    continue;
+                }
+                // 编号不跨越 long 边界，每个 long 的高位可能未使用
+                for (int index = 0; index < 4096; index++) {
+                    int paletteIndex = (int) ((words[index / perWord] >>> ((index % perWord) * bits)) & mask);
+                    if (paletteIndex < ordinals.length && ordinals[paletteIndex] >= 0) {
+                        addBlock(result, baseX, baseY, baseZ, index, ordinals[paletteIndex]);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @param index 区块段内的编号，顺序为 (y, z, x)
+         */
+        private void addBlock(ChunkScanResult result, int baseX, int baseY, int baseZ, int index, int ordinal) {
+            int y = baseY + (index >> 8);
+            if (y >= world.minY && y < world.maxY) {
+                result.add(BlockCoords.pack(baseX + (index & 15), y, baseZ + ((index >> 4) & 15)), ordinal);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * 多服共用同一数据库时，增量读取其他服务器写入的变更日志，使本服的查询缓存与区块指纹失效
+ * 已加载区块的内存索引以本服的世界为准，不受其他服务器的写入影响。
+ * 序号在事务提交前分配，较小的序号可能晚于较大的序号可见：遇到序号空缺时先处理已读到的记录，
+ * 但读取位置停在空缺之前，空缺超过 gapTimeoutMillis 仍未出现 (事务已回滚) 才越过。
+ * 同一记录因此可能被处理多次，失效操作是幂等的。
+ */
+public class ChangeLogTailer {
+
+    private final Plugin plugin;
+    private final DatabaseManager databaseManager;
+    private final BlockLookupCache lookupCache;
+    private final ChunkFingerprints fingerprints;
+    private final int batchSize;
+    private final long gapTimeoutMillis;
+    private final long retentionMillis;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private BukkitTask pollTask;
+    private BukkitTask pruneTask;
+    // 已连续处理到的序号，-1 表示尚未定位
+    private volatile long lastSeq = -1L;
+    private long gapSeq = -1L;
+    private long gapSince;
+    private long applied;
+
+    /**
+     * @param plugin 插件实例
+     * @param databaseManager 数据库管理器 (需已调用 enableChangeLog)
+     * @param lookupCache 查询缓存
+     * @param fingerprints 区块指纹
+     * @param batchSize 每次最多读取的记录数
+     * @param gapTimeoutMillis 等待序号空缺的时间 (毫秒)
+     * @param retentionMillis 日志保留时间 (毫秒)
+     */
+    public ChangeLogTailer(Plugin plugin, DatabaseManager databaseManager, BlockLookupCache lookupCache, ChunkFingerprints fingerprints,
+                           int batchSize, long gapTimeoutMillis, long retentionMillis) {
+        this.plugin = plugin;
+        this.databaseManager = databaseManager;
+        this.lookupCache = lookupCache;
+        this.fingerprints = fingerprints;
+        this.batchSize = Math.max(1, batchSize);
+        this.gapTimeoutMillis = Math.max(0L, gapTimeoutMillis);
+        this.retentionMillis = Math.max(0L, retentionMillis);
+    }
+
+    /**
+     * 启动定时读取与清理
+     * @param pollIntervalTicks 读取间隔 (tick)
+     * @param pruneIntervalTicks 清理间隔 (tick)
+     */
+    public void start(long pollIntervalTicks, long pruneIntervalTicks) {
+        long poll = Math.max(1L, pollIntervalTicks);
+        long prune = Math.max(1L, pruneIntervalTicks);
+        pollTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::poll, poll, poll);
+        pruneTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::prune, prune, prune);
+    }
+
+    private void poll() {
+        // 上一次尚未完成时跳过本次
+        if (!databaseManager.isConnected() || !running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (lastSeq < 0) {
+                // 启动前的变更已经体现在数据库中，从当前位置开始读取
+                lastSeq = databaseManager.getLatestChangeSequence();
+                return;
+            }
+            final long[] advanced = {lastSeq};
+            final boolean[] blocked = {false};
+            databaseManager.readChangeLog(lastSeq, batchSize, (seq, local, uid, x, y, z, material) -> {
+                if (!blocked[0]) {
+                    if (seq == advanced[0] + 1 || gapExpired(advanced[0] + 1)) {
+                        advanced[0] = seq;
+                    } else {
+                        blocked[0] = true;
+                    }
+                }
+                if (!local) {
+                    lookupCache.invalidate(uid, x, y, z);
+                    fingerprints.invalidate(new ChunkPos(uid, x >> 4, z >> 4));
+                    applied++;
+                }
+            });
+            lastSeq = advanced[0];
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "读取变更日志失败，将在下次重试: " + e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * 序号 seq 缺失的时间是否已超过等待时间，首次发现时开始计时
+     */
+    private boolean gapExpired(long seq) {
+        long now = System.currentTimeMillis();
+        if (gapSeq != seq) {
+            gapSeq = seq;
+            gapSince = now;
+        }
+        return now - gapSince >= gapTimeoutMillis;
+    }
+
+    private void prune() {
+        if (!databaseManager.isConnected()) {
+            return;
+        }
+        try {
+            int deleted = databaseManager.pruneChangeLog(System.currentTimeMillis() - retentionMillis);
+            if (deleted > 0) {
+                plugin.getLogger().fine("已清理 " + deleted + " 条过期变更日志");
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "清理变更日志失败: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 已处理的其他服务器变更数
+     */
+    public long getAppliedCount() {
+        return applied;
+    }
+
+    /**
+     * 已连续处理到的序号
+     */
+    public long getLastSequence() {
+        return lastSeq;
+    }
+
+    public void shutdown() {
+        if (pollTask != null) {
+            pollTask.cancel();
+            pollTask = null;
+        }
+        if (pruneTask != null) {
+            pruneTask.cancel();
+            pruneTask = null;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Material;
+
+/**
+ * 逐条接收变更日志中的记录
+ */
+@FunctionalInterface
+public interface ChangeLogVisitor {
+
+    /**
+     * @param seq 日志序号
+     * @param local 是否为本服写入的变更
+     * @param uid 世界UID
+     * @param x X坐标
+     * @param y Y坐标
+     * @param z Z坐标
+     * @param material 变更后的方块类型，索引被删除时为 null
+     */
+    void visit(long seq, boolean local, String uid, int x, int y, int z, Material material);
+}
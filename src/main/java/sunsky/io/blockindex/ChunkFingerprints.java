@@ -0,0 +1,158 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Material;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 区块指纹
+ * 指纹是区块内所有被追踪方块 (坐标 + 类型) 哈希值之和，与遍历顺序无关，
+ * 因此方块放置/破坏时可以直接增减，无需重新扫描区块。
+ * 区块加载时若扫描得到的指纹与上次同步时记录的一致，则跳过数据库同步。
+ * 近期用到的指纹缓存在内存中，有变化的指纹随写回队列一起持久化。
+ */
+public class ChunkFingerprints {
+
+    private final BlockStorage storage;
+    private final Map<ChunkPos, Fingerprint> cache;
+    private final Map<ChunkPos, Fingerprint> dirty = new HashMap<>();
+
+    /**
+     * @param storage 存储后端
+     * @param cacheSize 内存中最多缓存的区块指纹数
+     */
+    public ChunkFingerprints(BlockStorage storage, final int cacheSize) {
+        this.storage = storage;
+        this.cache = new LinkedHashMap<ChunkPos, Fingerprint>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ChunkPos, Fingerprint> eldest) {
+                // 淘汰尚未持久化的指纹只会导致下次加载时重新同步
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * 计算单个方块对区块指纹的贡献值
+     * @param packedPos BlockCoords.pack 压缩的坐标
+     * @param material 方块类型
+     */
+    public static long contribution(long packedPos, Material material) {
+        long h = packedPos * 0x9E3779B97F4A7C15L + material.name().hashCode();
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+
+    /**
+     * 判断区块自上次同步以来是否未发生变化
+     * @param pos 区块
+     * @param fingerprint 本次扫描得到的指纹
+     * @return 与记录的指纹一致时返回 true；从未同步过的区块返回 false
+     * @throws SQLException 如果数据库操作失败
+     */
+    public boolean isUnchanged(ChunkPos pos, long fingerprint) throws SQLException {
+        synchronized (cache) {
+            Fingerprint entry = cache.get(pos);
+            if (entry != null) {
+                return entry.fingerprint == fingerprint;
+            }
+        }
+        Long stored = storage.getChunkFingerprint(pos.getUid(), pos.getX(), pos.getZ());
+        if (stored == null) {
+            return false;
+        }
+        synchronized (cache) {
+            if (!cache.containsKey(pos)) {
+                cache.put(pos, new Fingerprint(stored));
+            }
+        }
+        return stored == fingerprint;
+    }
+
+    /**
+     * 记录区块同步完成后的指纹 (已随同步事务写入数据库)
+     */
+    public void recordSynced(ChunkPos pos, long fingerprint) {
+        synchronized (cache) {
+            cache.put(pos, new Fingerprint(fingerprint));
+            dirty.remove(pos);
+        }
+    }
+
+    /**
+     * 方块变化时增量更新所在区块的指纹
+     * 只更新内存中已有的指纹；没有记录的区块会在下次加载时完整同步
+     * @param before 变化前的被追踪类型，不被追踪时为 null
+     * @param after 变化后的被追踪类型，不被追踪时为 null
+     */
+    public void applyChange(String uid, int x, int y, int z, Material before, Material after) {
+        if (before == after) {
+            return;
+        }
+        ChunkPos pos = new ChunkPos(uid, x >> 4, z >> 4);
+        long packed = BlockCoords.pack(x, y, z);
+        synchronized (cache) {
+            Fingerprint entry = cache.get(pos);
+            if (entry == null) {
+                return;
+            }
+            if (before != null) {
+                entry.fingerprint -= contribution(packed, before);
+            }
+            if (after != null) {
+                entry.fingerprint += contribution(packed, after);
+            }
+            dirty.put(pos, entry);
+        }
+    }
+
+    /**
+     * 使区块的指纹失效，下次加载时强制同步
+     */
+    public void invalidate(ChunkPos pos) {
+        synchronized (cache) {
+            cache.remove(pos);
+            dirty.remove(pos);
+        }
+    }
+
+    /**
+     * 取出所有尚未持久化的指纹
+     */
+    public Map<ChunkPos, Long> drainDirty() {
+        Map<ChunkPos, Long> drained = new HashMap<>();
+        synchronized (cache) {
+            for (Map.Entry<ChunkPos, Fingerprint> e : dirty.entrySet()) {
+                drained.put(e.getKey(), e.getValue().fingerprint);
+            }
+            dirty.clear();
+        }
+        return drained;
+    }
+
+    /**
+     * 持久化失败时重新标记为待持久化
+     */
+    public void restoreDirty(Map<ChunkPos, Long> drained) {
+        synchronized (cache) {
+            for (ChunkPos pos : drained.keySet()) {
+                Fingerprint entry = cache.get(pos);
+                if (entry != null) {
+                    dirty.put(pos, entry);
+                }
+            }
+        }
+    }
+
+    private static final class Fingerprint {
+        private long fingerprint;
+
+        private Fingerprint(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package sunsky.io.blockindex;
+
+/**
+ * 区块标识：世界UID + 区块坐标
+ */
+public final class ChunkPos {
+
+    private final String uid;
+    private final int x;
+    private final int z;
+
+    public ChunkPos(String uid, int x, int z) {
+        this.uid = uid;
+        this.x = x;
+        this.z = z;
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ChunkPos)) {
+            return false;
+        }
+        ChunkPos other = (ChunkPos) o;
+        return x == other.x && z == other.z && uid.equals(other.uid);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = uid.hashCode();
+        result = 31 * result + x;
+        result = 31 * result + z;
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return uid + "[" + x + ", " + z + "]";
+    }
+}
@@ -0,0 +1,71 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Material;
+
+import java.util.Arrays;
+
+/**
+ * 区块扫描结果
+ * 命中的方块以 BlockCoords.pack 压缩坐标 + Material 序号的并行数组保存，扫描过程不产生逐方块对象。
+ * 结果对象可重复使用，每次扫描前调用 clear()。
+ */
+public final class ChunkScanResult {
+
+    private static final Material[] MATERIALS = Material.values();
+
+    private long[] positions = new long[64];
+    private short[] materials = new short[64];
+    private int size;
+    private long fingerprint;
+
+    public void clear() {
+        size = 0;
+        fingerprint = 0L;
+    }
+
+    void add(long packedPos, int materialOrdinal) {
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size << 1);
+            materials = Arrays.copyOf(materials, size << 1);
+        }
+        positions[size] = packedPos;
+        materials[size] = (short) materialOrdinal;
+        size++;
+        fingerprint += ChunkFingerprints.contribution(packedPos, MATERIALS[materialOrdinal]);
+    }
+
+    /**
+     * 命中的方块数
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 第 i 个命中方块的压缩坐标
+     */
+    public long getPosition(int i) {
+        return positions[i];
+    }
+
+    /**
+     * 第 i 个命中方块的类型
+     */
+    public Material getMaterial(int i) {
+        return MATERIALS[materials[i]];
+    }
+
+    /**
+     * 第 i 个命中方块的 Material 序号
+     */
+    public int getMaterialOrdinal(int i) {
+        return materials[i];
+    }
+
+    /**
+     * 扫描结果的区块指纹
+     */
+    public long getFingerprint() {
+        return fingerprint;
+    }
+}
@@ -0,0 +1,67 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.ChunkSnapshot;
+import org.bukkit.Material;
+
+import java.util.Collection;
+
+/**
+ * 区块扫描器
+ * 按 16x16x16 分段扫描区块快照：空分段整段跳过，方块类型通过以 Material 序号为下标的查找表判断是否被追踪，
+ * 命中结果以压缩坐标写入 ChunkScanResult。
+ * 每个线程复用各自的结果对象，调用方需在同一线程下一次扫描前用完上一次的结果。
+ */
+public class ChunkScanner {
+
+    private final boolean[] tracked;
+    private final ThreadLocal<ChunkScanResult> buffers = ThreadLocal.withInitial(ChunkScanResult::new);
+
+    public ChunkScanner(Collection<Material> trackedMaterials) {
+        this.tracked = new boolean[Material.values().length];
+        for (Material material : trackedMaterials) {
+            tracked[material.ordinal()] = true;
+        }
+    }
+
+    /**
+     * 判断方块类型是否被追踪
+     */
+    public boolean isTracked(Material material) {
+        return material != null && tracked[material.ordinal()];
+    }
+
+    /**
+     * 扫描区块快照中所有被追踪的方块
+     * @param snapshot 区块快照
+     * @param minY 世界最低高度 (包含)
+     * @param maxY 世界最高高度 (不包含)
+     * @return 当前线程复用的扫描结果
+     */
+    public ChunkScanResult scan(ChunkSnapshot snapshot, int minY, int maxY) {
+        ChunkScanResult result = buffers.get();
+        result.clear();
+        boolean[] lookup = tracked;
+        int baseX = snapshot.getX() << 4;
+        int baseZ = snapshot.getZ() << 4;
+        int sections = (maxY - minY + 15) >> 4;
+        for (int section = 0; section < sections; section++) {
+            if (snapshot.isSectionEmpty(section)) {
+                continue;
+            }
+            int fromY = minY + (section << 4);
+            int toY = Math.min(fromY + 16, maxY);
+            // 与分段内部存储顺序 (y, z, x) 一致
+            for (int y = fromY; y < toY; y++) {
+                for (int z = 0; z < 16; z++) {
+                    for (int x = 0; x < 16; x++) {
+                        int ordinal = snapshot.getBlockType(x, y, z).ordinal();
+                        if (lookup[ordinal]) {
+                            result.add(BlockCoords.pack(baseX + x, y, baseZ + z), ordinal);
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,244 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.ChunkSnapshot;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 区块同步专用调度器
+ * 使用固定数量的工作线程和有界队列执行区块扫描同步：
+ * 同一区块在任务执行前再次加载时只保留最新的快照；
+ * 离玩家越近的区块越先执行；队列满时丢弃最远的任务 (丢弃的区块下次加载时会重新同步)。
+ */
+public class ChunkSyncExecutor {
+
+    /**
+     * 区块同步逻辑
+     */
+    public interface Handler {
+        /**
+         * @param writeSequence 快照时写回队列的入队序号 (BlockWriteQueue.getSequence)
+         */
+        void sync(ChunkPos pos, ChunkSnapshot snapshot, long writeSequence, int minY, int maxY) throws Exception;
+    }
+
+    private final Handler handler;
+    private final Logger logger;
+    private final int capacity;
+    private final List<Thread> workers = new ArrayList<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final TreeSet<Job> queue = new TreeSet<>(Comparator.comparingDouble((Job job) -> job.priority).thenComparingLong(job -> job.sequence));
+    private final Map<ChunkPos, Job> pending = new HashMap<>();
+    private long nextSequence;
+    private volatile boolean running = true;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param handler 区块同步逻辑
+     * @param logger 日志
+     * @param workerCount 工作线程数
+     * @param capacity 队列容量
+     */
+    public ChunkSyncExecutor(Handler handler, Logger logger, int workerCount, int capacity) {
+        this.handler = handler;
+        this.logger = logger;
+        this.capacity = Math.max(1, capacity);
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            Thread worker = new Thread(this::workLoop, "BlockIndex-ChunkSync-" + (i + 1));
+            worker.setDaemon(true);
+            workers.add(worker);
+        }
+    }
+
+    public void start() {
+        for (Thread worker : workers) {
+            worker.start();
+        }
+    }
+
+    /**
+     * 提交一个区块同步任务
+     * @param pos 区块
+     * @param snapshot 区块快照
+     * @param writeSequence 快照时写回队列的入队序号
+     * @param minY 世界最低高度
+     * @param maxY 世界最高高度
+     * @param priority 优先级，数值越小越先执行 (通常为到最近玩家的距离平方)
+     * @return 任务是否被接受 (合并到已有任务也视为接受)
+     */
+    public boolean submit(ChunkPos pos, ChunkSnapshot snapshot, long writeSequence, int minY, int maxY, double priority) {
+        submitted.incrementAndGet();
+        lock.lock();
+        try {
+            if (!running) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            Job existing = pending.get(pos);
+            if (existing != null) {
+                // 尚未执行的任务只处理最新的快照
+                existing.snapshot = snapshot;
+                existing.writeSequence = writeSequence;
+                if (priority < existing.priority) {
+                    queue.remove(existing);
+                    existing.priority = priority;
+                    queue.add(existing);
+                }
+                coalesced.incrementAndGet();
+                return true;
+            }
+            if (queue.size() >= capacity) {
+                Job farthest = queue.last();
+                if (farthest.priority <= priority) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+                queue.pollLast();
+                pending.remove(farthest.pos);
+                dropped.incrementAndGet();
+            }
+            Job job = new Job(pos, snapshot, writeSequence, minY, maxY, priority, nextSequence++);
+            queue.add(job);
+            pending.put(pos, job);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void workLoop() {
+        while (true) {
+            Job job;
+            lock.lock();
+            try {
+                while (running && queue.isEmpty()) {
+                    notEmpty.await();
+                }
+                if (!running) {
+                    return;
+                }
+                job = queue.pollFirst();
+                pending.remove(job.pos);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                handler.sync(job.pos, job.snapshot, job.writeSequence, job.minY, job.maxY);
+                completed.incrementAndGet();
+            } catch (Exception e) {
+                failed.incrementAndGet();
+                logger.log(Level.WARNING, "区块 " + job.pos + " 同步失败: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 停止调度器，丢弃尚未执行的任务并等待正在执行的任务完成
+     * @param timeoutMillis 最长等待时间
+     */
+    public void shutdown(long timeoutMillis) {
+        lock.lock();
+        try {
+            running = false;
+            dropped.addAndGet(queue.size());
+            queue.clear();
+            pending.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Thread worker : workers) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                break;
+            }
+            try {
+                worker.join(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 当前排队中的区块数
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * 被合并到已有任务的提交数
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * 因队列已满或关闭而丢弃的任务数
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    private static final class Job {
+        private final ChunkPos pos;
+        private final int minY;
+        private final int maxY;
+        private final long sequence;
+        // 只在持有 lock 时修改，取出任务后不再变化
+        private ChunkSnapshot snapshot;
+        private long writeSequence;
+        private double priority;
+
+        private Job(ChunkPos pos, ChunkSnapshot snapshot, long writeSequence, int minY, int maxY, double priority, long sequence) {
+            this.pos = pos;
+            this.snapshot = snapshot;
+            this.writeSequence = writeSequence;
+            this.minY = minY;
+            this.maxY = maxY;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+    }
+}
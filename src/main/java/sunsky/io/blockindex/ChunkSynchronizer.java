@@ -0,0 +1,90 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Material;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 区块级索引同步
+ * 一次查询读出区块范围内的全部索引行，与区块扫描结果在内存中比对，
+ * 差异 (新增、类型变化、已不存在) 经写回队列作为一个批量事务写回数据库，
+ * 快照之后已入队 (可能已经写入) 的同坐标变更比快照新，这些坐标的差异被丢弃，此时也不记录区块指纹。
+ * 区块指纹与上次同步时一致的区块直接跳过。
+ * 写入成功后，差异同时发布到变化订阅 (BlockIndexChangeEvent)。
+ */
+public class ChunkSynchronizer {
+
+    private final BlockWriteQueue writeQueue;
+    private final BlockStorage storage;
+    private final ChunkFingerprints fingerprints;
+    private final BlockChangeFeed changeFeed;
+
+    /**
+     * @param writeQueue 写回队列，丢弃比快照旧的差异后写入
+     * @param changeFeed 变化订阅，为 null 时不发布
+     */
+    public ChunkSynchronizer(BlockWriteQueue writeQueue, BlockStorage storage, ChunkFingerprints fingerprints, BlockChangeFeed changeFeed) {
+        this.writeQueue = writeQueue;
+        this.storage = storage;
+        this.fingerprints = fingerprints;
+        this.changeFeed = changeFeed;
+    }
+
+    /**
+     * 同步一个区块
+     * @param uid 世界UID
+     * @param chunkX 区块X
+     * @param chunkZ 区块Z
+     * @param scanned 区块扫描结果
+     * @param writeSequence 快照时写回队列的入队序号
+     * @return 写入数据库的变更数，区块未变化而跳过时返回 -1
+     * @throws SQLException 如果数据库操作失败
+     */
+    public int sync(String uid, int chunkX, int chunkZ, ChunkScanResult scanned, long writeSequence) throws SQLException {
+        ChunkPos chunk = new ChunkPos(uid, chunkX, chunkZ);
+        long fingerprint = scanned.getFingerprint();
+        if (fingerprints.isUnchanged(chunk, fingerprint)) {
+            return -1;
+        }
+        Map<Long, String> indexed = storage.getChunkBlockData(uid, chunkX, chunkZ);
+        List<BlockMutation> changes = new ArrayList<>();
+        // 与 changes 一一对应的原索引类型
+        List<String> previousTypes = new ArrayList<>();
+        for (int i = 0; i < scanned.size(); i++) {
+            long pos = scanned.getPosition(i);
+            String blockType = scanned.getMaterial(i).name();
+            String previous = indexed.remove(pos);
+            if (!blockType.equals(previous)) {
+                changes.add(BlockMutation.upload(uid, BlockCoords.unpackX(pos), BlockCoords.unpackY(pos), BlockCoords.unpackZ(pos), blockType));
+                previousTypes.add(previous);
+            }
+        }
+        // 剩余的索引行在区块中已不存在
+        for (Map.Entry<Long, String> entry : indexed.entrySet()) {
+            long pos = entry.getKey();
+            changes.add(BlockMutation.delete(uid, BlockCoords.unpackX(pos), BlockCoords.unpackY(pos), BlockCoords.unpackZ(pos)));
+            previousTypes.add(entry.getValue());
+        }
+        // 即使没有差异也要记录指纹，下次加载时才能跳过
+        List<BlockMutation> applied = writeQueue.applySnapshot(changes, chunk, fingerprint, writeSequence);
+        if (changeFeed != null) {
+            for (int i = 0, j = 0; i < changes.size() && j < applied.size(); i++) {
+                BlockMutation change = changes.get(i);
+                if (change != applied.get(j)) {
+                    continue;
+                }
+                j++;
+                BlockKey key = change.getKey();
+                changeFeed.record(uid, key.getX(), key.getY(), key.getZ(), toMaterial(previousTypes.get(i)), toMaterial(change.getBlockType()));
+            }
+        }
+        return applied.size();
+    }
+
+    private static Material toMaterial(String blockType) {
+        return blockType == null ? null : Material.getMaterial(blockType);
+    }
+}
@@ -1,5 +1,7 @@
 package sunsky.io.blockindex;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import org.bukkit.Location;
 import org.bukkit.Material;
 import org.bukkit.configuration.file.FileConfiguration;
@@ -9,24 +11,67 @@ import org.bukkit.plugin.Plugin;
 import java.io.File;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.logging.Level;
 
-public class DatabaseManager {
+/**
+ * 基于 SQL 数据库的方块索引存储
+ * mysql.yml 中 database.type 为 mysql (默认) 时连接 MySQL，为 sqlite 时使用插件目录下的数据库文件，
+ * 两者的表结构与查询相同，语法差异见 SqlDialect
+ */
+public class DatabaseManager implements BlockStorage {
 
-    private Connection connection;
-    private boolean isConnected = false;
+    private static final int MAX_ROWS_PER_STATEMENT = 500;
+    private static final String SCHEMA_VERSION = "2";
+    private static final String FINGERPRINT_FORMAT = "binary";
+    private static final int STREAM_FETCH_SIZE = 1000;
+    private static final int MAX_TRANSACTION_ATTEMPTS = 3;
+
+    private volatile HikariDataSource dataSource;
+    private volatile boolean isConnected = false;
     private Plugin plugin;
+    private SqlDialect dialect = SqlDialect.MYSQL;
+    private MaterialDictionary dictionary = new MaterialDictionary(dialect);
+    // 迁移期间读取旧表、同时写入新旧两张表；迁移完成后只使用 block_data_v2
+    private volatile BlockTable readTable = BlockTable.V2;
+    private volatile List<BlockTable> writeTables = Collections.singletonList(BlockTable.V2);
+    private volatile BlockIndexMetrics metrics;
+    // 多服共用数据库时本服的标识，不为 null 时写入的变更同时记入 block_change_log
+    private volatile byte[] changeLogServerId;
 
     public DatabaseManager(Plugin plugin) {
         this.plugin = plugin;
     }
 
+    /**
+     * 设置运行指标，接口之外的调试方法 (如按范围输出各类型数量) 的耗时记入其中
+     */
+    public void setMetrics(BlockIndexMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * 启用变更日志：连接数据库时创建 block_change_log，此后每次写入的变更在同一事务中追加到日志，
+     * 共用同一数据库的其他服务器按序号读取 (见 ChangeLogTailer)。需在 setupDatabaseConfig 之前调用
+     * @param serverId 本服标识，用于在读取时区分本服写入的记录
+     */
+    public void enableChangeLog(UUID serverId) {
+        this.changeLogServerId = BlockTable.uuidBytes(serverId.toString());
+    }
+
     /**
      * 判断数据库是否连接
      * @return 是否连接
      */
+    @Override
     public boolean isConnected() {
         return isConnected;
     }
@@ -43,21 +88,29 @@ public class DatabaseManager {
         }
 
         FileConfiguration config = YamlConfiguration.loadConfiguration(configFile);
-        String url = config.getString("database.url");
-        String user = config.getString("database.user");
-        String password = config.getString("database.password");
+        SqlDialect configured = SqlDialect.fromName(config.getString("database.type", "mysql"));
+        HikariConfig hikariConfig;
+        if (configured == SqlDialect.SQLITE) {
+            hikariConfig = sqliteConfig(new File(plugin.getDataFolder(), config.getString("database.file", "blockindex.db")), config);
+        } else {
+            String url = config.getString("database.url");
+            String user = config.getString("database.user");
+            String password = config.getString("database.password");
 
-        if (url == null || user == null || password == null) {
-            plugin.getLogger().log(Level.SEVERE, "数据库配置文件格式错误");
-            return false;
+            if (url == null || user == null || password == null) {
+                plugin.getLogger().log(Level.SEVERE, "数据库配置文件格式错误");
+                return false;
+            }
+            hikariConfig = mysqlConfig(url, user, password, config);
         }
 
         try {
-            connectDatabase(url, user, password);
-            if (!checkTableExists("block_data")) {
-                initializeDatabase();
+            connectDatabase(hikariConfig, configured);
+            initializeSchema();
+            initializeFingerprintTable();
+            if (changeLogServerId != null && !checkTableExists("block_change_log")) {
+                initializeChangeLogTable();
             }
-            createIndexes();
         } catch (SQLException e) {
             plugin.getLogger().log(Level.SEVERE, "数据库连接失败: " + e.getMessage());
             return false;
@@ -67,19 +120,75 @@ public class DatabaseManager {
     }
 
     /**
-     * 连接数据库
+     * MySQL 连接池配置
+     * 连接借出前会校验有效性，失效的连接由连接池自动替换，空闲连接超时后回收
      * @param url 数据库URL
      * @param user 数据库用户名
      * @param password 数据库密码
+     * @param config mysql.yml 配置，连接池参数读取自 pool 节点
+     */
+    private HikariConfig mysqlConfig(String url, String user, String password, FileConfiguration config) {
+        HikariConfig hikariConfig = poolConfig(config, 8);
+        hikariConfig.setJdbcUrl(url);
+        hikariConfig.setUsername(user);
+        hikariConfig.setPassword(password);
+        // 预编译语句缓存 (由 MySQL 驱动在每个连接上维护)
+        hikariConfig.addDataSourceProperty("cachePrepStmts", "true");
+        hikariConfig.addDataSourceProperty("useServerPrepStmts", "true");
+        hikariConfig.addDataSourceProperty("prepStmtCacheSize", config.getInt("pool.statementCacheSize", 250));
+        hikariConfig.addDataSourceProperty("prepStmtCacheSqlLimit", config.getInt("pool.statementCacheSqlLimit", 2048));
+        // 设置了 fetchSize 的查询使用服务器端游标分批读取，而不是一次读入全部结果
+        hikariConfig.addDataSourceProperty("useCursorFetch", "true");
+        return hikariConfig;
+    }
+
+    /**
+     * SQLite 连接池配置 (驱动由服务端自带)
+     * 使用 WAL 日志，读取不阻塞写入；写事务以 IMMEDIATE 模式开始，多个连接同时写入时排队等待而不是失败
+     * @param file 数据库文件
+     * @param config mysql.yml 配置，连接池参数读取自 pool 节点
+     */
+    private HikariConfig sqliteConfig(File file, FileConfiguration config) {
+        HikariConfig hikariConfig = poolConfig(config, 4);
+        hikariConfig.setJdbcUrl("jdbc:sqlite:" + file.getAbsolutePath());
+        hikariConfig.addDataSourceProperty("journal_mode", "WAL");
+        hikariConfig.addDataSourceProperty("synchronous", "NORMAL");
+        hikariConfig.addDataSourceProperty("busy_timeout", String.valueOf(config.getLong("pool.connectionTimeoutMillis", 5000L)));
+        hikariConfig.addDataSourceProperty("transaction_mode", "IMMEDIATE");
+        return hikariConfig;
+    }
+
+    private HikariConfig poolConfig(FileConfiguration config, int defaultPoolSize) {
+        HikariConfig hikariConfig = new HikariConfig();
+        hikariConfig.setPoolName("BlockIndex-Pool");
+        hikariConfig.setMaximumPoolSize(Math.max(1, config.getInt("pool.maximumPoolSize", defaultPoolSize)));
+        hikariConfig.setMinimumIdle(Math.max(0, config.getInt("pool.minimumIdle", 2)));
+        hikariConfig.setConnectionTimeout(config.getLong("pool.connectionTimeoutMillis", 5000L));
+        hikariConfig.setValidationTimeout(config.getLong("pool.validationTimeoutMillis", 3000L));
+        hikariConfig.setIdleTimeout(config.getLong("pool.idleTimeoutMillis", 600000L));
+        hikariConfig.setMaxLifetime(config.getLong("pool.maxLifetimeMillis", 1800000L));
+        hikariConfig.setKeepaliveTime(config.getLong("pool.keepaliveTimeMillis", 300000L));
+        return hikariConfig;
+    }
+
+    /**
+     * 创建数据库连接池
+     * @param hikariConfig 连接池配置
+     * @param configured 数据库类型
      * @throws SQLException 如果连接失败
      */
-    private void connectDatabase(String url, String user, String password) throws SQLException {
+    private void connectDatabase(HikariConfig hikariConfig, SqlDialect configured) throws SQLException {
+        closePool();
+        if (configured != dialect) {
+            dialect = configured;
+            dictionary = new MaterialDictionary(configured);
+        }
         try {
-            connection = DriverManager.getConnection(url, user, password);
+            dataSource = new HikariDataSource(hikariConfig);
             isConnected = true;
-        } catch (SQLException e) {
+        } catch (RuntimeException e) {
             isConnected = false;
-            throw e;
+            throw new SQLException(e.getMessage(), e);
         }
     }
 
@@ -90,59 +199,184 @@ public class DatabaseManager {
      * @throws SQLException 如果数据库操作失败
      */
     private boolean checkTableExists(String tableName) throws SQLException {
-        String query = "SHOW TABLES LIKE ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, tableName);
-            ResultSet rs = stmt.executeQuery();
-            return rs.next();
+        try (Connection connection = dataSource.getConnection()) {
+            return dialect.tableExists(connection, tableName);
         }
     }
 
+    /**
+     * 初始化表结构
+     * 新安装直接使用 block_data_v2；存在旧表 block_data 或没有 chunk_key 列的 block_data_v2 且尚未迁移完成时进入迁移模式，
+     * 由 SchemaMigrator 在后台分批复制
+     * @throws SQLException 如果数据库操作失败
+     */
+    private void initializeSchema() throws SQLException {
+        if (!checkTableExists("block_index_meta")) {
+            executeUpdate("CREATE TABLE block_index_meta (" +
+                    "name VARCHAR(64) NOT NULL," +
+                    "value VARCHAR(255) NOT NULL," +
+                    "PRIMARY KEY (name)" +
+                    ")");
+        }
+        if (!checkTableExists("block_material")) {
+            executeUpdate("CREATE TABLE block_material (" +
+                    "id SMALLINT UNSIGNED NOT NULL," +
+                    "name VARCHAR(64) NOT NULL," +
+                    "PRIMARY KEY (id)," +
+                    "CONSTRAINT uk_material_name UNIQUE (name)" +
+                    ")");
+        }
+        if (!checkTableExists("block_data_v2")) {
+            initializeDatabase();
+        } else if (!columnExists("chunk_key", "block_data_v2")) {
+            replaceTableWithoutChunkKey();
+        }
+        if (!checkTableExists("block_section_count")) {
+            initializeSectionCountTable();
+        }
+        try (Connection connection = dataSource.getConnection()) {
+            dictionary.load(connection);
+            if (checkTableExists(BlockTable.V2_LEGACY.name()) && !"done".equals(getMeta(connection, "chunk_key_migration"))) {
+                useSchema(BlockTable.V2_LEGACY);
+                plugin.getLogger().info("检测到没有区块键列的旧版 block_data_v2，将在后台迁移到新表");
+                return;
+            }
+            if (!checkTableExists("block_data") || SCHEMA_VERSION.equals(getMeta(connection, "schema_version"))) {
+                setMeta(connection, "schema_version", SCHEMA_VERSION);
+                useSchema(null);
+                return;
+            }
+        }
+        // 迁移期间旧表仍承担读取，只保留查询需要的 (uid, block_type, x, y, z) 索引
+        dropIndexIfExists("idx_server_coords", "block_data");
+        dropIndexIfExists("idx_block_type", "block_data");
+        if (!indexExists("idx_server_blocktype_coords", "block_data")) {
+            executeUpdate("CREATE INDEX idx_server_blocktype_coords ON block_data (uid, block_type, x, y, z)");
+        }
+        useSchema(BlockTable.V1);
+        plugin.getLogger().info("检测到旧版索引表 block_data，将在后台迁移到 block_data_v2");
+    }
+
     /**
      * 初始化数据库表
+     * 主键按 (uid, chunk_key, x, z, y) 排列，同一区块的方块在聚簇索引中相邻，
+     * 范围查询按区块键区间定位 (见 QueryPlanner)；另建一个带方块类型的索引供按类型查询
      * @throws SQLException 如果数据库操作失败
      */
     private void initializeDatabase() throws SQLException {
-        String createTableQuery = "CREATE TABLE block_data (" +
-                "uid VARCHAR(36) NOT NULL," +
+        executeUpdate("CREATE TABLE block_data_v2 (" +
+                "uid " + dialect.binaryUidType() + " NOT NULL," +
                 "x INT NOT NULL," +
                 "y INT NOT NULL," +
                 "z INT NOT NULL," +
-                "block_type VARCHAR(255) NOT NULL," +
-                "PRIMARY KEY (uid, x, y, z)" +
-                ")";
-        try (Statement stmt = connection.createStatement()) {
-            stmt.executeUpdate(createTableQuery);
+                "chunk_key BIGINT NOT NULL," +
+                "material_id SMALLINT UNSIGNED NOT NULL," +
+                "PRIMARY KEY (uid, chunk_key, x, z, y)" +
+                ")");
+        executeUpdate("CREATE INDEX idx_uid_material_chunk ON block_data_v2 (uid, material_id, chunk_key, y)");
+    }
+
+    /**
+     * 早期的 block_data_v2 没有 chunk_key 列：改名为 block_data_v2_legacy 后新建 block_data_v2，
+     * 由 SchemaMigrator 在后台分批复制，启动时不回填整张表、不重建主键。
+     * 从 block_data 的迁移尚未完成时旧表仍是完整的数据，直接删除未完成的 block_data_v2，迁移从头开始
+     * @throws SQLException 如果数据库操作失败
+     */
+    private void replaceTableWithoutChunkKey() throws SQLException {
+        boolean copyingFromV1;
+        try (Connection connection = dataSource.getConnection()) {
+            copyingFromV1 = checkTableExists("block_data") && !SCHEMA_VERSION.equals(getMeta(connection, "schema_version"));
+            deleteMeta(connection, "migration_cursor");
+            setMeta(connection, "chunk_key_migration", copyingFromV1 ? "done" : "copying");
+        }
+        if (copyingFromV1) {
+            executeUpdate("DROP TABLE block_data_v2");
+        } else {
+            executeUpdate("ALTER TABLE block_data_v2 RENAME TO " + BlockTable.V2_LEGACY.name());
         }
+        initializeDatabase();
     }
 
     /**
-     * 创建索引以提高查询效率
+     * 初始化区块段计数表并由 block_data_v2 回填
+     * 每个区块段 (16x16x16) 每种方块类型一行，与 block_data_v2 在同一事务中增量维护
      * @throws SQLException 如果数据库操作失败
      */
-    private void createIndexes() throws SQLException {
-        // 创建 serverUUID + 坐标组合索引
-        if (!indexExists("idx_server_coords", "block_data")) {
-            String createIndexQuery1 = "CREATE INDEX idx_server_coords ON block_data (uid, x, y, z)";
-            try (Statement stmt = connection.createStatement()) {
-                stmt.executeUpdate(createIndexQuery1);
-            }
+    private void initializeSectionCountTable() throws SQLException {
+        executeUpdate("CREATE TABLE block_section_count (" +
+                "uid " + dialect.binaryUidType() + " NOT NULL," +
+                "chunk_key BIGINT NOT NULL," +
+                "section_y INT NOT NULL," +
+                "material_id SMALLINT UNSIGNED NOT NULL," +
+                "count INT NOT NULL," +
+                "PRIMARY KEY (uid, chunk_key, section_y, material_id)" +
+                ")");
+        executeUpdate("INSERT INTO block_section_count (uid, chunk_key, section_y, material_id, count) " +
+                "SELECT uid, chunk_key, " + dialect.sectionOf("y") + ", material_id, COUNT(*) FROM block_data_v2 " +
+                "GROUP BY uid, chunk_key, " + dialect.sectionOf("y") + ", material_id");
+    }
+
+    private boolean columnExists(String columnName, String tableName) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            return dialect.columnExists(connection, tableName, columnName);
         }
+    }
 
-        // 创建 serverUUID + 方块类型 + 坐标组合索引
-        if (!indexExists("idx_server_blocktype_coords", "block_data")) {
-            String createIndexQuery2 = "CREATE INDEX idx_server_blocktype_coords ON block_data (uid, block_type, x, y, z)";
-            try (Statement stmt = connection.createStatement()) {
-                stmt.executeUpdate(createIndexQuery2);
+    /**
+     * 初始化区块指纹表，uid 与索引表一样以 16 字节保存
+     * 早期的指纹表以字符串保存 uid，检测到时删除重建：指纹只用于跳过未变化区块的同步，丢失后区块下次加载时重新同步
+     * @throws SQLException 如果数据库操作失败
+     */
+    private void initializeFingerprintTable() throws SQLException {
+        if (checkTableExists("chunk_fingerprint")) {
+            try (Connection connection = dataSource.getConnection()) {
+                if (FINGERPRINT_FORMAT.equals(getMeta(connection, "fingerprint_format"))) {
+                    return;
+                }
             }
+            executeUpdate("DROP TABLE chunk_fingerprint");
         }
+        executeUpdate("CREATE TABLE chunk_fingerprint (" +
+                "uid " + dialect.binaryUidType() + " NOT NULL," +
+                "chunk_x INT NOT NULL," +
+                "chunk_z INT NOT NULL," +
+                "fingerprint BIGINT NOT NULL," +
+                "PRIMARY KEY (uid, chunk_x, chunk_z)" +
+                ")");
+        try (Connection connection = dataSource.getConnection()) {
+            setMeta(connection, "fingerprint_format", FINGERPRINT_FORMAT);
+        }
+    }
 
-        // 创建方块类型索引（单独）
-        if (!indexExists("idx_block_type", "block_data")) {
-            String createIndexQuery3 = "CREATE INDEX idx_block_type ON block_data (block_type)";
-            try (Statement stmt = connection.createStatement()) {
-                stmt.executeUpdate(createIndexQuery3);
-            }
+    /**
+     * 初始化变更日志表
+     * seq 自增，各服务器按序号增量读取；material_id 为 null 表示删除；按 created_at 清理过期记录
+     * @throws SQLException 如果数据库操作失败
+     */
+    private void initializeChangeLogTable() throws SQLException {
+        executeUpdate("CREATE TABLE block_change_log (" +
+                "seq " + dialect.autoIncrementKey() + "," +
+                "server_id " + dialect.binaryUidType() + " NOT NULL," +
+                "uid " + dialect.binaryUidType() + " NOT NULL," +
+                "x INT NOT NULL," +
+                "y INT NOT NULL," +
+                "z INT NOT NULL," +
+                "material_id SMALLINT UNSIGNED NULL," +
+                "created_at BIGINT NOT NULL" +
+                ")");
+        executeUpdate("CREATE INDEX idx_change_log_time ON block_change_log (created_at)");
+    }
+
+    private void executeUpdate(String query) throws SQLException {
+        try (Connection connection = dataSource.getConnection();
+             Statement stmt = connection.createStatement()) {
+            stmt.executeUpdate(query);
+        }
+    }
+
+    private void dropIndexIfExists(String indexName, String tableName) throws SQLException {
+        if (indexExists(indexName, tableName)) {
+            executeUpdate(dialect.dropIndex(tableName, indexName));
         }
     }
 
@@ -154,22 +388,131 @@ public class DatabaseManager {
      * @throws SQLException 如果数据库操作失败
      */
     private boolean indexExists(String indexName, String tableName) throws SQLException {
-        String query = "SHOW INDEX FROM " + tableName + " WHERE Key_name = ?";
+        try (Connection connection = dataSource.getConnection()) {
+            return dialect.indexExists(connection, tableName, indexName);
+        }
+    }
+
+    /**
+     * @param source 正在迁移的旧表，没有迁移时为 null
+     */
+    private void useSchema(BlockTable source) {
+        if (source != null) {
+            readTable = source;
+            // 先写旧表：与迁移批次在旧表行锁上排队，避免迁移把已删除的行复制回新表
+            writeTables = Arrays.asList(source, BlockTable.V2);
+        } else {
+            readTable = BlockTable.V2;
+            writeTables = Collections.singletonList(BlockTable.V2);
+        }
+    }
+
+    private String getMeta(Connection connection, String name) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT value FROM block_index_meta WHERE name = ?")) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getString("value") : null;
+            }
+        }
+    }
+
+    private void setMeta(Connection connection, String name, String value) throws SQLException {
+        String query = "INSERT INTO block_index_meta (name, value) VALUES (?, ?)" + dialect.upsert("name", "value");
         try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, indexName);
-            ResultSet rs = stmt.executeQuery();
-            return rs.next();
+            stmt.setString(1, name);
+            stmt.setString(2, value);
+            stmt.executeUpdate();
+        }
+    }
+
+    private void deleteMeta(Connection connection, String name) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("DELETE FROM block_index_meta WHERE name = ?")) {
+            stmt.setString(1, name);
+            stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * 是否正在从旧表 (block_data 或 block_data_v2_legacy) 迁移
+     */
+    public boolean isMigrating() {
+        return readTable != BlockTable.V2;
+    }
+
+    /**
+     * 从旧表 (block_data 或 block_data_v2_legacy) 复制下一批数据到 block_data_v2
+     * 按主键顺序读取断点之后的一批行并加行锁，复制与断点更新在同一事务中提交，中断后从断点继续。
+     * 读取的是主键上有界的一段，行锁保证这些行在复制前不会被 (任何服务器) 删除。
+     * 复制使用 INSERT IGNORE，迁移期间的新写入同时写入两张表，不会被旧数据覆盖。
+     * @param batchSize 每批行数
+     * @return 本批复制的行数；不足 batchSize 时迁移完成，之后读写只使用 block_data_v2
+     * @throws SQLException 如果数据库操作失败
+     */
+    public int migrateBatch(int batchSize) throws SQLException {
+        if (!isConnected) {
+            throw new SQLException("Database is not connected");
+        }
+        BlockTable source = readTable;
+        if (source == BlockTable.V2) {
+            return 0;
+        }
+        List<BlockMutation> rows = inWriteTransaction(connection -> {
+            String cursor = getMeta(connection, "migration_cursor");
+            List<BlockMutation> batch = new ArrayList<>();
+            String query = "SELECT uid, x, y, z, " + source.materialColumn() + " FROM " + source.name() + " " +
+                    (cursor == null ? "" : "WHERE (uid, x, y, z) > (?, ?, ?, ?) ") +
+                    "ORDER BY uid, x, y, z LIMIT ?" + dialect.forUpdate();
+            try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                int index = 1;
+                if (cursor != null) {
+                    String[] parts = cursor.split(",");
+                    source.setUid(stmt, index++, parts[0]);
+                    stmt.setInt(index++, Integer.parseInt(parts[1]));
+                    stmt.setInt(index++, Integer.parseInt(parts[2]));
+                    stmt.setInt(index++, Integer.parseInt(parts[3]));
+                }
+                stmt.setInt(index, batchSize);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        batch.add(BlockMutation.upload(source.getUid(rs), rs.getInt("x"), rs.getInt("y"), rs.getInt("z"),
+                                source.getMaterial(rs, connection, dictionary)));
+                    }
+                }
+            }
+            resolveMaterials(batch);
+            saveSectionCounts(connection, writeCounted(connection, batch, Collections.<BlockMutation>emptyList(), true));
+            if (batch.size() < batchSize) {
+                setMeta(connection, source == BlockTable.V1 ? "schema_version" : "chunk_key_migration",
+                        source == BlockTable.V1 ? SCHEMA_VERSION : "done");
+                deleteMeta(connection, "migration_cursor");
+            } else {
+                BlockKey last = batch.get(batch.size() - 1).getKey();
+                setMeta(connection, "migration_cursor", last.getUid() + "," + last.getX() + "," + last.getY() + "," + last.getZ());
+            }
+            return batch;
+        });
+        if (rows.size() < batchSize) {
+            useSchema(null);
+            plugin.getLogger().info("方块索引已迁移到 block_data_v2，确认无误后可手动删除旧表 " + source.name());
         }
+        return rows.size();
     }
 
     /**
      * 关闭数据库连接
      * @throws SQLException 如果关闭失败
      */
+    @Override
     public void closeDatabase() throws SQLException {
-        if (connection != null && !connection.isClosed()) {
-            connection.close();
+        closePool();
+    }
+
+    private void closePool() {
+        isConnected = false;
+        if (dataSource != null && !dataSource.isClosed()) {
+            dataSource.close();
         }
+        dataSource = null;
     }
 
     /**
@@ -181,23 +524,620 @@ public class DatabaseManager {
      * @param blockType 方块类型
      * @throws SQLException 如果数据库操作失败
      */
+    @Override
     public void uploadBlockData(String uid, int x, int y, int z, String blockType) throws SQLException {
+        applyBlockMutations(Collections.singletonList(BlockMutation.upload(uid, x, y, z, blockType)));
+    }
+
+    /**
+     * 批量应用索引变更
+     * 写入合并为多行 INSERT ... ON DUPLICATE KEY UPDATE，删除合并为多键 DELETE，
+     * 每条语句最多包含 MAX_ROWS_PER_STATEMENT 行
+     * @param mutations 变更列表，同一坐标只应出现一次
+     * @throws SQLException 如果数据库操作失败
+     */
+    public void applyBlockMutations(Collection<BlockMutation> mutations) throws SQLException {
+        applyBlockMutations(mutations, Collections.<ChunkPos, Long>emptyMap());
+    }
+
+    /**
+     * 批量应用索引变更，并在同一事务中写入区块指纹
+     * @param mutations 变更列表，同一坐标只应出现一次
+     * @param fingerprints 需要写入的区块指纹
+     * @throws SQLException 如果数据库操作失败
+     */
+    @Override
+    public void applyBlockMutations(Collection<BlockMutation> mutations, Map<ChunkPos, Long> fingerprints) throws SQLException {
         if (!isConnected) {
             throw new SQLException("Database is not connected");
         }
-        String query = "INSERT INTO block_data (uid, x, y, z, block_type) VALUES (?, ?, ?, ?, ?) " +
-                "ON DUPLICATE KEY UPDATE block_type = ?";
+        List<BlockMutation> uploads = new ArrayList<>();
+        List<BlockMutation> deletes = new ArrayList<>();
+        for (BlockMutation mutation : mutations) {
+            if (mutation.isDelete()) {
+                deletes.add(mutation);
+            } else {
+                uploads.add(mutation);
+            }
+        }
+        try {
+            resolveMaterials(uploads);
+            writeBlockMutations(uploads, deletes, fingerprints);
+        } catch (SQLException e) {
+            checkConnectionLost(e);
+            throw e;
+        }
+    }
+
+    private void writeBlockMutations(List<BlockMutation> uploads, List<BlockMutation> deletes, Map<ChunkPos, Long> fingerprints) throws SQLException {
+        inWriteTransaction(connection -> {
+            for (BlockTable table : writeTables) {
+                if (table.hasChunkKey()) {
+                    saveSectionCounts(connection, writeCounted(connection, uploads, deletes, false));
+                    continue;
+                }
+                for (int from = 0; from < uploads.size(); from += MAX_ROWS_PER_STATEMENT) {
+                    batchUpload(connection, table, uploads.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, uploads.size())), false);
+                }
+                for (int from = 0; from < deletes.size(); from += MAX_ROWS_PER_STATEMENT) {
+                    batchDelete(connection, table, deletes.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, deletes.size())));
+                }
+            }
+            if (!fingerprints.isEmpty()) {
+                saveChunkFingerprints(connection, fingerprints);
+            }
+            byte[] serverId = changeLogServerId;
+            if (serverId != null) {
+                appendChangeLog(connection, serverId, uploads);
+                appendChangeLog(connection, serverId, deletes);
+            }
+            return null;
+        });
+    }
+
+    @FunctionalInterface
+    private interface Transaction<T> {
+        T run(Connection connection) throws SQLException;
+    }
+
+    /**
+     * 执行一个写入事务，因死锁被数据库回滚时 (如并发写入时行锁的顺序相反) 重新执行，最多 MAX_TRANSACTION_ATTEMPTS 次
+     */
+    private <T> T inWriteTransaction(Transaction<T> transaction) throws SQLException {
+        for (int attempt = 1; ; attempt++) {
+            try (Connection connection = dataSource.getConnection()) {
+                connection.setAutoCommit(false);
+                try {
+                    T result = transaction.run(connection);
+                    connection.commit();
+                    return result;
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                if (attempt >= MAX_TRANSACTION_ATTEMPTS || !isDeadlock(e)) {
+                    throw e;
+                }
+                plugin.getLogger().fine("写入事务因死锁回滚，重试第 " + attempt + " 次: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * SQLState 40001 为事务因死锁或序列化失败被回滚 (MySQL 错误码 1213)
+     */
+    private static boolean isDeadlock(SQLException e) {
+        return e instanceof SQLTransactionRollbackException || "40001".equals(e.getSQLState()) || e.getErrorCode() == 1213;
+    }
+
+    /**
+     * 写入因连接失败 (取不到连接、连接被断开) 而出错时标记为未连接
+     * 此后写回队列不再等待连接超时，直接记入本地日志；StorageReconnector 按退避间隔重建连接池，成功后再重放日志
+     */
+    private void checkConnectionLost(SQLException e) {
+        if (isConnected && isConnectionError(e)) {
+            isConnected = false;
+            plugin.getLogger().warning("数据库连接中断，等待重连: " + e.getMessage());
+        }
+    }
+
+    private static boolean isConnectionError(SQLException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof SQLTransientConnectionException || cause instanceof SQLNonTransientConnectionException
+                    || cause instanceof SQLRecoverableException) {
+                return true;
+            }
+            // SQLState 08xxx 为连接异常
+            if (cause instanceof SQLException) {
+                String state = ((SQLException) cause).getSQLState();
+                if (state != null && state.startsWith("08")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 确保变更中的方块类型都已在字典中，使用独立的自动提交连接
+     */
+    private void resolveMaterials(List<BlockMutation> uploads) throws SQLException {
+        List<String> blockTypes = new ArrayList<>(uploads.size());
+        for (BlockMutation mutation : uploads) {
+            blockTypes.add(mutation.getBlockType());
+        }
+        resolveBlockTypes(blockTypes);
+    }
+
+    private void resolveBlockTypes(Collection<String> blockTypes) throws SQLException {
+        Connection connection = null;
+        try {
+            for (String blockType : blockTypes) {
+                if (dictionary.cachedId(blockType) == null) {
+                    if (connection == null) {
+                        connection = dataSource.getConnection();
+                    }
+                    dictionary.resolve(connection, blockType);
+                }
+            }
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * 查询条件中的方块类型名称
+     * 读取新表时只保留字典中已有的类型：不在字典中的类型从未写入过，不会有数据，查询也不向字典写入
+     */
+    private List<String> knownMaterialNames(BlockTable table, Collection<Material> types) throws SQLException {
+        List<String> names = new ArrayList<>(types.size());
+        for (Material type : types) {
+            names.add(type.name());
+        }
+        if (!table.isCompact()) {
+            return names;
+        }
+        List<String> known = new ArrayList<>(names.size());
+        Connection connection = null;
+        try {
+            for (String name : names) {
+                if (dictionary.cachedId(name) == null) {
+                    if (connection == null) {
+                        connection = dataSource.getConnection();
+                    }
+                    if (dictionary.lookup(connection, name) == null) {
+                        continue;
+                    }
+                }
+                known.add(name);
+            }
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        return known;
+    }
+
+    /**
+     * @return 影响的行数
+     */
+    private int batchUpload(Connection connection, BlockTable table, List<BlockMutation> rows, boolean ignoreExisting) throws SQLException {
+        StringBuilder query = new StringBuilder(ignoreExisting ? dialect.insertIgnore() : "INSERT INTO ")
+                .append(table.name()).append(table.hasChunkKey() ? " (uid, x, y, z, chunk_key, " : " (uid, x, y, z, ")
+                .append(table.materialColumn()).append(") VALUES ");
+        String values = table.hasChunkKey() ? "(?, ?, ?, ?, ?, ?)" : "(?, ?, ?, ?, ?)";
+        for (int i = 0; i < rows.size(); i++) {
+            query.append(i == 0 ? "" : ", ").append(values);
+        }
+        if (!ignoreExisting) {
+            query.append(dialect.upsert(table.hasChunkKey() ? "uid, chunk_key, x, z, y" : "uid, x, y, z", table.materialColumn()));
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(query.toString())) {
+            int index = 1;
+            for (BlockMutation row : rows) {
+                BlockKey key = row.getKey();
+                table.setUid(stmt, index++, key.getUid());
+                stmt.setInt(index++, key.getX());
+                stmt.setInt(index++, key.getY());
+                stmt.setInt(index++, key.getZ());
+                if (table.hasChunkKey()) {
+                    stmt.setLong(index++, BlockCoords.chunkKey(key.getX() >> 4, key.getZ() >> 4));
+                }
+                table.setMaterial(stmt, index++, row.getBlockType(), dictionary);
+            }
+            return stmt.executeUpdate();
+        }
+    }
+
+    private void batchDelete(Connection connection, BlockTable table, List<BlockMutation> rows) throws SQLException {
+        // 带上 chunk_key 才能使用以 (uid, chunk_key) 开头的主键
+        String query = "DELETE FROM " + table.name() + " WHERE " + (table.hasChunkKey()
+                ? dialect.tupleIn("(uid, chunk_key, x, y, z)", "(?, ?, ?, ?, ?)", rows.size())
+                : dialect.tupleIn("(uid, x, y, z)", "(?, ?, ?, ?)", rows.size()));
         try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, uid);
-            stmt.setInt(2, x);
-            stmt.setInt(3, y);
-            stmt.setInt(4, z);
-            stmt.setString(5, blockType);
-            stmt.setString(6, blockType);
+            int index = 1;
+            for (BlockMutation row : rows) {
+                BlockKey key = row.getKey();
+                table.setUid(stmt, index++, key.getUid());
+                if (table.hasChunkKey()) {
+                    stmt.setLong(index++, BlockCoords.chunkKey(key.getX() >> 4, key.getZ() >> 4));
+                }
+                stmt.setInt(index++, key.getX());
+                stmt.setInt(index++, key.getY());
+                stmt.setInt(index++, key.getZ());
+            }
             stmt.executeUpdate();
         }
     }
 
+    /**
+     * 写入 block_data_v2，并按本事务实际插入、修改、删除的行计算 block_section_count 的增减
+     * 多个服务器共用数据库时，写入前的状态不能只凭普通查询判断 (两个服务器可能同时认为某坐标没有行)：
+     * 1. 普通查询找出已有的行，再以 FOR UPDATE 按主键锁定其中仍存在的行，得到写入前的类型。只锁定存在的行，不在缺失的坐标上产生间隙锁；
+     * 2. 没有行的坐标以 INSERT IGNORE 插入，影响行数即插入的行数。少于预期时 (其他服务器同时插入了部分坐标)
+     *    回滚到保存点后逐行插入，未能插入的行锁定后按已有的行处理；
+     * 3. 已有的行类型变化时覆盖，删除只作用于已锁定的行。
+     * @param ignoreExisting 保留已有的行，只插入缺失的坐标 (迁移复制)
+     * @return 区块段计数的增减
+     */
+    private Map<SectionKey, Integer> writeCounted(Connection connection, List<BlockMutation> uploads, List<BlockMutation> deletes,
+                                                  boolean ignoreExisting) throws SQLException {
+        Map<BlockKey, Integer> before = Collections.emptyMap();
+        if (!ignoreExisting) {
+            List<BlockKey> touched = new ArrayList<>(uploads.size() + deletes.size());
+            for (BlockMutation mutation : uploads) {
+                touched.add(mutation.getKey());
+            }
+            for (BlockMutation mutation : deletes) {
+                touched.add(mutation.getKey());
+            }
+            before = loadExistingMaterialIds(connection, new ArrayList<>(loadExistingMaterialIds(connection, touched, false).keySet()), true);
+        }
+        Map<SectionKey, Integer> deltas = new HashMap<>();
+        List<BlockMutation> missing = new ArrayList<>();
+        List<BlockMutation> changed = new ArrayList<>();
+        for (BlockMutation mutation : uploads) {
+            Integer previous = before.get(mutation.getKey());
+            if (previous == null) {
+                missing.add(mutation);
+            } else if (previous != dictionary.cachedId(mutation.getBlockType())) {
+                changed.add(mutation);
+            }
+        }
+        List<BlockMutation> conflicts = insertMissing(connection, missing, deltas);
+        if (!ignoreExisting && !conflicts.isEmpty()) {
+            List<BlockKey> keys = new ArrayList<>(conflicts.size());
+            for (BlockMutation mutation : conflicts) {
+                keys.add(mutation.getKey());
+            }
+            Map<BlockKey, Integer> raced = loadExistingMaterialIds(connection, keys, true);
+            before = new HashMap<>(before);
+            for (BlockMutation mutation : conflicts) {
+                Integer previous = raced.get(mutation.getKey());
+                if (previous != null && previous != dictionary.cachedId(mutation.getBlockType())) {
+                    before.put(mutation.getKey(), previous);
+                    changed.add(mutation);
+                }
+            }
+        }
+        for (int from = 0; from < changed.size(); from += MAX_ROWS_PER_STATEMENT) {
+            batchUpload(connection, BlockTable.V2, changed.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, changed.size())), false);
+        }
+        for (BlockMutation mutation : changed) {
+            addDelta(deltas, mutation.getKey(), before.get(mutation.getKey()), -1);
+            addDelta(deltas, mutation.getKey(), dictionary.cachedId(mutation.getBlockType()), 1);
+        }
+        List<BlockMutation> removed = new ArrayList<>();
+        for (BlockMutation mutation : deletes) {
+            Integer previous = before.get(mutation.getKey());
+            if (previous != null) {
+                removed.add(mutation);
+                addDelta(deltas, mutation.getKey(), previous, -1);
+            }
+        }
+        for (int from = 0; from < removed.size(); from += MAX_ROWS_PER_STATEMENT) {
+            batchDelete(connection, BlockTable.V2, removed.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, removed.size())));
+        }
+        return deltas;
+    }
+
+    /**
+     * 以 INSERT IGNORE 插入 block_data_v2 中没有的行，插入的行计入 deltas
+     * @return 因坐标已有行而未插入的变更
+     */
+    private List<BlockMutation> insertMissing(Connection connection, List<BlockMutation> rows, Map<SectionKey, Integer> deltas) throws SQLException {
+        List<BlockMutation> conflicts = new ArrayList<>();
+        for (int from = 0; from < rows.size(); from += MAX_ROWS_PER_STATEMENT) {
+            List<BlockMutation> batch = rows.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, rows.size()));
+            Savepoint savepoint = connection.setSavepoint();
+            if (batchUpload(connection, BlockTable.V2, batch, true) == batch.size()) {
+                connection.releaseSavepoint(savepoint);
+                for (BlockMutation row : batch) {
+                    addDelta(deltas, row.getKey(), dictionary.cachedId(row.getBlockType()), 1);
+                }
+                continue;
+            }
+            // 部分坐标已有行：多行语句的影响行数无法区分是哪些行，逐行重新插入
+            connection.rollback(savepoint);
+            for (BlockMutation row : batch) {
+                if (batchUpload(connection, BlockTable.V2, Collections.singletonList(row), true) > 0) {
+                    addDelta(deltas, row.getKey(), dictionary.cachedId(row.getBlockType()), 1);
+                } else {
+                    conflicts.add(row);
+                }
+            }
+        }
+        return conflicts;
+    }
+
+    private static void addDelta(Map<SectionKey, Integer> deltas, BlockKey key, int materialId, int delta) {
+        SectionKey section = new SectionKey(key.getUid(), BlockCoords.chunkKey(key.getX() >> 4, key.getZ() >> 4), key.getY() >> 4, materialId);
+        deltas.merge(section, delta, Integer::sum);
+    }
+
+    /**
+     * 读取已有行的方块类型编号
+     * @param forUpdate 同时锁定读到的行；只应传入已知存在的坐标，缺失的坐标上会产生间隙锁
+     */
+    private Map<BlockKey, Integer> loadExistingMaterialIds(Connection connection, List<BlockKey> keys, boolean forUpdate) throws SQLException {
+        Map<String, List<BlockKey>> byUid = new HashMap<>();
+        for (BlockKey key : keys) {
+            byUid.computeIfAbsent(key.getUid(), uid -> new ArrayList<>()).add(key);
+        }
+        Map<BlockKey, Integer> existing = new HashMap<>();
+        for (Map.Entry<String, List<BlockKey>> entry : byUid.entrySet()) {
+            List<BlockKey> uidKeys = entry.getValue();
+            for (int from = 0; from < uidKeys.size(); from += MAX_ROWS_PER_STATEMENT) {
+                List<BlockKey> batch = uidKeys.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, uidKeys.size()));
+                String query = "SELECT x, y, z, material_id FROM block_data_v2 WHERE uid = ? AND " +
+                        dialect.tupleIn("(chunk_key, x, y, z)", "(?, ?, ?, ?)", batch.size()) + (forUpdate ? dialect.forUpdate() : "");
+                try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                    int index = 1;
+                    BlockTable.V2.setUid(stmt, index++, entry.getKey());
+                    for (BlockKey key : batch) {
+                        stmt.setLong(index++, BlockCoords.chunkKey(key.getX() >> 4, key.getZ() >> 4));
+                        stmt.setInt(index++, key.getX());
+                        stmt.setInt(index++, key.getY());
+                        stmt.setInt(index++, key.getZ());
+                    }
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            existing.put(new BlockKey(entry.getKey(), rs.getInt("x"), rs.getInt("y"), rs.getInt("z")), rs.getInt("material_id"));
+                        }
+                    }
+                }
+            }
+        }
+        return existing;
+    }
+
+    private void saveSectionCounts(Connection connection, Map<SectionKey, Integer> deltas) throws SQLException {
+        List<Map.Entry<SectionKey, Integer>> changed = new ArrayList<>();
+        for (Map.Entry<SectionKey, Integer> entry : deltas.entrySet()) {
+            if (entry.getValue() != 0) {
+                changed.add(entry);
+            }
+        }
+        // 各事务按相同的顺序更新计数行，避免并发写入时行锁顺序相反而死锁
+        changed.sort(Map.Entry.comparingByKey(SectionKey.ORDER));
+        for (int from = 0; from < changed.size(); from += MAX_ROWS_PER_STATEMENT) {
+            List<Map.Entry<SectionKey, Integer>> batch = changed.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, changed.size()));
+            StringBuilder query = new StringBuilder("INSERT INTO block_section_count (uid, chunk_key, section_y, material_id, count) VALUES ");
+            for (int i = 0; i < batch.size(); i++) {
+                query.append(i == 0 ? "(?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?)");
+            }
+            query.append(dialect.upsertAdd("uid, chunk_key, section_y, material_id", "count"));
+            try (PreparedStatement stmt = connection.prepareStatement(query.toString())) {
+                int index = 1;
+                for (Map.Entry<SectionKey, Integer> entry : batch) {
+                    index = entry.getKey().bind(stmt, index);
+                    stmt.setInt(index++, entry.getValue());
+                }
+                stmt.executeUpdate();
+            }
+        }
+        // 计数减到 0 的行删除，保持计数表只包含存在方块的区块段
+        String cleanup = "DELETE FROM block_section_count WHERE uid = ? AND chunk_key = ? AND section_y = ? AND material_id = ? AND count <= 0";
+        try (PreparedStatement stmt = connection.prepareStatement(cleanup)) {
+            boolean any = false;
+            for (Map.Entry<SectionKey, Integer> entry : changed) {
+                if (entry.getValue() < 0) {
+                    entry.getKey().bind(stmt, 1);
+                    stmt.addBatch();
+                    any = true;
+                }
+            }
+            if (any) {
+                stmt.executeBatch();
+            }
+        }
+    }
+
+    private void saveChunkFingerprints(Connection connection, Map<ChunkPos, Long> fingerprints) throws SQLException {
+        String query = "INSERT INTO chunk_fingerprint (uid, chunk_x, chunk_z, fingerprint) VALUES (?, ?, ?, ?)" +
+                dialect.upsert("uid, chunk_x, chunk_z", "fingerprint");
+        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+            for (Map.Entry<ChunkPos, Long> entry : fingerprints.entrySet()) {
+                BlockTable.V2.setUid(stmt, 1, entry.getKey().getUid());
+                stmt.setInt(2, entry.getKey().getX());
+                stmt.setInt(3, entry.getKey().getZ());
+                stmt.setLong(4, entry.getValue());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
+    private void appendChangeLog(Connection connection, byte[] serverId, List<BlockMutation> rows) throws SQLException {
+        long now = System.currentTimeMillis();
+        for (int from = 0; from < rows.size(); from += MAX_ROWS_PER_STATEMENT) {
+            List<BlockMutation> batch = rows.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, rows.size()));
+            StringBuilder query = new StringBuilder("INSERT INTO block_change_log (server_id, uid, x, y, z, material_id, created_at) VALUES ");
+            for (int i = 0; i < batch.size(); i++) {
+                query.append(i == 0 ? "(?, ?, ?, ?, ?, ?, ?)" : ", (?, ?, ?, ?, ?, ?, ?)");
+            }
+            try (PreparedStatement stmt = connection.prepareStatement(query.toString())) {
+                int index = 1;
+                for (BlockMutation row : batch) {
+                    BlockKey key = row.getKey();
+                    stmt.setBytes(index++, serverId);
+                    BlockTable.V2.setUid(stmt, index++, key.getUid());
+                    stmt.setInt(index++, key.getX());
+                    stmt.setInt(index++, key.getY());
+                    stmt.setInt(index++, key.getZ());
+                    if (row.isDelete()) {
+                        stmt.setNull(index++, Types.SMALLINT);
+                    } else {
+                        BlockTable.V2.setMaterial(stmt, index++, row.getBlockType(), dictionary);
+                    }
+                    stmt.setLong(index++, now);
+                }
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * 变更日志当前的最大序号
+     * @return 最大序号，日志为空时返回 0
+     * @throws SQLException 如果数据库操作失败
+     */
+    public long getLatestChangeSequence() throws SQLException {
+        if (!isConnected) {
+            throw new SQLException("Database is not connected");
+        }
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement("SELECT MAX(seq) FROM block_change_log");
+             ResultSet rs = stmt.executeQuery()) {
+            return rs.next() ? rs.getLong(1) : 0L;
+        }
+    }
+
+    /**
+     * 按序号顺序读取变更日志
+     * @param afterSeq 只读取序号大于该值的记录
+     * @param limit 最多读取的条数
+     * @param visitor 接收每条记录
+     * @return 读取的条数
+     * @throws SQLException 如果数据库操作失败
+     */
+    public int readChangeLog(long afterSeq, int limit, ChangeLogVisitor visitor) throws SQLException {
+        if (!isConnected) {
+            throw new SQLException("Database is not connected");
+        }
+        byte[] serverId = changeLogServerId;
+        String query = "SELECT seq, server_id, uid, x, y, z, material_id FROM block_change_log WHERE seq > ? ORDER BY seq LIMIT ?";
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
+            stmt.setLong(1, afterSeq);
+            stmt.setInt(2, limit);
+            int count = 0;
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    int materialId = rs.getInt("material_id");
+                    Material material = null;
+                    if (!rs.wasNull()) {
+                        String name = dictionary.nameOf(connection, materialId);
+                        material = name == null ? null : Material.getMaterial(name);
+                    }
+                    visitor.visit(rs.getLong("seq"), Arrays.equals(serverId, rs.getBytes("server_id")),
+                            BlockTable.uuidString(rs.getBytes("uid")), rs.getInt("x"), rs.getInt("y"), rs.getInt("z"), material);
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * 删除早于指定时间的变更日志
+     * @param cutoffMillis 时间点 (毫秒时间戳)
+     * @return 删除的条数
+     * @throws SQLException 如果数据库操作失败
+     */
+    public int pruneChangeLog(long cutoffMillis) throws SQLException {
+        if (!isConnected) {
+            throw new SQLException("Database is not connected");
+        }
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement("DELETE FROM block_change_log WHERE created_at < ?")) {
+            stmt.setLong(1, cutoffMillis);
+            return stmt.executeUpdate();
+        }
+    }
+
+    /**
+     * 读取区块上次同步时记录的指纹
+     * @param uid 世界UID
+     * @param chunkX 区块X
+     * @param chunkZ 区块Z
+     * @return 指纹，从未同步过的区块返回 null
+     * @throws SQLException 如果数据库操作失败
+     */
+    @Override
+    public Long getChunkFingerprint(String uid, int chunkX, int chunkZ) throws SQLException {
+        if (!isConnected) {
+            throw new SQLException("Database is not connected");
+        }
+        String query = "SELECT fingerprint FROM chunk_fingerprint WHERE uid = ? AND chunk_x = ? AND chunk_z = ?";
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
+            BlockTable.V2.setUid(stmt, 1, uid);
+            stmt.setInt(2, chunkX);
+            stmt.setInt(3, chunkZ);
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next()) {
+                return rs.getLong("fingerprint");
+            } else {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 读取一个区块范围内的全部索引数据
+     * @param uid 世界UID
+     * @param chunkX 区块X
+     * @param chunkZ 区块Z
+     * @return 以 BlockCoords.pack 压缩坐标为键的方块类型
+     * @throws SQLException 如果数据库操作失败
+     */
+    @Override
+    public Map<Long, String> getChunkBlockData(String uid, int chunkX, int chunkZ) throws SQLException {
+        if (!isConnected) {
+            throw new SQLException("Database is not connected");
+        }
+        int minX = chunkX << 4;
+        int minZ = chunkZ << 4;
+        BlockTable table = readTable;
+        String query = "SELECT x, y, z, " + table.materialColumn() + " FROM " + table.name() + " WHERE uid = ? " +
+                (table.hasChunkKey() ? "AND chunk_key = ?" : "AND x BETWEEN ? AND ? AND z BETWEEN ? AND ?");
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
+            table.setUid(stmt, 1, uid);
+            if (table.hasChunkKey()) {
+                stmt.setLong(2, BlockCoords.chunkKey(chunkX, chunkZ));
+            } else {
+                stmt.setInt(2, minX);
+                stmt.setInt(3, minX + 15);
+                stmt.setInt(4, minZ);
+                stmt.setInt(5, minZ + 15);
+            }
+            ResultSet rs = stmt.executeQuery();
+            Map<Long, String> blocks = new HashMap<>();
+            while (rs.next()) {
+                blocks.put(BlockCoords.pack(rs.getInt("x"), rs.getInt("y"), rs.getInt("z")), table.getMaterial(rs, connection, dictionary));
+            }
+            return blocks;
+        }
+    }
+
     /**
      * 根据坐标查询方块类型
      * @param x X坐标
@@ -210,14 +1150,16 @@ public class DatabaseManager {
         if (!isConnected) {
             throw new SQLException("Database is not connected");
         }
-        String query = "SELECT block_type FROM block_data WHERE x = ? AND y = ? AND z = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+        BlockTable table = readTable;
+        String query = "SELECT " + table.materialColumn() + " FROM " + table.name() + " WHERE x = ? AND y = ? AND z = ?";
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
             stmt.setInt(1, x);
             stmt.setInt(2, y);
             stmt.setInt(3, z);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                return rs.getString("block_type");
+                return table.getMaterial(rs, connection, dictionary);
             } else {
                 return null;
             }
@@ -232,26 +1174,20 @@ public class DatabaseManager {
      * @param z Z坐标
      * @throws SQLException 如果数据库操作失败
      */
+    @Override
     public void deleteBlockData(String uid, int x, int y, int z) throws SQLException {
-        if (!isConnected) {
-            throw new SQLException("Database is not connected");
-        }
-        String query = "DELETE FROM block_data WHERE uid = ? AND x = ? AND y = ? AND z = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, uid);
-            stmt.setInt(2, x);
-            stmt.setInt(3, y);
-            stmt.setInt(4, z);
-            stmt.executeUpdate();
-        }
+        applyBlockMutations(Collections.singletonList(BlockMutation.delete(uid, x, y, z)));
     }
+    /**
+     * 在日志中输出范围内 (全部世界) 各类型方块的数量，供调试使用
+     */
     public void countBlockTypesInRange(Location location, int range) throws SQLException {
         if (!isConnected) {
             throw new SQLException("Database is not connected");
         }
 
-        // 记录方法开始时间
-        long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        boolean failed = true;
 
         int minX = location.getBlockX() - range;
         int maxX = location.getBlockX() + range;
@@ -260,10 +1196,12 @@ public class DatabaseManager {
         int minZ = location.getBlockZ() - range;
         int maxZ = location.getBlockZ() + range;
 
-        String query = "SELECT block_type, COUNT(*) as count FROM block_data " +
+        BlockTable table = readTable;
+        String query = "SELECT " + table.materialColumn() + ", COUNT(*) as count FROM " + table.name() + " " +
                 "WHERE x BETWEEN ? AND ? AND y BETWEEN ? AND ? AND z BETWEEN ? AND ? " +
-                "GROUP BY block_type";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                "GROUP BY " + table.materialColumn();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
             stmt.setInt(1, minX);
             stmt.setInt(2, maxX);
             stmt.setInt(3, minY);
@@ -272,16 +1210,17 @@ public class DatabaseManager {
             stmt.setInt(6, maxZ);
             ResultSet rs = stmt.executeQuery();
             while (rs.next()) {
-                String blockType = rs.getString("block_type");
+                String blockType = table.getMaterial(rs, connection, dictionary);
                 int count = rs.getInt("count");
                 plugin.getLogger().info("附近有 " + count + " 个 " + blockType + " 类型的方块");
             }
+            failed = false;
+        } finally {
+            // 耗时计入运行指标，不再逐次写日志
+            if (metrics != null) {
+                metrics.recordStorage("countBlockTypesInRange.allWorlds", startNanos, failed);
+            }
         }
-
-        // 记录方法结束时间
-        long endTime = System.currentTimeMillis();
-        long duration = endTime - startTime;
-        plugin.getLogger().info("countBlockTypesInRange 方法执行耗时: " + duration + " 毫秒");
     }
     /**
      * 根据 UID 和坐标范围查询指定类型的方块
@@ -296,28 +1235,23 @@ public class DatabaseManager {
         if (!isConnected) {
             throw new SQLException("Database is not connected");
         }
-        int minX = location.getBlockX() - range;
-        int maxX = location.getBlockX() + range;
-        int minY = location.getBlockY() - range;
-        int maxY = location.getBlockY() + range;
-        int minZ = location.getBlockZ() - range;
-        int maxZ = location.getBlockZ() + range;
-
-        String query = "SELECT block_type FROM block_data WHERE uid = ? AND block_type = ? " +
-                "AND x BETWEEN ? AND ? AND y BETWEEN ? AND ? AND z BETWEEN ? AND ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, uid);
-            stmt.setString(2, material.toString());
-            stmt.setInt(3, minX);
-            stmt.setInt(4, maxX);
-            stmt.setInt(5, minY);
-            stmt.setInt(6, maxY);
-            stmt.setInt(7, minZ);
-            stmt.setInt(8, maxZ);
+        BlockTable table = readTable;
+        QueryPlanner plan = QueryPlanner.plan(table, BlockBox.around(location.getBlockX(), location.getBlockY(), location.getBlockZ(), range));
+        List<String> known = knownMaterialNames(table, Collections.singleton(material));
+        if (known.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String blockType = known.get(0);
+        String query = "SELECT " + table.materialColumn() + " FROM " + table.name() + " WHERE uid = ? AND " + table.materialColumn() + " = ? AND " + plan.condition();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
+            table.setUid(stmt, 1, uid);
+            table.setMaterial(stmt, 2, blockType, dictionary);
+            plan.bind(stmt, 3);
             ResultSet rs = stmt.executeQuery();
             List<String> blockTypes = new ArrayList<>();
             while (rs.next()) {
-                blockTypes.add(rs.getString("block_type"));
+                blockTypes.add(table.getMaterial(rs, connection, dictionary));
             }
             return blockTypes;
         }
@@ -326,29 +1260,25 @@ public class DatabaseManager {
 
 
 
+    @Override
     public List<Location> getBlockLocationsInRange(UUID serverUUID, Location location, Material material, int range) throws SQLException {
         if (!isConnected) {
             throw new SQLException("Database is not connected");
         }
 
-        int minX = location.getBlockX() - range;
-        int maxX = location.getBlockX() + range;
-        int minY = location.getBlockY() - range;
-        int maxY = location.getBlockY() + range;
-        int minZ = location.getBlockZ() - range;
-        int maxZ = location.getBlockZ() + range;
-
-        String query = "SELECT x, y, z FROM block_data WHERE uid = ? AND block_type = ? " +
-                "AND x BETWEEN ? AND ? AND y BETWEEN ? AND ? AND z BETWEEN ? AND ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, serverUUID.toString());
-            stmt.setString(2, material.toString());
-            stmt.setInt(3, minX);
-            stmt.setInt(4, maxX);
-            stmt.setInt(5, minY);
-            stmt.setInt(6, maxY);
-            stmt.setInt(7, minZ);
-            stmt.setInt(8, maxZ);
+        BlockTable table = readTable;
+        QueryPlanner plan = QueryPlanner.plan(table, BlockBox.around(location.getBlockX(), location.getBlockY(), location.getBlockZ(), range));
+        List<String> blockTypes = knownMaterialNames(table, Collections.singleton(material));
+        if (blockTypes.isEmpty()) {
+            return new ArrayList<>();
+        }
+        String blockType = blockTypes.get(0);
+        String query = "SELECT x, y, z FROM " + table.name() + " WHERE uid = ? AND " + table.materialColumn() + " = ? AND " + plan.condition();
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
+            table.setUid(stmt, 1, serverUUID.toString());
+            table.setMaterial(stmt, 2, blockType, dictionary);
+            plan.bind(stmt, 3);
             ResultSet rs = stmt.executeQuery();
 
             List<Location> locations = new ArrayList<>();
@@ -362,52 +1292,98 @@ public class DatabaseManager {
         }
     }
 
+    @Override
     public int countBlocksInRange(UUID serverUUID, Location location, int range) throws SQLException {
+        int total = 0;
+        for (int count : countBlockTypesInRange(serverUUID.toString(), location, range).values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * 统计范围内每种方块的数量
+     * 完整包含在范围内的区块段直接累加 block_section_count 中的计数，只有范围边缘不足一个区块段的部分逐行统计，
+     * 耗时取决于范围的大小而不是方块的密度
+     * @param uid 世界UID
+     * @param location 中心坐标
+     * @param range 范围
+     * @return 以方块类型名称为键的数量
+     * @throws SQLException 如果数据库操作失败
+     */
+    @Override
+    public Map<String, Integer> countBlockTypesInRange(String uid, Location location, int range) throws SQLException {
         if (!isConnected) {
             throw new SQLException("Database is not connected");
         }
-
-        int minX = location.getBlockX() - range;
-        int maxX = location.getBlockX() + range;
-        int minY = location.getBlockY() - range;
-        int maxY = location.getBlockY() + range;
-        int minZ = location.getBlockZ() - range;
-        int maxZ = location.getBlockZ() + range;
-
-        String query = "SELECT COUNT(*) as count FROM block_data WHERE uid = ? " +
-                "AND x BETWEEN ? AND ? AND y BETWEEN ? AND ? AND z BETWEEN ? AND ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, serverUUID.toString());
-            stmt.setInt(2, minX);
-            stmt.setInt(3, maxX);
-            stmt.setInt(4, minY);
-            stmt.setInt(5, maxY);
-            stmt.setInt(6, minZ);
-            stmt.setInt(7, maxZ);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                return rs.getInt("count");
-            } else {
-                return 0;
+        BlockTable table = readTable;
+        BlockBox box = BlockBox.around(location.getBlockX(), location.getBlockY(), location.getBlockZ(), range);
+        BlockBox interior = table.hasChunkKey() ? QueryPlanner.sectionInterior(box) : null;
+        List<BlockBox> edges = interior == null ? Collections.singletonList(box) : QueryPlanner.shell(box, interior);
+        Map<String, Integer> counts = new HashMap<>();
+        try (Connection connection = dataSource.getConnection()) {
+            if (interior != null) {
+                List<long[]> ranges = QueryPlanner.chunkKeyRanges(Collections.singletonList(interior));
+                StringBuilder query = new StringBuilder("SELECT material_id, SUM(count) as count FROM block_section_count WHERE uid = ? AND (");
+                for (int i = 0; i < ranges.size(); i++) {
+                    query.append(i == 0 ? "" : " OR ").append("chunk_key BETWEEN ? AND ?");
+                }
+                query.append(") AND section_y BETWEEN ? AND ? GROUP BY material_id");
+                try (PreparedStatement stmt = connection.prepareStatement(query.toString())) {
+                    int index = 1;
+                    table.setUid(stmt, index++, uid);
+                    for (long[] keyRange : ranges) {
+                        stmt.setLong(index++, keyRange[0]);
+                        stmt.setLong(index++, keyRange[1]);
+                    }
+                    stmt.setInt(index++, interior.getMinY() >> 4);
+                    stmt.setInt(index, interior.getMaxY() >> 4);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            counts.merge(table.getMaterial(rs, connection, dictionary), rs.getInt("count"), Integer::sum);
+                        }
+                    }
+                }
+            }
+            if (!edges.isEmpty()) {
+                QueryPlanner plan = QueryPlanner.plan(table, edges);
+                String query = "SELECT " + table.materialColumn() + ", COUNT(*) as count FROM " + table.name() +
+                        " WHERE uid = ? AND " + plan.condition() + " GROUP BY " + table.materialColumn();
+                try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                    table.setUid(stmt, 1, uid);
+                    plan.bind(stmt, 2);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            counts.merge(table.getMaterial(rs, connection, dictionary), rs.getInt("count"), Integer::sum);
+                        }
+                    }
+                }
             }
         }
+        return counts;
     }
 
-
+    @Override
     public Material getBlockTypeAtLocation(UUID serverUUID, Location location) throws SQLException {
         if (!isConnected) {
             throw new SQLException("Database is not connected");
         }
 
-        String query = "SELECT block_type FROM block_data WHERE uid = ? AND x = ? AND y = ? AND z = ?";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setString(1, serverUUID.toString());
+        BlockTable table = readTable;
+        String query = "SELECT " + table.materialColumn() + " FROM " + table.name() + " WHERE uid = ? AND x = ? AND y = ? AND z = ?" +
+                (table.hasChunkKey() ? " AND chunk_key = ?" : "");
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query)) {
+            table.setUid(stmt, 1, serverUUID.toString());
             stmt.setInt(2, location.getBlockX());
             stmt.setInt(3, location.getBlockY());
             stmt.setInt(4, location.getBlockZ());
+            if (table.hasChunkKey()) {
+                stmt.setLong(5, BlockCoords.chunkKey(location.getBlockX() >> 4, location.getBlockZ() >> 4));
+            }
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                return Material.valueOf(rs.getString("block_type"));
+                return Material.valueOf(table.getMaterial(rs, connection, dictionary));
             } else {
                 return null;
             }
@@ -417,46 +1393,213 @@ public class DatabaseManager {
 
 
 
+    /**
+     * 批量查询多个坐标的方块类型，每 MAX_ROWS_PER_STATEMENT 个坐标合并为一次查询
+     * @param serverUUID 世界UUID
+     * @param locations 坐标 (按方块坐标取整)
+     * @return 以传入的坐标为键的方块类型，未索引的坐标不在结果中
+     * @throws SQLException 如果数据库操作失败
+     */
+    @Override
+    public Map<Location, Material> getBlockTypesAtLocations(UUID serverUUID, Collection<Location> locations) throws SQLException {
+        if (!isConnected) {
+            throw new SQLException("Database is not connected");
+        }
+        Map<Long, List<Location>> byPosition = new HashMap<>();
+        for (Location location : locations) {
+            byPosition.computeIfAbsent(BlockCoords.pack(location.getBlockX(), location.getBlockY(), location.getBlockZ()),
+                    key -> new ArrayList<>(1)).add(location);
+        }
+        List<Long> positions = new ArrayList<>(byPosition.keySet());
+        Map<Location, Material> result = new HashMap<>();
+        BlockTable table = readTable;
+        try (Connection connection = dataSource.getConnection()) {
+            for (int from = 0; from < positions.size(); from += MAX_ROWS_PER_STATEMENT) {
+                List<Long> batch = positions.subList(from, Math.min(from + MAX_ROWS_PER_STATEMENT, positions.size()));
+                String query = "SELECT x, y, z, " + table.materialColumn() + " FROM " + table.name() + " WHERE uid = ? AND " +
+                        (table.hasChunkKey()
+                                ? dialect.tupleIn("(chunk_key, x, y, z)", "(?, ?, ?, ?)", batch.size())
+                                : dialect.tupleIn("(x, y, z)", "(?, ?, ?)", batch.size()));
+                try (PreparedStatement stmt = connection.prepareStatement(query)) {
+                    int index = 1;
+                    table.setUid(stmt, index++, serverUUID.toString());
+                    for (long packed : batch) {
+                        int x = BlockCoords.unpackX(packed);
+                        int z = BlockCoords.unpackZ(packed);
+                        if (table.hasChunkKey()) {
+                            stmt.setLong(index++, BlockCoords.chunkKey(x >> 4, z >> 4));
+                        }
+                        stmt.setInt(index++, x);
+                        stmt.setInt(index++, BlockCoords.unpackY(packed));
+                        stmt.setInt(index++, z);
+                    }
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            Material material = Material.getMaterial(table.getMaterial(rs, connection, dictionary));
+                            if (material == null) {
+                                continue;
+                            }
+                            for (Location location : byPosition.get(BlockCoords.pack(rs.getInt("x"), rs.getInt("y"), rs.getInt("z")))) {
+                                result.put(location, material);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 一次查询范围内多种类型方块的坐标
+     * @param serverUUID 世界UUID
+     * @param location 中心坐标
+     * @param materials 方块类型
+     * @param range 范围
+     * @return 按类型分组的坐标，没有找到的类型对应空列表
+     * @throws SQLException 如果数据库操作失败
+     */
+    @Override
+    public Map<Material, List<Location>> getBlockLocationsInRange(UUID serverUUID, Location location, Set<Material> materials, int range) throws SQLException {
+        Map<Material, List<Location>> result = new HashMap<>();
+        for (Material material : materials) {
+            result.put(material, new ArrayList<>());
+        }
+        forEachBlockInBoxes(serverUUID.toString(),
+                Collections.singletonList(BlockBox.around(location.getBlockX(), location.getBlockY(), location.getBlockZ(), range)),
+                materials, (x, y, z, material) -> {
+                    result.get(material).add(new Location(location.getWorld(), x, y, z));
+                    return true;
+                });
+        return result;
+    }
+
+    /**
+     * 获取与坐标最近的同类型方块坐标 (球形范围)
+     */
     public Location getNearestBlockLocation(UUID serverUUID, Material material, Location location, int range) throws SQLException {
+        List<Location> nearest = getNearestBlockLocations(serverUUID, Collections.singleton(material), location, range, 1);
+        return nearest.isEmpty() ? null : nearest.get(0);
+    }
+
+    /**
+     * 获取与坐标最近的 k 个指定类型方块坐标，按距离由近到远排列
+     * 按区块环由内向外分批查询，找够 k 个且外环不可能更近时停止，不再对整个范围排序
+     */
+    public List<Location> getNearestBlockLocations(UUID serverUUID, Collection<Material> materials, Location location, int range, int k) throws SQLException {
         if (!isConnected) {
             throw new SQLException("Database is not connected");
         }
+        long[] nearest = new NearestBlockFinder(null, this).findNearest(serverUUID.toString(),
+                location.getBlockX(), location.getBlockY(), location.getBlockZ(), materials, range, k);
+        List<Location> locations = new ArrayList<>(nearest.length);
+        for (long packed : nearest) {
+            locations.add(new Location(location.getWorld(), BlockCoords.unpackX(packed), BlockCoords.unpackY(packed), BlockCoords.unpackZ(packed)));
+        }
+        return locations;
+    }
 
-        int minX = location.getBlockX() - range;
-        int maxX = location.getBlockX() + range;
-        int minY = location.getBlockY() - range;
-        int maxY = location.getBlockY() + range;
-        int minZ = location.getBlockZ() - range;
-        int maxZ = location.getBlockZ() + range;
+    /**
+     * 遍历若干长方体 (互不重叠) 内指定类型的方块，所有长方体合并为一次查询
+     * 结果通过服务器端游标分批读取 (每批 STREAM_FETCH_SIZE 行)，内存占用与结果行数无关
+     * @param materials 方块类型，为 null 时遍历全部类型
+     * @param visitor 返回 false 时停止读取
+     */
+    @Override
+    public void forEachBlockInBoxes(String uid, List<BlockBox> boxes, Collection<Material> materials, BlockVisitor visitor) throws SQLException {
+        if (!isConnected) {
+            throw new SQLException("Database is not connected");
+        }
+        if (boxes.isEmpty() || (materials != null && materials.isEmpty())) {
+            return;
+        }
 
-        String query = "SELECT x, y, z, " +
-                "SQRT(POW(x - ?, 2) + POW(y - ?, 2) + POW(z - ?, 2)) AS distance " +
-                "FROM block_data WHERE uid = ? AND block_type = ? " +
-                "AND x BETWEEN ? AND ? AND y BETWEEN ? AND ? AND z BETWEEN ? AND ? " +
-                "ORDER BY distance ASC LIMIT 1";
-        try (PreparedStatement stmt = connection.prepareStatement(query)) {
-            stmt.setInt(1, location.getBlockX());
-            stmt.setInt(2, location.getBlockY());
-            stmt.setInt(3, location.getBlockZ());
-            stmt.setString(4, serverUUID.toString());
-            stmt.setString(5, material.toString());
-            stmt.setInt(6, minX);
-            stmt.setInt(7, maxX);
-            stmt.setInt(8, minY);
-            stmt.setInt(9, maxY);
-            stmt.setInt(10, minZ);
-            stmt.setInt(11, maxZ);
-            ResultSet rs = stmt.executeQuery();
-            if (rs.next()) {
-                int x = rs.getInt("x");
-                int y = rs.getInt("y");
-                int z = rs.getInt("z");
-                return new Location(location.getWorld(), x, y, z);
-            } else {
-                return null;
+        BlockTable table = readTable;
+        List<String> blockTypes = materials == null ? Collections.<String>emptyList() : knownMaterialNames(table, materials);
+        if (materials != null && blockTypes.isEmpty()) {
+            // 指定的类型都从未写入过
+            return;
+        }
+        StringBuilder query = new StringBuilder("SELECT x, y, z, ").append(table.materialColumn())
+                .append(" FROM ").append(table.name()).append(" WHERE uid = ? AND ");
+        if (!blockTypes.isEmpty()) {
+            query.append(table.materialColumn()).append(" IN (");
+            for (int i = 0; i < blockTypes.size(); i++) {
+                query.append(i == 0 ? "?" : ", ?");
+            }
+            query.append(") AND ");
+        }
+        QueryPlanner plan = QueryPlanner.plan(table, boxes);
+        query.append(plan.condition());
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement stmt = connection.prepareStatement(query.toString(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            stmt.setFetchSize(STREAM_FETCH_SIZE);
+            int index = 1;
+            table.setUid(stmt, index++, uid);
+            for (String blockType : blockTypes) {
+                table.setMaterial(stmt, index++, blockType, dictionary);
+            }
+            plan.bind(stmt, index);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    Material material = Material.getMaterial(table.getMaterial(rs, connection, dictionary));
+                    if (material != null && !visitor.visit(rs.getInt("x"), rs.getInt("y"), rs.getInt("z"), material)) {
+                        return;
+                    }
+                }
             }
         }
     }
 
+    /**
+     * block_section_count 的主键
+     */
+    private static final class SectionKey {
+        private static final Comparator<SectionKey> ORDER = Comparator.comparing((SectionKey key) -> key.uid)
+                .thenComparingLong(key -> key.chunkKey)
+                .thenComparingInt(key -> key.sectionY)
+                .thenComparingInt(key -> key.materialId);
+
+        private final String uid;
+        private final long chunkKey;
+        private final int sectionY;
+        private final int materialId;
+
+        private SectionKey(String uid, long chunkKey, int sectionY, int materialId) {
+            this.uid = uid;
+            this.chunkKey = chunkKey;
+            this.sectionY = sectionY;
+            this.materialId = materialId;
+        }
+
+        private int bind(PreparedStatement stmt, int index) throws SQLException {
+            BlockTable.V2.setUid(stmt, index++, uid);
+            stmt.setLong(index++, chunkKey);
+            stmt.setInt(index++, sectionY);
+            stmt.setInt(index++, materialId);
+            return index;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SectionKey)) {
+                return false;
+            }
+            SectionKey other = (SectionKey) o;
+            return chunkKey == other.chunkKey && sectionY == other.sectionY && materialId == other.materialId && uid.equals(other.uid);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = uid.hashCode();
+            result = 31 * result + Long.hashCode(chunkKey);
+            result = 31 * result + sectionY;
+            result = 31 * result + materialId;
+            return result;
+        }
+    }
 
 }
@@ -0,0 +1,69 @@
+package sunsky.io.blockindex;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的对数分桶直方图
+ * 第 i 个桶记录 [2^(i-1), 2^i) 范围内的值 (第 0 个桶只记录 0)，分位数取所在桶的上界，误差不超过一倍。
+ * 记录只有几次原子加法，可以在热点路径上使用。
+ */
+final class Histogram {
+
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value 非负的取值，负数按 0 记录
+     */
+    void record(long value) {
+        long v = Math.max(0L, value);
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(v));
+        total.add(v);
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0L);
+        }
+        total.reset();
+        max.set(0L);
+    }
+
+    /**
+     * 当前统计的快照 (记录与读取并发时各项之间可能有微小出入)
+     */
+    HistogramSummary summary() {
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        long maxValue = max.get();
+        return new HistogramSummary(n, n == 0 ? 0.0 : (double) total.sum() / n,
+                percentile(counts, n, 0.50, maxValue), percentile(counts, n, 0.95, maxValue),
+                percentile(counts, n, 0.99, maxValue), maxValue);
+    }
+
+    private static long percentile(long[] counts, long n, double quantile, long maxValue) {
+        if (n == 0) {
+            return 0L;
+        }
+        long rank = (long) Math.ceil(quantile * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long upperBound = i == 0 ? 0L : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+                return Math.min(upperBound, maxValue);
+            }
+        }
+        return maxValue;
+    }
+}
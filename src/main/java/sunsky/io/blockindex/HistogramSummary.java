@@ -0,0 +1,56 @@
+package sunsky.io.blockindex;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * 直方图快照：次数、平均值、分位数与最大值
+ * 耗时类指标的单位为微秒
+ */
+public final class HistogramSummary {
+
+    private final long count;
+    private final double mean;
+    private final long p50;
+    private final long p95;
+    private final long p99;
+    private final long max;
+
+    @ConstructorProperties({"count", "mean", "p50", "p95", "p99", "max"})
+    public HistogramSummary(long count, double mean, long p50, long p95, long p99, long max) {
+        this.count = count;
+        this.mean = mean;
+        this.p50 = p50;
+        this.p95 = p95;
+        this.p99 = p99;
+        this.max = max;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    public long getP50() {
+        return p50;
+    }
+
+    public long getP95() {
+        return p95;
+    }
+
+    public long getP99() {
+        return p99;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return "次数=" + count + " 平均=" + Math.round(mean) + " p50=" + p50 + " p95=" + p95 + " p99=" + p99 + " 最大=" + max;
+    }
+}
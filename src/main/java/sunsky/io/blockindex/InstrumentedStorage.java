@@ -0,0 +1,126 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * 为存储后端的每个操作记录耗时与失败次数
+ * 包装在实际的存储后端外层，插件内部与 API 都通过它访问存储。
+ * forEachBlockInBoxes 的耗时包括回调的执行时间。
+ */
+final class InstrumentedStorage implements BlockStorage {
+
+    private final BlockStorage delegate;
+    private final BlockIndexMetrics metrics;
+
+    InstrumentedStorage(BlockStorage delegate, BlockIndexMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @FunctionalInterface
+    private interface StorageCall<T> {
+        T call() throws SQLException;
+    }
+
+    private <T> T timed(String operation, StorageCall<T> call) throws SQLException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = call.call();
+            failed = false;
+            return result;
+        } finally {
+            metrics.recordStorage(operation, start, failed);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    @Override
+    public void applyBlockMutations(Collection<BlockMutation> mutations, Map<ChunkPos, Long> fingerprints) throws SQLException {
+        timed("applyBlockMutations", () -> {
+            delegate.applyBlockMutations(mutations, fingerprints);
+            return null;
+        });
+    }
+
+    @Override
+    public void uploadBlockData(String uid, int x, int y, int z, String blockType) throws SQLException {
+        timed("uploadBlockData", () -> {
+            delegate.uploadBlockData(uid, x, y, z, blockType);
+            return null;
+        });
+    }
+
+    @Override
+    public void deleteBlockData(String uid, int x, int y, int z) throws SQLException {
+        timed("deleteBlockData", () -> {
+            delegate.deleteBlockData(uid, x, y, z);
+            return null;
+        });
+    }
+
+    @Override
+    public Long getChunkFingerprint(String uid, int chunkX, int chunkZ) throws SQLException {
+        return timed("getChunkFingerprint", () -> delegate.getChunkFingerprint(uid, chunkX, chunkZ));
+    }
+
+    @Override
+    public Map<Long, String> getChunkBlockData(String uid, int chunkX, int chunkZ) throws SQLException {
+        return timed("getChunkBlockData", () -> delegate.getChunkBlockData(uid, chunkX, chunkZ));
+    }
+
+    @Override
+    public Material getBlockTypeAtLocation(UUID serverUUID, Location location) throws SQLException {
+        return timed("getBlockTypeAtLocation", () -> delegate.getBlockTypeAtLocation(serverUUID, location));
+    }
+
+    @Override
+    public Map<Location, Material> getBlockTypesAtLocations(UUID serverUUID, Collection<Location> locations) throws SQLException {
+        return timed("getBlockTypesAtLocations", () -> delegate.getBlockTypesAtLocations(serverUUID, locations));
+    }
+
+    @Override
+    public List<Location> getBlockLocationsInRange(UUID serverUUID, Location location, Material material, int range) throws SQLException {
+        return timed("getBlockLocationsInRange", () -> delegate.getBlockLocationsInRange(serverUUID, location, material, range));
+    }
+
+    @Override
+    public Map<Material, List<Location>> getBlockLocationsInRange(UUID serverUUID, Location location, Set<Material> materials, int range) throws SQLException {
+        return timed("getBlockLocationsInRange.materials", () -> delegate.getBlockLocationsInRange(serverUUID, location, materials, range));
+    }
+
+    @Override
+    public int countBlocksInRange(UUID serverUUID, Location location, int range) throws SQLException {
+        return timed("countBlocksInRange", () -> delegate.countBlocksInRange(serverUUID, location, range));
+    }
+
+    @Override
+    public Map<String, Integer> countBlockTypesInRange(String uid, Location location, int range) throws SQLException {
+        return timed("countBlockTypesInRange", () -> delegate.countBlockTypesInRange(uid, location, range));
+    }
+
+    @Override
+    public void forEachBlockInBoxes(String uid, List<BlockBox> boxes, Collection<Material> materials, BlockVisitor visitor) throws SQLException {
+        timed("forEachBlockInBoxes", () -> {
+            delegate.forEachBlockInBoxes(uid, boxes, materials, visitor);
+            return null;
+        });
+    }
+
+    @Override
+    public void closeDatabase() throws SQLException {
+        delegate.closeDatabase();
+    }
+}
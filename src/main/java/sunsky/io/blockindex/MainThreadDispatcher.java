@@ -0,0 +1,191 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 主线程任务调度器
+ * 延迟检查 (如锄地后确认耕地) 与异步查询的主线程回调不再各自创建 Bukkit 任务，而是进入同一个队列，
+ * 每 tick 由一个定时任务集中执行。每 tick 的执行时间不超过预算 (至少执行一个任务)，剩余的任务顺延到下一 tick，
+ * 插件每 tick 占用的主线程时间因此有上限，并记入 BlockIndexMetrics。
+ * 任务可从任意线程提交；带 key 的任务在执行前重复提交只保留第一个。
+ * 关闭后在主线程中 execute 提交的任务立即执行，其他线程提交的任务被丢弃并记录日志；schedule 提交的延迟任务被拒绝。
+ */
+public class MainThreadDispatcher implements Executor {
+
+    private final long budgetNanos;
+    private final Logger logger;
+    private final BlockIndexMetrics metrics;
+    private final Queue<Task> incoming = new ConcurrentLinkedQueue<>();
+    private final Set<Object> pendingKeys = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger depth = new AtomicInteger();
+    // 当前 tick 序号，只在主线程递增；提交时据此计算到期 tick
+    private volatile long tick;
+    private volatile boolean stopped;
+
+    // 以下只在主线程访问
+    private final PriorityQueue<Task> delayed = new PriorityQueue<>(Comparator.comparingLong((Task task) -> task.dueTick));
+    private final ArrayDeque<Task> ready = new ArrayDeque<>();
+
+    private BukkitTask task;
+
+    /**
+     * @param budgetMicros 每 tick 的执行预算 (微秒)
+     * @param logger 任务抛出异常时记录
+     * @param metrics 运行指标，记录每 tick 的执行时间与超出预算的次数
+     */
+    public MainThreadDispatcher(long budgetMicros, Logger logger, BlockIndexMetrics metrics) {
+        this.budgetNanos = Math.max(1L, budgetMicros) * 1000L;
+        this.logger = logger;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 开始每 tick 执行一次
+     */
+    public void start(Plugin plugin) {
+        task = Bukkit.getScheduler().runTaskTimer(plugin, this::sweep, 1L, 1L);
+    }
+
+    /**
+     * 在下一 tick 执行；已关闭时在主线程中立即执行，在其他线程中丢弃
+     */
+    @Override
+    public void execute(Runnable command) {
+        submit(new Task(null, 0, command));
+    }
+
+    /**
+     * 在 delayTicks 个 tick 之后执行
+     * @param key 不为 null 时，同一 key 尚未执行的任务只保留第一个
+     * @return 是否已加入 (同 key 的任务尚未执行或已关闭时返回 false)
+     */
+    public boolean schedule(Object key, int delayTicks, Runnable command) {
+        if (stopped || (key != null && !pendingKeys.add(key))) {
+            return false;
+        }
+        submit(new Task(key, Math.max(0, delayTicks), command));
+        return true;
+    }
+
+    /**
+     * 尚未执行的任务数
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    private void submit(Task task) {
+        // 主线程事件发生在本 tick 的调度之后，delayTicks 个 tick 之后的调度中执行
+        task.dueTick = tick + task.delayTicks;
+        depth.incrementAndGet();
+        incoming.add(task);
+        if (stopped) {
+            // shutdown 的最后一次清空可能已经结束，任务只能在主线程中执行
+            if (Bukkit.isPrimaryThread()) {
+                runIncoming();
+            } else if (incoming.remove(task)) {
+                depth.decrementAndGet();
+                if (task.key != null) {
+                    pendingKeys.remove(task.key);
+                }
+                logger.log(Level.WARNING, "调度器已关闭，丢弃在线程 " + Thread.currentThread().getName() + " 中提交的主线程任务");
+            }
+        }
+    }
+
+    /**
+     * 执行到期的任务，直到队列为空或用完本 tick 的预算 (主线程)
+     */
+    void sweep() {
+        long start = System.nanoTime();
+        long now = ++tick;
+        Task next;
+        while ((next = incoming.poll()) != null) {
+            if (next.dueTick < now) {
+                ready.add(next);
+            } else {
+                delayed.add(next);
+            }
+        }
+        while (!delayed.isEmpty() && delayed.peek().dueTick <= now) {
+            ready.add(delayed.poll());
+        }
+        if (ready.isEmpty()) {
+            return;
+        }
+        int executed = 0;
+        while (!ready.isEmpty() && (executed == 0 || System.nanoTime() - start < budgetNanos)) {
+            run(ready.poll());
+            executed++;
+        }
+        if (metrics != null) {
+            metrics.recordDispatch(start, System.nanoTime() - start > budgetNanos);
+        }
+    }
+
+    private void run(Task task) {
+        depth.decrementAndGet();
+        // 先移除 key，任务可以重新提交自己
+        if (task.key != null) {
+            pendingKeys.remove(task.key);
+        }
+        try {
+            task.command.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "主线程任务执行失败", e);
+        }
+    }
+
+    /**
+     * 停止定时执行，并立即执行所有剩余的任务 (包括未到期的)，在插件关闭时于主线程调用
+     */
+    public void shutdown() {
+        stopped = true;
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+        Task next;
+        while ((next = ready.poll()) != null) {
+            run(next);
+        }
+        while ((next = delayed.poll()) != null) {
+            run(next);
+        }
+        runIncoming();
+    }
+
+    private void runIncoming() {
+        Task next;
+        while ((next = incoming.poll()) != null) {
+            run(next);
+        }
+    }
+
+    private static final class Task {
+        private final Object key;
+        private final int delayTicks;
+        private final Runnable command;
+        private long dueTick;
+
+        private Task(Object key, int delayTicks, Runnable command) {
+            this.key = key;
+            this.delayTicks = delayTicks;
+            this.command = command;
+        }
+    }
+}
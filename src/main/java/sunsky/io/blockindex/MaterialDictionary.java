@@ -0,0 +1,126 @@
+package sunsky.io.blockindex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 方块类型字典 (表 block_material)
+ * block_data_v2 中只保存类型编号，名称与编号的对应关系缓存在内存中。
+ * 编号由 MAX(id) + 1 分配而不是自增列，重复插入不会消耗编号。
+ */
+public class MaterialDictionary {
+
+    private static final int MAX_ATTEMPTS = 5;
+
+    private final SqlDialect dialect;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+
+    MaterialDictionary(SqlDialect dialect) {
+        this.dialect = dialect;
+    }
+
+    /**
+     * 读取整张字典表
+     */
+    public void load(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT id, name FROM block_material")) {
+            while (rs.next()) {
+                cache(rs.getInt("id"), rs.getString("name"));
+            }
+        }
+    }
+
+    /**
+     * 已缓存的类型编号
+     * @return 编号，未缓存时返回 null
+     */
+    public Integer cachedId(String name) {
+        return ids.get(name);
+    }
+
+    /**
+     * 查询类型编号，不分配新编号 (供只读查询使用)
+     * @return 编号，字典中不存在时返回 null
+     */
+    public Integer lookup(Connection connection, String name) throws SQLException {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT id FROM block_material WHERE name = ?")) {
+            stmt.setString(1, name);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) {
+                    return null;
+                }
+                id = rs.getInt("id");
+                cache(id, name);
+                return id;
+            }
+        }
+    }
+
+    /**
+     * 取得类型编号，字典中不存在时分配新编号
+     * @param connection 自动提交的连接，不能是写入方块数据的事务连接 (事务回滚会使已缓存的编号失效)
+     */
+    public int resolve(Connection connection, String name) throws SQLException {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (this) {
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                try (PreparedStatement stmt = connection.prepareStatement("SELECT id FROM block_material WHERE name = ?")) {
+                    stmt.setString(1, name);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        if (rs.next()) {
+                            cache(rs.getInt("id"), name);
+                            return rs.getInt("id");
+                        }
+                    }
+                }
+                // 其他服务器同时分配了同一编号时主键冲突被忽略，重新查询即可
+                try (PreparedStatement stmt = connection.prepareStatement(
+                        dialect.insertIgnore() + "block_material (id, name) SELECT COALESCE(MAX(id), 0) + 1, ? FROM block_material")) {
+                    stmt.setString(1, name);
+                    stmt.executeUpdate();
+                }
+            }
+        }
+        throw new SQLException("Unable to allocate material id for " + name);
+    }
+
+    /**
+     * 类型编号对应的名称，未缓存时从字典表读取
+     * @return 名称，字典中不存在时返回 null
+     */
+    public String nameOf(Connection connection, int id) throws SQLException {
+        String name = names.get(id);
+        if (name != null) {
+            return name;
+        }
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT name FROM block_material WHERE id = ?")) {
+            stmt.setInt(1, id);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    name = rs.getString("name");
+                    cache(id, name);
+                }
+                return name;
+            }
+        }
+    }
+
+    private void cache(int id, String name) {
+        ids.put(name, id);
+        names.put(id, name);
+    }
+}
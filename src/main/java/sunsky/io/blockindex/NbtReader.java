@@ -0,0 +1,180 @@
+package sunsky.io.blockindex;
+
+import java.io.DataInput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 只读的 NBT 解析器，供离线读取区域文件使用
+ * 复合标签解析为 Map，列表解析为 List，数组解析为对应的基本类型数组。
+ * 根复合标签可以只保留指定的键，其余标签直接跳过，不创建对象。
+ */
+final class NbtReader {
+
+    private static final int END = 0;
+    private static final int BYTE = 1;
+    private static final int SHORT = 2;
+    private static final int INT = 3;
+    private static final int LONG = 4;
+    private static final int FLOAT = 5;
+    private static final int DOUBLE = 6;
+    private static final int BYTE_ARRAY = 7;
+    private static final int STRING = 8;
+    private static final int LIST = 9;
+    private static final int COMPOUND = 10;
+    private static final int INT_ARRAY = 11;
+    private static final int LONG_ARRAY = 12;
+
+    private NbtReader() {
+    }
+
+    /**
+     * 读取根复合标签
+     * @param rootKeys 根标签中需要保留的键，为 null 时保留全部
+     */
+    static Map<String, Object> readRoot(DataInput in, Set<String> rootKeys) throws IOException {
+        int type = in.readByte();
+        if (type != COMPOUND) {
+            throw new IOException("Root tag is not a compound: " + type);
+        }
+        in.readUTF();
+        return readCompound(in, rootKeys);
+    }
+
+    private static Map<String, Object> readCompound(DataInput in, Set<String> keys) throws IOException {
+        Map<String, Object> compound = new HashMap<>();
+        while (true) {
+            int type = in.readByte();
+            if (type == END) {
+                return compound;
+            }
+            String name = in.readUTF();
+            if (keys == null || keys.contains(name)) {
+                compound.put(name, readPayload(in, type));
+            } else {
+                skipPayload(in, type);
+            }
+        }
+    }
+
+    private static Object readPayload(DataInput in, int type) throws IOException {
+        switch (type) {
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case BYTE_ARRAY: {
+                byte[] value = new byte[in.readInt()];
+                in.readFully(value);
+                return value;
+            }
+            case STRING:
+                return in.readUTF();
+            case LIST: {
+                int elementType = in.readByte();
+                int length = in.readInt();
+                if (length <= 0) {
+                    return Collections.emptyList();
+                }
+                List<Object> list = new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    list.add(readPayload(in, elementType));
+                }
+                return list;
+            }
+            case COMPOUND:
+                return readCompound(in, null);
+            case INT_ARRAY: {
+                int[] value = new int[in.readInt()];
+                for (int i = 0; i < value.length; i++) {
+                    value[i] = in.readInt();
+                }
+                return value;
+            }
+            case LONG_ARRAY: {
+                long[] value = new long[in.readInt()];
+                for (int i = 0; i < value.length; i++) {
+                    value[i] = in.readLong();
+                }
+                return value;
+            }
+            default:
+                throw new IOException("Unknown tag type " + type);
+        }
+    }
+
+    private static void skipPayload(DataInput in, int type) throws IOException {
+        switch (type) {
+            case BYTE:
+                skipFully(in, 1);
+                break;
+            case SHORT:
+                skipFully(in, 2);
+                break;
+            case INT:
+            case FLOAT:
+                skipFully(in, 4);
+                break;
+            case LONG:
+            case DOUBLE:
+                skipFully(in, 8);
+                break;
+            case BYTE_ARRAY:
+                skipFully(in, in.readInt());
+                break;
+            case STRING:
+                skipFully(in, in.readUnsignedShort());
+                break;
+            case LIST: {
+                int elementType = in.readByte();
+                int length = in.readInt();
+                for (int i = 0; i < length; i++) {
+                    skipPayload(in, elementType);
+                }
+                break;
+            }
+            case COMPOUND:
+                while (true) {
+                    int child = in.readByte();
+                    if (child == END) {
+                        break;
+                    }
+                    skipFully(in, in.readUnsignedShort());
+                    skipPayload(in, child);
+                }
+                break;
+            case INT_ARRAY:
+                skipFully(in, in.readInt() * 4L);
+                break;
+            case LONG_ARRAY:
+                skipFully(in, in.readInt() * 8L);
+                break;
+            default:
+                throw new IOException("Unknown tag type " + type);
+        }
+    }
+
+    private static void skipFully(DataInput in, long bytes) throws IOException {
+        while (bytes > 0) {
+            int skipped = in.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                in.readByte();
+                skipped = 1;
+            }
+            bytes -= skipped;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Material;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 最近邻查询
+ * 以查询点所在区块为中心按区块环由内向外搜索，维护当前最近的 k 个结果；
+ * 一旦下一环中不可能存在更近的方块 (或已超出最大半径) 就立即停止。
+ * 已驻留内存的区块直接读内存，其余区块按环组 (1, 2-3, 4-7, ...) 合并为一次数据库查询。
+ */
+public class NearestBlockFinder {
+
+    private final BlockMemoryIndex memoryIndex;
+    private final BlockStorage storage;
+
+    /**
+     * @param memoryIndex 内存索引，为 null 时只查询数据库
+     * @param storage 存储后端
+     */
+    public NearestBlockFinder(BlockMemoryIndex memoryIndex, BlockStorage storage) {
+        this.memoryIndex = memoryIndex;
+        this.storage = storage;
+    }
+
+    /**
+     * 查询距离中心点最近的 k 个方块
+     * @param uid 世界UID
+     * @param cx 中心X
+     * @param cy 中心Y
+     * @param cz 中心Z
+     * @param materials 方块类型
+     * @param maxRadius 最大半径 (球形)
+     * @param k 最多返回的数量
+     * @return 按距离由近到远排列的 BlockCoords.pack 压缩坐标
+     * @throws SQLException 如果数据库操作失败
+     */
+    public long[] findNearest(String uid, int cx, int cy, int cz, Collection<Material> materials, int maxRadius, int k) throws SQLException {
+        if (k <= 0 || maxRadius < 0 || materials.isEmpty()) {
+            return new long[0];
+        }
+        boolean[] wanted = new boolean[Material.values().length];
+        for (Material material : materials) {
+            wanted[material.ordinal()] = true;
+        }
+        long radius2 = (long) maxRadius * maxRadius;
+        Candidates best = new Candidates(k);
+        BlockVisitor collector = (x, y, z, material) -> {
+            // 存储中无法识别的类型 (RegionFileStorage 传入 null) 不会是查询的类型
+            if (material != null && wanted[material.ordinal()]) {
+                long dx = x - cx;
+                long dy = y - cy;
+                long dz = z - cz;
+                long distance = dx * dx + dy * dy + dz * dz;
+                if (distance <= radius2) {
+                    best.offer(distance, BlockCoords.pack(x, y, z));
+                }
+            }
+            return true;
+        };
+
+        BlockBox bounds = BlockBox.around(cx, cy, cz, maxRadius);
+        int centerChunkX = cx >> 4;
+        int centerChunkZ = cz >> 4;
+        int maxRing = Math.max(
+                Math.max(centerChunkX - (bounds.getMinX() >> 4), (bounds.getMaxX() >> 4) - centerChunkX),
+                Math.max(centerChunkZ - (bounds.getMinZ() >> 4), (bounds.getMaxZ() >> 4) - centerChunkZ));
+
+        int ring = 0;
+        while (ring <= maxRing) {
+            long bound = ring == 0 ? 0L : 16L * ring - 15L;
+            if (bound * bound > radius2 || (best.isFull() && bound * bound >= best.worst())) {
+                break;
+            }
+            int lastRing = ring == 0 ? 0 : Math.min(maxRing, ring * 2 - 1);
+            Set<Long> missing = new HashSet<>();
+            for (int d = ring; d <= lastRing; d++) {
+                for (long chunkKey : ringChunks(centerChunkX, centerChunkZ, d)) {
+                    int chunkX = BlockCoords.chunkX(chunkKey);
+                    int chunkZ = BlockCoords.chunkZ(chunkKey);
+                    long chunkDistance = distanceToChunk(cx, cz, chunkX, chunkZ);
+                    if (chunkDistance > radius2 || (best.isFull() && chunkDistance >= best.worst())) {
+                        continue;
+                    }
+                    if (memoryIndex == null
+                            || !memoryIndex.forEachInChunk(uid, chunkX, chunkZ, bounds.getMinY(), bounds.getMaxY(), collector)) {
+                        missing.add(chunkKey);
+                    }
+                }
+            }
+            if (!missing.isEmpty()) {
+                List<BlockBox> boxes = annulus(centerChunkX, centerChunkZ, ring, lastRing, bounds);
+                storage.forEachBlockInBoxes(uid, boxes, materials, (x, y, z, material) ->
+                        !missing.contains(BlockCoords.chunkKey(x >> 4, z >> 4)) || collector.visit(x, y, z, material));
+            }
+            ring = lastRing + 1;
+        }
+        return best.sortedPositions();
+    }
+
+    /**
+     * 与中心区块切比雪夫距离为 d 的所有区块
+     */
+    private static List<Long> ringChunks(int centerX, int centerZ, int d) {
+        List<Long> chunks = new ArrayList<>(Math.max(1, 8 * d));
+        if (d == 0) {
+            chunks.add(BlockCoords.chunkKey(centerX, centerZ));
+            return chunks;
+        }
+        for (int x = -d; x <= d; x++) {
+            chunks.add(BlockCoords.chunkKey(centerX + x, centerZ - d));
+            chunks.add(BlockCoords.chunkKey(centerX + x, centerZ + d));
+        }
+        for (int z = -d + 1; z <= d - 1; z++) {
+            chunks.add(BlockCoords.chunkKey(centerX - d, centerZ + z));
+            chunks.add(BlockCoords.chunkKey(centerX + d, centerZ + z));
+        }
+        return chunks;
+    }
+
+    /**
+     * 第 fromRing 到 toRing 环组成的方环，拆为至多 4 个互不重叠的长方体并裁剪到查询范围
+     */
+    private static List<BlockBox> annulus(int centerX, int centerZ, int fromRing, int toRing, BlockBox bounds) {
+        List<BlockBox> boxes = new ArrayList<>(4);
+        if (fromRing == 0) {
+            addChunkBox(boxes, centerX - toRing, centerZ - toRing, centerX + toRing, centerZ + toRing, bounds);
+            return boxes;
+        }
+        addChunkBox(boxes, centerX - toRing, centerZ + fromRing, centerX + toRing, centerZ + toRing, bounds);
+        addChunkBox(boxes, centerX - toRing, centerZ - toRing, centerX + toRing, centerZ - fromRing, bounds);
+        addChunkBox(boxes, centerX - toRing, centerZ - fromRing + 1, centerX - fromRing, centerZ + fromRing - 1, bounds);
+        addChunkBox(boxes, centerX + fromRing, centerZ - fromRing + 1, centerX + toRing, centerZ + fromRing - 1, bounds);
+        return boxes;
+    }
+
+    private static void addChunkBox(List<BlockBox> boxes, int fromChunkX, int fromChunkZ, int toChunkX, int toChunkZ, BlockBox bounds) {
+        BlockBox box = new BlockBox(fromChunkX << 4, bounds.getMinY(), fromChunkZ << 4,
+                (toChunkX << 4) + 15, bounds.getMaxY(), (toChunkZ << 4) + 15).intersect(bounds);
+        if (!box.isEmpty()) {
+            boxes.add(box);
+        }
+    }
+
+    /**
+     * 中心点到区块 (整列) 的最小水平距离平方
+     */
+    private static long distanceToChunk(int cx, int cz, int chunkX, int chunkZ) {
+        long dx = axisGap(cx, chunkX << 4);
+        long dz = axisGap(cz, chunkZ << 4);
+        return dx * dx + dz * dz;
+    }
+
+    private static long axisGap(int value, int from) {
+        if (value < from) {
+            return from - value;
+        }
+        return value > from + 15 ? value - from - 15 : 0;
+    }
+
+    /**
+     * 最近的 k 个候选，按距离升序保存
+     */
+    private static final class Candidates {
+        private final long[] distances;
+        private final long[] positions;
+        private int size;
+
+        private Candidates(int k) {
+            this.distances = new long[k];
+            this.positions = new long[k];
+        }
+
+        private boolean isFull() {
+            return size == distances.length;
+        }
+
+        private long worst() {
+            return distances[size - 1];
+        }
+
+        private void offer(long distance, long position) {
+            if (isFull() && distance >= worst()) {
+                return;
+            }
+            int i = isFull() ? size - 1 : size++;
+            while (i > 0 && distances[i - 1] > distance) {
+                distances[i] = distances[i - 1];
+                positions[i] = positions[i - 1];
+                i--;
+            }
+            distances[i] = distance;
+            positions[i] = position;
+        }
+
+        private long[] sortedPositions() {
+            long[] result = new long[size];
+            System.arraycopy(positions, 0, result, 0, size);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package sunsky.io.blockindex;
+
+/**
+ * 批量接收查询结果的坐标，坐标以 BlockCoords.pack 压缩为 long
+ */
+@FunctionalInterface
+public interface PackedPositionConsumer {
+
+    /**
+     * @param positions 坐标缓冲区，调用返回后会被复用，需要保留的数据应自行复制
+     * @param count 本批有效的坐标数 (positions[0] 到 positions[count - 1])
+     * @return 返回 false 时停止遍历
+     */
+    boolean accept(long[] positions, int count);
+}
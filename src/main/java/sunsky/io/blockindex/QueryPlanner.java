@@ -0,0 +1,133 @@
+package sunsky.io.blockindex;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 范围查询的条件生成
+ * 区块键 chunkKey(cx, cz) 在 cx 相同时随 cz 连续递增，因此一个长方体覆盖的每一列区块
+ * (相同 cx) 对应一段连续的 chunk_key 区间。条件先用这些区间在 (uid, chunk_key) 索引上定位，
+ * 再用坐标精确过滤边缘区块中超出范围的方块。
+ * 没有 chunk_key 列的旧表只生成坐标条件。
+ */
+final class QueryPlanner {
+
+    private final List<BlockBox> boxes;
+    private final List<long[]> chunkKeyRanges;
+
+    private QueryPlanner(List<BlockBox> boxes, List<long[]> chunkKeyRanges) {
+        this.boxes = boxes;
+        this.chunkKeyRanges = chunkKeyRanges;
+    }
+
+    static QueryPlanner plan(BlockTable table, BlockBox box) {
+        return plan(table, Collections.singletonList(box));
+    }
+
+    /**
+     * @param boxes 互不重叠的长方体
+     */
+    static QueryPlanner plan(BlockTable table, List<BlockBox> boxes) {
+        List<long[]> ranges = table.hasChunkKey() ? chunkKeyRanges(boxes) : Collections.<long[]>emptyList();
+        return new QueryPlanner(boxes, ranges);
+    }
+
+    /**
+     * 覆盖这些长方体的 chunk_key 区间，已排序且相邻区间已合并
+     */
+    static List<long[]> chunkKeyRanges(List<BlockBox> boxes) {
+        List<long[]> ranges = new ArrayList<>();
+        for (BlockBox box : boxes) {
+            for (int chunkX = box.getMinX() >> 4; chunkX <= box.getMaxX() >> 4; chunkX++) {
+                ranges.add(new long[]{
+                        BlockCoords.chunkKey(chunkX, box.getMinZ() >> 4),
+                        BlockCoords.chunkKey(chunkX, box.getMaxZ() >> 4)});
+            }
+        }
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+        List<long[]> merged = new ArrayList<>(ranges.size());
+        for (long[] range : ranges) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && range[0] <= last[1] + 1) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 长方体内完整包含的区块段 (16x16x16) 组成的长方体
+     * @return 没有完整包含的区块段时返回 null
+     */
+    static BlockBox sectionInterior(BlockBox box) {
+        BlockBox interior = new BlockBox(
+                ((box.getMinX() + 15) >> 4) << 4, ((box.getMinY() + 15) >> 4) << 4, ((box.getMinZ() + 15) >> 4) << 4,
+                (((box.getMaxX() + 1) >> 4) << 4) - 1, (((box.getMaxY() + 1) >> 4) << 4) - 1, (((box.getMaxZ() + 1) >> 4) << 4) - 1);
+        return interior.isEmpty() ? null : interior;
+    }
+
+    /**
+     * 长方体去掉内部长方体后剩余的部分，拆为至多 6 个互不重叠的长方体
+     */
+    static List<BlockBox> shell(BlockBox box, BlockBox interior) {
+        List<BlockBox> shell = new ArrayList<>(6);
+        addIfNotEmpty(shell, new BlockBox(box.getMinX(), box.getMinY(), box.getMinZ(), interior.getMinX() - 1, box.getMaxY(), box.getMaxZ()));
+        addIfNotEmpty(shell, new BlockBox(interior.getMaxX() + 1, box.getMinY(), box.getMinZ(), box.getMaxX(), box.getMaxY(), box.getMaxZ()));
+        addIfNotEmpty(shell, new BlockBox(interior.getMinX(), box.getMinY(), box.getMinZ(), interior.getMaxX(), box.getMaxY(), interior.getMinZ() - 1));
+        addIfNotEmpty(shell, new BlockBox(interior.getMinX(), box.getMinY(), interior.getMaxZ() + 1, interior.getMaxX(), box.getMaxY(), box.getMaxZ()));
+        addIfNotEmpty(shell, new BlockBox(interior.getMinX(), box.getMinY(), interior.getMinZ(), interior.getMaxX(), interior.getMinY() - 1, interior.getMaxZ()));
+        addIfNotEmpty(shell, new BlockBox(interior.getMinX(), interior.getMaxY() + 1, interior.getMinZ(), interior.getMaxX(), box.getMaxY(), interior.getMaxZ()));
+        return shell;
+    }
+
+    private static void addIfNotEmpty(List<BlockBox> boxes, BlockBox box) {
+        if (!box.isEmpty()) {
+            boxes.add(box);
+        }
+    }
+
+    /**
+     * WHERE 子句中的范围条件，参数由 bind 按相同顺序写入
+     */
+    String condition() {
+        StringBuilder condition = new StringBuilder();
+        if (!chunkKeyRanges.isEmpty()) {
+            condition.append("(");
+            for (int i = 0; i < chunkKeyRanges.size(); i++) {
+                condition.append(i == 0 ? "" : " OR ").append("chunk_key BETWEEN ? AND ?");
+            }
+            condition.append(") AND ");
+        }
+        condition.append("(");
+        for (int i = 0; i < boxes.size(); i++) {
+            condition.append(i == 0 ? "" : " OR ").append("(x BETWEEN ? AND ? AND y BETWEEN ? AND ? AND z BETWEEN ? AND ?)");
+        }
+        return condition.append(")").toString();
+    }
+
+    /**
+     * 写入范围条件的参数
+     * @return 下一个参数的位置
+     */
+    int bind(PreparedStatement stmt, int index) throws SQLException {
+        for (long[] range : chunkKeyRanges) {
+            stmt.setLong(index++, range[0]);
+            stmt.setLong(index++, range[1]);
+        }
+        for (BlockBox box : boxes) {
+            stmt.setInt(index++, box.getMinX());
+            stmt.setInt(index++, box.getMaxX());
+            stmt.setInt(index++, box.getMinY());
+            stmt.setInt(index++, box.getMaxY());
+            stmt.setInt(index++, box.getMinZ());
+            stmt.setInt(index++, box.getMaxZ());
+        }
+        return index;
+    }
+}
@@ -0,0 +1,515 @@
+package sunsky.io.blockindex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 一个区域 (32x32 区块) 的索引文件，整个文件通过 MappedByteBuffer 映射读写
+ *
+ * 文件头：magic、版本、数据区末尾，以及 1024 个区块槽，每个槽是一个 long (高 32 位为记录偏移，低 32 位为记录长度，0 表示空)。
+ * 区块记录：magic、区块序号、指纹、标志、区块段数，之后每个非空区块段依次为
+ * 段 Y、方块数、4096 位的占用位图 (位序号与 BlockMemoryIndex 的局部坐标相同) 和按位序排列的类型编号，末尾为 CRC32。
+ *
+ * 写入只追加：新记录先写入数据区末尾并落盘，再更新槽并落盘。崩溃时槽要么指向旧记录，要么指向已完整落盘的新记录；
+ * 打开时校验每条记录的 CRC，损坏的记录视为该区块没有数据 (指纹随之丢失，区块下次加载时重新同步)。
+ * 旧记录占用的空间超过有效数据时整理 (compact)：写出只含有效记录的新文件，落盘后原子替换。
+ *
+ * 读操作持有读锁，写操作和整理持有写锁。
+ */
+final class RegionFile {
+
+    static final int CHUNKS = 1024;
+
+    private static final int MAGIC = 0x42494458;
+    private static final int RECORD_MAGIC = 0x42494443;
+    private static final int VERSION = 1;
+    private static final int DATA_END_OFFSET = 8;
+    private static final int SLOTS_OFFSET = 16;
+    private static final int HEADER_SIZE = SLOTS_OFFSET + CHUNKS * 8;
+    private static final int RECORD_HEADER_SIZE = 24;
+    private static final int SECTION_HEADER_SIZE = 8 + 512;
+    private static final int HAS_FINGERPRINT = 1;
+    private static final int MAP_GROWTH = 1 << 20;
+    private static final int MIN_COMPACT_BYTES = 1 << 20;
+
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private final int[] offsets = new int[CHUNKS];
+    private final int[] lengths = new int[CHUNKS];
+    private int dataEnd;
+    private long liveBytes;
+    private int discardedRecords;
+
+    private RegionFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 打开区域文件，不存在时创建
+     */
+    static RegionFile open(File file) throws IOException {
+        RegionFile region = new RegionFile(file);
+        region.load();
+        return region;
+    }
+
+    /**
+     * 区块在区域内的序号
+     */
+    static int localIndex(int chunkX, int chunkZ) {
+        return ((chunkZ & 31) << 5) | (chunkX & 31);
+    }
+
+    private void load() throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        boolean created = channel.size() < HEADER_SIZE;
+        map(Math.max(channel.size(), HEADER_SIZE));
+        if (created) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(DATA_END_OFFSET, HEADER_SIZE);
+            buffer.force();
+        } else if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            close();
+            throw new IOException("Not a block index region file: " + file);
+        }
+        dataEnd = (int) Math.max(HEADER_SIZE, buffer.getLong(DATA_END_OFFSET));
+        for (int i = 0; i < CHUNKS; i++) {
+            long slot = buffer.getLong(SLOTS_OFFSET + i * 8);
+            int offset = (int) (slot >>> 32);
+            int length = (int) slot;
+            if (slot == 0) {
+                continue;
+            }
+            if (offset < HEADER_SIZE || (long) offset + length > buffer.capacity() || !isValidRecord(offset, length, i)) {
+                // 损坏的记录：清空槽，区块下次加载时重新同步
+                buffer.putLong(SLOTS_OFFSET + i * 8, 0L);
+                discardedRecords++;
+                continue;
+            }
+            offsets[i] = offset;
+            lengths[i] = length;
+            liveBytes += length;
+            // 槽已落盘而数据区末尾尚未更新时，以槽为准，避免覆盖有效记录
+            dataEnd = Math.max(dataEnd, offset + length);
+        }
+    }
+
+    private boolean isValidRecord(int offset, int length, int index) {
+        if (length < RECORD_HEADER_SIZE + 4 || buffer.getInt(offset) != RECORD_MAGIC || buffer.getInt(offset + 4) != index) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset).limit(offset + length - 4);
+        crc.update(record);
+        return (int) crc.getValue() == buffer.getInt(offset + length - 4);
+    }
+
+    private void map(long size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    /**
+     * 区块记录的指纹
+     * @return 指纹，没有记录或未保存指纹时返回 null
+     */
+    Long getFingerprint(int index) {
+        int record = offsets[index];
+        if (record == 0 || (buffer.getInt(record + 16) & HAS_FINGERPRINT) == 0) {
+            return null;
+        }
+        return buffer.getLong(record + 8);
+    }
+
+    /**
+     * 查询坐标的类型编号，直接读取映射的页面
+     * @param y 世界 Y 坐标
+     * @return 类型编号，没有方块时返回 -1
+     */
+    int getMaterialId(int index, int x, int y, int z) {
+        int record = offsets[index];
+        if (record == 0) {
+            return -1;
+        }
+        int sectionY = y >> 4;
+        int bit = localBit(x, y, z);
+        int section = record + RECORD_HEADER_SIZE;
+        for (int s = buffer.getInt(record + 20); s > 0; s--) {
+            int count = buffer.getInt(section + 4);
+            int current = buffer.getInt(section);
+            if (current == sectionY) {
+                int words = section + 8;
+                long word = buffer.getLong(words + (bit >> 6) * 8);
+                if ((word & (1L << (bit & 63))) == 0) {
+                    return -1;
+                }
+                // 类型编号的下标 = 位图中该位之前的置位数
+                int rank = Long.bitCount(word & ((1L << (bit & 63)) - 1));
+                for (int w = 0; w < bit >> 6; w++) {
+                    rank += Long.bitCount(buffer.getLong(words + w * 8));
+                }
+                return buffer.getShort(section + SECTION_HEADER_SIZE + rank * 2) & 0xFFFF;
+            }
+            if (current > sectionY) {
+                return -1;
+            }
+            section += SECTION_HEADER_SIZE + count * 2;
+        }
+        return -1;
+    }
+
+    /**
+     * 遍历区块内位于长方体中的方块
+     * @param baseX 区块最小 X
+     * @param baseZ 区块最小 Z
+     * @return visitor 返回 false 时停止并返回 false
+     */
+    boolean forEach(int index, int baseX, int baseZ, BlockBox box, IdVisitor visitor) {
+        int record = offsets[index];
+        if (record == 0) {
+            return true;
+        }
+        int section = record + RECORD_HEADER_SIZE;
+        for (int s = buffer.getInt(record + 20); s > 0; s--) {
+            int sectionY = buffer.getInt(section);
+            int count = buffer.getInt(section + 4);
+            int baseY = sectionY << 4;
+            if (baseY > box.getMaxY()) {
+                break;
+            }
+            if (baseY + 15 >= box.getMinY()) {
+                int ids = section + SECTION_HEADER_SIZE;
+                int rank = 0;
+                for (int w = 0; w < 64; w++) {
+                    long word = buffer.getLong(section + 8 + w * 8);
+                    while (word != 0) {
+                        int bit = (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                        int x = baseX + (bit & 15);
+                        int y = baseY + (bit >> 8);
+                        int z = baseZ + ((bit >> 4) & 15);
+                        if (box.contains(x, y, z) && !visitor.visit(x, y, z, buffer.getShort(ids + rank * 2) & 0xFFFF)) {
+                            return false;
+                        }
+                        rank++;
+                    }
+                }
+            }
+            section += SECTION_HEADER_SIZE + count * 2;
+        }
+        return true;
+    }
+
+    /**
+     * 统计区块内位于长方体中的方块，完整包含在长方体内的区块段不读取位图
+     * @param baseX 区块最小 X
+     * @param baseZ 区块最小 Z
+     */
+    void count(int index, int baseX, int baseZ, BlockBox box, IdCounter counter) {
+        int record = offsets[index];
+        if (record == 0) {
+            return;
+        }
+        boolean columnInside = baseX >= box.getMinX() && baseX + 15 <= box.getMaxX() && baseZ >= box.getMinZ() && baseZ + 15 <= box.getMaxZ();
+        int section = record + RECORD_HEADER_SIZE;
+        for (int s = buffer.getInt(record + 20); s > 0; s--) {
+            int baseY = buffer.getInt(section) << 4;
+            int count = buffer.getInt(section + 4);
+            if (columnInside && baseY >= box.getMinY() && baseY + 15 <= box.getMaxY()) {
+                int ids = section + SECTION_HEADER_SIZE;
+                for (int i = 0; i < count; i++) {
+                    counter.add(buffer.getShort(ids + i * 2) & 0xFFFF);
+                }
+            } else if (baseY <= box.getMaxY() && baseY + 15 >= box.getMinY()) {
+                forEachInSection(section, baseX, baseY, baseZ, box, counter);
+            }
+            section += SECTION_HEADER_SIZE + count * 2;
+        }
+    }
+
+    private void forEachInSection(int section, int baseX, int baseY, int baseZ, BlockBox box, IdCounter counter) {
+        int ids = section + SECTION_HEADER_SIZE;
+        int rank = 0;
+        for (int w = 0; w < 64; w++) {
+            long word = buffer.getLong(section + 8 + w * 8);
+            while (word != 0) {
+                int bit = (w << 6) | Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+                if (box.contains(baseX + (bit & 15), baseY + (bit >> 8), baseZ + ((bit >> 4) & 15))) {
+                    counter.add(buffer.getShort(ids + rank * 2) & 0xFFFF);
+                }
+                rank++;
+            }
+        }
+    }
+
+    /**
+     * 解码区块记录，用于修改后重新写入
+     */
+    ChunkData read(int index) {
+        ChunkData data = new ChunkData();
+        int record = offsets[index];
+        if (record == 0) {
+            return data;
+        }
+        if ((buffer.getInt(record + 16) & HAS_FINGERPRINT) != 0) {
+            data.fingerprint = buffer.getLong(record + 8);
+        }
+        int section = record + RECORD_HEADER_SIZE;
+        for (int s = buffer.getInt(record + 20); s > 0; s--) {
+            int sectionY = buffer.getInt(section);
+            int count = buffer.getInt(section + 4);
+            short[] blocks = new short[4096];
+            int rank = 0;
+            for (int w = 0; w < 64; w++) {
+                long word = buffer.getLong(section + 8 + w * 8);
+                while (word != 0) {
+                    int bit = (w << 6) | Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    blocks[bit] = (short) ((buffer.getShort(section + SECTION_HEADER_SIZE + rank * 2) & 0xFFFF) + 1);
+                    rank++;
+                }
+            }
+            data.sections.put(sectionY, blocks);
+            section += SECTION_HEADER_SIZE + count * 2;
+        }
+        return data;
+    }
+
+    /**
+     * 写入一批区块记录
+     * 先追加全部记录并落盘，再更新槽与数据区末尾并落盘
+     */
+    void write(Map<Integer, ChunkData> chunks) throws IOException {
+        Map<Integer, ByteBuffer> encoded = new TreeMap<>();
+        int total = 0;
+        for (Map.Entry<Integer, ChunkData> entry : chunks.entrySet()) {
+            ByteBuffer record = entry.getValue().encode(entry.getKey());
+            encoded.put(entry.getKey(), record);
+            total += record.remaining();
+        }
+        ensureCapacity((long) dataEnd + total);
+        int position = dataEnd;
+        int[] newOffsets = new int[CHUNKS];
+        int[] newLengths = new int[CHUNKS];
+        for (Map.Entry<Integer, ByteBuffer> entry : encoded.entrySet()) {
+            ByteBuffer record = entry.getValue();
+            int length = record.remaining();
+            ByteBuffer target = buffer.duplicate();
+            target.position(position);
+            target.put(record);
+            newOffsets[entry.getKey()] = position;
+            newLengths[entry.getKey()] = length;
+            position += length;
+        }
+        buffer.force();
+        for (int index : encoded.keySet()) {
+            liveBytes += newLengths[index] - lengths[index];
+            offsets[index] = newOffsets[index];
+            lengths[index] = newLengths[index];
+            buffer.putLong(SLOTS_OFFSET + index * 8, ((long) newOffsets[index] << 32) | (newLengths[index] & 0xFFFFFFFFL));
+        }
+        dataEnd = position;
+        buffer.putLong(DATA_END_OFFSET, dataEnd);
+        buffer.force();
+    }
+
+    /**
+     * 旧记录占用的空间是否已超过有效数据
+     */
+    boolean needsCompaction() {
+        long dead = dataEnd - HEADER_SIZE - liveBytes;
+        return dead > MIN_COMPACT_BYTES && dead > liveBytes;
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (required > Integer.MAX_VALUE) {
+            throw new IOException("Region file too large: " + file);
+        }
+        if (required > buffer.capacity()) {
+            map(Math.min(Integer.MAX_VALUE, (required / MAP_GROWTH + 1) * MAP_GROWTH));
+        }
+    }
+
+    /**
+     * 整理：只复制有效记录到新文件，落盘后原子替换原文件并重新映射
+     */
+    void compact() throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        int size = HEADER_SIZE + (int) liveBytes;
+        int[] newOffsets = new int[CHUNKS];
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw"); FileChannel outChannel = out.getChannel()) {
+            out.setLength(0);
+            MappedByteBuffer target = outChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            target.putInt(0, MAGIC);
+            target.putInt(4, VERSION);
+            target.putLong(DATA_END_OFFSET, size);
+            int position = HEADER_SIZE;
+            for (int i = 0; i < CHUNKS; i++) {
+                if (offsets[i] == 0) {
+                    continue;
+                }
+                ByteBuffer record = buffer.duplicate();
+                record.position(offsets[i]).limit(offsets[i] + lengths[i]);
+                target.position(position);
+                target.put(record);
+                target.putLong(SLOTS_OFFSET + i * 8, ((long) position << 32) | (lengths[i] & 0xFFFFFFFFL));
+                newOffsets[i] = position;
+                position += lengths[i];
+            }
+            target.force();
+        }
+        close();
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            System.arraycopy(newOffsets, 0, offsets, 0, CHUNKS);
+            dataEnd = size;
+        } finally {
+            // 替换失败时重新映射原文件，槽与偏移保持不变
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            map(Math.max(channel.size(), HEADER_SIZE));
+        }
+    }
+
+    /**
+     * 数据区末尾 (含已失效的旧记录)
+     */
+    long getFileBytes() {
+        return dataEnd;
+    }
+
+    long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * 打开时因校验失败被丢弃的记录数
+     */
+    int getDiscardedRecords() {
+        return discardedRecords;
+    }
+
+    void close() throws IOException {
+        if (buffer != null) {
+            buffer.force();
+        }
+        if (raf != null) {
+            raf.close();
+        }
+    }
+
+    /**
+     * 区块段内的位序号：(y << 8) | (z << 4) | x，与 BlockMemoryIndex 的局部坐标排序一致
+     */
+    private static int localBit(int x, int y, int z) {
+        return ((y & 15) << 8) | ((z & 15) << 4) | (x & 15);
+    }
+
+    interface IdVisitor {
+        boolean visit(int x, int y, int z, int materialId);
+    }
+
+    interface IdCounter {
+        void add(int materialId);
+    }
+
+    /**
+     * 解码后的区块记录，只在写入时使用
+     * 每个区块段为 4096 个 short，保存类型编号 + 1，0 表示没有方块
+     */
+    static final class ChunkData {
+        private Long fingerprint;
+        private final TreeMap<Integer, short[]> sections = new TreeMap<>();
+
+        void set(int x, int y, int z, int materialId) {
+            sections.computeIfAbsent(y >> 4, k -> new short[4096])[localBit(x, y, z)] = (short) (materialId + 1);
+        }
+
+        void remove(int x, int y, int z) {
+            short[] blocks = sections.get(y >> 4);
+            if (blocks != null) {
+                blocks[localBit(x, y, z)] = 0;
+            }
+        }
+
+        void setFingerprint(long fingerprint) {
+            this.fingerprint = fingerprint;
+        }
+
+        private ByteBuffer encode(int index) {
+            int size = RECORD_HEADER_SIZE + 4;
+            int sectionCount = 0;
+            int[] counts = new int[sections.size()];
+            int s = 0;
+            for (short[] blocks : sections.values()) {
+                int count = 0;
+                for (short block : blocks) {
+                    if (block != 0) {
+                        count++;
+                    }
+                }
+                counts[s++] = count;
+                if (count > 0) {
+                    sectionCount++;
+                    size += SECTION_HEADER_SIZE + count * 2;
+                }
+            }
+            ByteBuffer record = ByteBuffer.allocate(size);
+            record.putInt(RECORD_MAGIC);
+            record.putInt(index);
+            record.putLong(fingerprint == null ? 0L : fingerprint);
+            record.putInt(fingerprint == null ? 0 : HAS_FINGERPRINT);
+            record.putInt(sectionCount);
+            s = 0;
+            for (Map.Entry<Integer, short[]> entry : sections.entrySet()) {
+                int count = counts[s++];
+                if (count == 0) {
+                    continue;
+                }
+                short[] blocks = entry.getValue();
+                record.putInt(entry.getKey());
+                record.putInt(count);
+                for (int w = 0; w < 64; w++) {
+                    long word = 0;
+                    for (int b = 0; b < 64; b++) {
+                        if (blocks[(w << 6) | b] != 0) {
+                            word |= 1L << b;
+                        }
+                    }
+                    record.putLong(word);
+                }
+                for (short block : blocks) {
+                    if (block != 0) {
+                        record.putShort((short) (block - 1));
+                    }
+                }
+            }
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, size - 4);
+            record.putInt((int) crc.getValue());
+            record.flip();
+            return record;
+        }
+    }
+}
@@ -0,0 +1,454 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Location;
+import org.bukkit.Material;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 基于内存映射区域文件的方块索引存储，适合单服部署
+ * 每个世界一个目录，每 32x32 个区块一个区域文件 (格式见 RegionFile)，点查询、范围遍历与计数直接读取映射的页面，不经过 SQL。
+ * 类型名称与编号的对应关系保存在 materials.txt 中，只追加，编号写入区域文件前已落盘。
+ * 同一批变更中每个区块的更新是原子的，跨区块 (跨区域文件) 的更新不保证原子性。
+ */
+public class RegionFileStorage implements BlockStorage {
+
+    private static final String PALETTE_FILE = "materials.txt";
+
+    private final File directory;
+    private final Logger logger;
+    private final Map<String, Map<Long, RegionFile>> regions = new ConcurrentHashMap<>();
+    private final List<String> names = new CopyOnWriteArrayList<>();
+    private final Object paletteLock = new Object();
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile Material[] materials = new Material[0];
+    private volatile boolean open;
+
+    /**
+     * @param directory 存放区域文件的目录
+     * @param logger 插件日志
+     */
+    public RegionFileStorage(File directory, Logger logger) {
+        this.directory = directory;
+        this.logger = logger;
+    }
+
+    /**
+     * 打开存储，读取类型编号表
+     * @throws SQLException 如果目录或编号表无法读取
+     */
+    public void open() throws SQLException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new SQLException("Unable to create directory " + directory);
+        }
+        File palette = new File(directory, PALETTE_FILE);
+        if (palette.exists()) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(palette), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isEmpty()) {
+                        addName(line);
+                    }
+                }
+            } catch (IOException e) {
+                throw new SQLException("Unable to read " + palette, e);
+            }
+        }
+        open = true;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return open;
+    }
+
+    @Override
+    public void applyBlockMutations(Collection<BlockMutation> mutations, Map<ChunkPos, Long> fingerprints) throws SQLException {
+        checkOpen();
+        // 按区域文件、区域内区块分组
+        Map<String, Map<Long, Map<Integer, List<BlockMutation>>>> grouped = new LinkedHashMap<>();
+        for (BlockMutation mutation : mutations) {
+            BlockKey key = mutation.getKey();
+            if (!mutation.isDelete()) {
+                resolveId(mutation.getBlockType());
+            }
+            chunkMutations(grouped, key.getUid(), key.getX() >> 4, key.getZ() >> 4).add(mutation);
+        }
+        for (ChunkPos pos : fingerprints.keySet()) {
+            chunkMutations(grouped, pos.getUid(), pos.getX(), pos.getZ());
+        }
+        for (Map.Entry<String, Map<Long, Map<Integer, List<BlockMutation>>>> world : grouped.entrySet()) {
+            String uid = world.getKey();
+            for (Map.Entry<Long, Map<Integer, List<BlockMutation>>> entry : world.getValue().entrySet()) {
+                int regionX = BlockCoords.chunkX(entry.getKey());
+                int regionZ = BlockCoords.chunkZ(entry.getKey());
+                writeRegion(uid, regionX, regionZ, entry.getValue(), fingerprints);
+            }
+        }
+    }
+
+    private void writeRegion(String uid, int regionX, int regionZ, Map<Integer, List<BlockMutation>> chunks,
+                             Map<ChunkPos, Long> fingerprints) throws SQLException {
+        RegionFile region = getRegion(uid, regionX, regionZ, true);
+        Lock lock = region.lock.writeLock();
+        lock.lock();
+        try {
+            Map<Integer, RegionFile.ChunkData> changed = new HashMap<>();
+            for (Map.Entry<Integer, List<BlockMutation>> entry : chunks.entrySet()) {
+                int index = entry.getKey();
+                RegionFile.ChunkData data = region.read(index);
+                for (BlockMutation mutation : entry.getValue()) {
+                    BlockKey key = mutation.getKey();
+                    if (mutation.isDelete()) {
+                        data.remove(key.getX(), key.getY(), key.getZ());
+                    } else {
+                        data.set(key.getX(), key.getY(), key.getZ(), ids.get(mutation.getBlockType()));
+                    }
+                }
+                Long fingerprint = fingerprints.get(new ChunkPos(uid, (regionX << 5) | (index & 31), (regionZ << 5) | (index >> 5)));
+                if (fingerprint != null) {
+                    data.setFingerprint(fingerprint);
+                }
+                changed.put(index, data);
+            }
+            region.write(changed);
+            if (region.needsCompaction()) {
+                try {
+                    region.compact();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "整理区域文件失败，将在下次写入后重试: " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Unable to write region " + regionX + "," + regionZ + " of " + uid, e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static List<BlockMutation> chunkMutations(Map<String, Map<Long, Map<Integer, List<BlockMutation>>>> grouped,
+                                                      String uid, int chunkX, int chunkZ) {
+        return grouped.computeIfAbsent(uid, k -> new LinkedHashMap<>())
+                .computeIfAbsent(BlockCoords.chunkKey(chunkX >> 5, chunkZ >> 5), k -> new HashMap<>())
+                .computeIfAbsent(RegionFile.localIndex(chunkX, chunkZ), k -> new ArrayList<>());
+    }
+
+    @Override
+    public void uploadBlockData(String uid, int x, int y, int z, String blockType) throws SQLException {
+        applyBlockMutations(Collections.singletonList(BlockMutation.upload(uid, x, y, z, blockType)), Collections.<ChunkPos, Long>emptyMap());
+    }
+
+    @Override
+    public void deleteBlockData(String uid, int x, int y, int z) throws SQLException {
+        applyBlockMutations(Collections.singletonList(BlockMutation.delete(uid, x, y, z)), Collections.<ChunkPos, Long>emptyMap());
+    }
+
+    @Override
+    public Long getChunkFingerprint(String uid, int chunkX, int chunkZ) throws SQLException {
+        checkOpen();
+        RegionFile region = getRegion(uid, chunkX >> 5, chunkZ >> 5, false);
+        if (region == null) {
+            return null;
+        }
+        Lock lock = region.lock.readLock();
+        lock.lock();
+        try {
+            return region.getFingerprint(RegionFile.localIndex(chunkX, chunkZ));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<Long, String> getChunkBlockData(String uid, int chunkX, int chunkZ) throws SQLException {
+        Map<Long, String> blocks = new HashMap<>();
+        BlockBox column = new BlockBox(chunkX << 4, Integer.MIN_VALUE, chunkZ << 4, (chunkX << 4) + 15, Integer.MAX_VALUE, (chunkZ << 4) + 15);
+        forEachId(uid, Collections.singletonList(column), (x, y, z, id) -> {
+            blocks.put(BlockCoords.pack(x, y, z), names.get(id));
+            return true;
+        });
+        return blocks;
+    }
+
+    @Override
+    public Material getBlockTypeAtLocation(UUID serverUUID, Location location) throws SQLException {
+        checkOpen();
+        int x = location.getBlockX();
+        int z = location.getBlockZ();
+        RegionFile region = getRegion(serverUUID.toString(), x >> 9, z >> 9, false);
+        if (region == null) {
+            return null;
+        }
+        Lock lock = region.lock.readLock();
+        lock.lock();
+        try {
+            return materialOf(region.getMaterialId(RegionFile.localIndex(x >> 4, z >> 4), x, location.getBlockY(), z));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<Location, Material> getBlockTypesAtLocations(UUID serverUUID, Collection<Location> locations) throws SQLException {
+        Map<Location, Material> result = new HashMap<>();
+        for (Location location : locations) {
+            Material material = getBlockTypeAtLocation(serverUUID, location);
+            if (material != null) {
+                result.put(location, material);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<Location> getBlockLocationsInRange(UUID serverUUID, Location location, Material material, int range) throws SQLException {
+        List<Location> locations = new ArrayList<>();
+        forEachBlockInBoxes(serverUUID.toString(),
+                Collections.singletonList(BlockBox.around(location.getBlockX(), location.getBlockY(), location.getBlockZ(), range)),
+                Collections.singleton(material), (x, y, z, type) -> {
+                    locations.add(new Location(location.getWorld(), x, y, z));
+                    return true;
+                });
+        return locations;
+    }
+
+    @Override
+    public Map<Material, List<Location>> getBlockLocationsInRange(UUID serverUUID, Location location, Set<Material> materials, int range) throws SQLException {
+        Map<Material, List<Location>> result = new HashMap<>();
+        for (Material material : materials) {
+            result.put(material, new ArrayList<>());
+        }
+        forEachBlockInBoxes(serverUUID.toString(),
+                Collections.singletonList(BlockBox.around(location.getBlockX(), location.getBlockY(), location.getBlockZ(), range)),
+                materials, (x, y, z, material) -> {
+                    result.get(material).add(new Location(location.getWorld(), x, y, z));
+                    return true;
+                });
+        return result;
+    }
+
+    @Override
+    public int countBlocksInRange(UUID serverUUID, Location location, int range) throws SQLException {
+        int total = 0;
+        for (int count : countBlockTypesInRange(serverUUID.toString(), location, range).values()) {
+            total += count;
+        }
+        return total;
+    }
+
+    /**
+     * 统计范围内每种方块的数量，完整包含在范围内的区块段只读取类型编号，不读取位图
+     */
+    @Override
+    public Map<String, Integer> countBlockTypesInRange(String uid, Location location, int range) throws SQLException {
+        checkOpen();
+        BlockBox box = BlockBox.around(location.getBlockX(), location.getBlockY(), location.getBlockZ(), range);
+        int[][] counts = {new int[names.size()]};
+        RegionFile.IdCounter counter = id -> {
+            if (id >= counts[0].length) {
+                counts[0] = Arrays.copyOf(counts[0], id + 1);
+            }
+            counts[0][id]++;
+        };
+        for (int chunkX = box.getMinX() >> 4; chunkX <= box.getMaxX() >> 4; chunkX++) {
+            for (int chunkZ = box.getMinZ() >> 4; chunkZ <= box.getMaxZ() >> 4; chunkZ++) {
+                RegionFile region = getRegion(uid, chunkX >> 5, chunkZ >> 5, false);
+                if (region == null) {
+                    continue;
+                }
+                Lock lock = region.lock.readLock();
+                lock.lock();
+                try {
+                    region.count(RegionFile.localIndex(chunkX, chunkZ), chunkX << 4, chunkZ << 4, box, counter);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        Map<String, Integer> result = new HashMap<>();
+        for (int id = 0; id < counts[0].length; id++) {
+            if (counts[0][id] > 0) {
+                result.put(names.get(id), counts[0][id]);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void forEachBlockInBoxes(String uid, List<BlockBox> boxes, Collection<Material> materials, BlockVisitor visitor) throws SQLException {
+        if (materials == null) {
+            forEachId(uid, boxes, (x, y, z, id) -> visitor.visit(x, y, z, materialOf(id)));
+            return;
+        }
+        Set<Integer> filter = new HashSet<>();
+        for (Material material : materials) {
+            Integer id = ids.get(material.name());
+            if (id != null) {
+                filter.add(id);
+            }
+        }
+        if (filter.isEmpty()) {
+            return;
+        }
+        forEachId(uid, boxes, (x, y, z, id) -> !filter.contains(id) || visitor.visit(x, y, z, materialOf(id)));
+    }
+
+    /**
+     * 按区块遍历若干长方体内的方块，每个区块只在读锁内读取映射的页面
+     */
+    private void forEachId(String uid, List<BlockBox> boxes, RegionFile.IdVisitor visitor) throws SQLException {
+        checkOpen();
+        for (BlockBox box : boxes) {
+            for (int chunkX = box.getMinX() >> 4; chunkX <= box.getMaxX() >> 4; chunkX++) {
+                for (int chunkZ = box.getMinZ() >> 4; chunkZ <= box.getMaxZ() >> 4; chunkZ++) {
+                    RegionFile region = getRegion(uid, chunkX >> 5, chunkZ >> 5, false);
+                    if (region == null) {
+                        continue;
+                    }
+                    Lock lock = region.lock.readLock();
+                    lock.lock();
+                    try {
+                        if (!region.forEach(RegionFile.localIndex(chunkX, chunkZ), chunkX << 4, chunkZ << 4, box, visitor)) {
+                            return;
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 刷新并关闭全部区域文件
+     */
+    @Override
+    public void closeDatabase() throws SQLException {
+        open = false;
+        SQLException failure = null;
+        for (Map<Long, RegionFile> world : regions.values()) {
+            for (RegionFile region : world.values()) {
+                Lock lock = region.lock.writeLock();
+                lock.lock();
+                try {
+                    region.close();
+                } catch (IOException e) {
+                    failure = new SQLException("Unable to close region file", e);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+        regions.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * 取得区域文件
+     * @param create 文件不存在时是否创建
+     * @return 区域文件，不存在且 create 为 false 时返回 null
+     */
+    private RegionFile getRegion(String uid, int regionX, int regionZ, boolean create) throws SQLException {
+        Map<Long, RegionFile> world = regions.computeIfAbsent(uid, k -> new ConcurrentHashMap<>());
+        long key = BlockCoords.chunkKey(regionX, regionZ);
+        RegionFile region = world.get(key);
+        if (region != null) {
+            return region;
+        }
+        synchronized (world) {
+            region = world.get(key);
+            if (region != null) {
+                return region;
+            }
+            File file = new File(new File(directory, uid), "r." + regionX + "." + regionZ + ".bidx");
+            if (!create && !file.exists()) {
+                return null;
+            }
+            try {
+                region = RegionFile.open(file);
+            } catch (IOException e) {
+                throw new SQLException("Unable to open " + file, e);
+            }
+            if (region.getDiscardedRecords() > 0) {
+                logger.warning("区域文件 " + file + " 中有 " + region.getDiscardedRecords() + " 个区块记录校验失败，这些区块将在加载时重新同步");
+            }
+            world.put(key, region);
+            return region;
+        }
+    }
+
+    /**
+     * 取得类型编号，不存在时分配新编号并先写入编号表
+     */
+    private int resolveId(String name) throws SQLException {
+        Integer id = ids.get(name);
+        if (id != null) {
+            return id;
+        }
+        synchronized (paletteLock) {
+            id = ids.get(name);
+            if (id != null) {
+                return id;
+            }
+            // 区块数据以 (编号 + 1) 存为 short，0 表示空，编号最大为 0xFFFE
+            if (names.size() >= 0xFFFF) {
+                throw new SQLException("Too many material types");
+            }
+            try (FileOutputStream out = new FileOutputStream(new File(directory, PALETTE_FILE), true)) {
+                out.write((name + "\n").getBytes(StandardCharsets.UTF_8));
+                out.getFD().sync();
+            } catch (IOException e) {
+                throw new SQLException("Unable to write " + PALETTE_FILE, e);
+            }
+            return addName(name);
+        }
+    }
+
+    private int addName(String name) {
+        synchronized (paletteLock) {
+            int id = names.size();
+            names.add(name);
+            Material[] resolved = Arrays.copyOf(materials, id + 1);
+            resolved[id] = Material.getMaterial(name);
+            materials = resolved;
+            ids.put(name, id);
+            return id;
+        }
+    }
+
+    private Material materialOf(int id) {
+        Material[] resolved = materials;
+        return id >= 0 && id < resolved.length ? resolved[id] : null;
+    }
+
+    private void checkOpen() throws SQLException {
+        if (!open) {
+            throw new SQLException("Region storage is not open");
+        }
+    }
+}
@@ -34,6 +34,15 @@ public class SERVER_UUID {
         }
 
         // 获取指定键的值
-        return UUID.fromString(properties.getProperty(key));
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return UUID.fromString(value.trim());
+        } catch (IllegalArgumentException e) {
+            System.err.println("server.properties 中 " + key + " 的值不是有效的 UUID: " + value);
+            return null;
+        }
     }
 }
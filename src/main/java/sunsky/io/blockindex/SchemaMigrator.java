@@ -0,0 +1,76 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * 旧表 (block_data，或没有区块键列的旧版 block_data_v2) 到 block_data_v2 的后台迁移
+ * 每次定时任务复制一批，服务器运行期间逐步完成；断点保存在数据库中，重启后继续。
+ */
+public class SchemaMigrator {
+
+    private final Plugin plugin;
+    private final DatabaseManager databaseManager;
+    private final int batchSize;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    // start 可能由重连线程调用，与 shutdown 一样在持有 this 时访问
+    private BukkitTask task;
+    private long copied;
+
+    /**
+     * @param plugin 插件实例
+     * @param databaseManager 数据库管理器
+     * @param batchSize 每批复制的行数
+     */
+    public SchemaMigrator(Plugin plugin, DatabaseManager databaseManager, int batchSize) {
+        this.plugin = plugin;
+        this.databaseManager = databaseManager;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * 需要迁移时启动定时复制 (已在迁移时不重复启动)
+     * @param intervalTicks 两批之间的间隔 (tick)
+     */
+    public synchronized void start(long intervalTicks) {
+        if (task != null || !databaseManager.isConnected() || !databaseManager.isMigrating()) {
+            return;
+        }
+        long interval = Math.max(1L, intervalTicks);
+        task = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::migrateBatch, interval, interval);
+    }
+
+    private void migrateBatch() {
+        // 上一批尚未完成时跳过本次
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            copied += databaseManager.migrateBatch(batchSize);
+            if (!databaseManager.isMigrating()) {
+                plugin.getLogger().info("索引表迁移完成，共复制 " + copied + " 行");
+                shutdown();
+            }
+        } catch (SQLException e) {
+            plugin.getLogger().log(Level.WARNING, "索引表迁移失败，将在下次重试: " + e.getMessage());
+        } finally {
+            running.set(false);
+        }
+    }
+
+    /**
+     * 停止迁移，未完成的部分在下次启动时继续
+     */
+    public synchronized void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package sunsky.io.blockindex;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 不同数据库之间有差异的 SQL 片段
+ * MYSQL 为远程 MySQL/MariaDB；SQLITE 为插件目录下的嵌入式数据库文件，不需要单独的数据库服务器
+ */
+enum SqlDialect {
+
+    MYSQL {
+        @Override
+        boolean tableExists(Connection connection, String tableName) throws SQLException {
+            return exists(connection, "SHOW TABLES LIKE ?", tableName);
+        }
+
+        @Override
+        boolean columnExists(Connection connection, String tableName, String columnName) throws SQLException {
+            return exists(connection, "SHOW COLUMNS FROM " + tableName + " LIKE ?", columnName);
+        }
+
+        @Override
+        boolean indexExists(Connection connection, String tableName, String indexName) throws SQLException {
+            return exists(connection, "SHOW INDEX FROM " + tableName + " WHERE Key_name = ?", indexName);
+        }
+
+        @Override
+        String dropIndex(String tableName, String indexName) {
+            return "DROP INDEX " + indexName + " ON " + tableName;
+        }
+
+        @Override
+        String binaryUidType() {
+            return "BINARY(16)";
+        }
+
+        @Override
+        String autoIncrementKey() {
+            return "BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY";
+        }
+
+        @Override
+        String sectionOf(String column) {
+            return "FLOOR(" + column + " / 16)";
+        }
+
+        @Override
+        String insertIgnore() {
+            return "INSERT IGNORE INTO ";
+        }
+
+        @Override
+        String upsert(String keyColumns, String column) {
+            return " ON DUPLICATE KEY UPDATE " + column + " = VALUES(" + column + ")";
+        }
+
+        @Override
+        String upsertAdd(String keyColumns, String column) {
+            return " ON DUPLICATE KEY UPDATE " + column + " = " + column + " + VALUES(" + column + ")";
+        }
+
+        @Override
+        String forUpdate() {
+            return " FOR UPDATE";
+        }
+
+        @Override
+        String tupleIn(String columns, String values, int count) {
+            return appendValues(new StringBuilder(columns).append(" IN ("), values, count).append(")").toString();
+        }
+    },
+
+    SQLITE {
+        @Override
+        boolean tableExists(Connection connection, String tableName) throws SQLException {
+            return exists(connection, "SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?", tableName);
+        }
+
+        @Override
+        boolean columnExists(Connection connection, String tableName, String columnName) throws SQLException {
+            return exists(connection, "SELECT name FROM pragma_table_info('" + tableName + "') WHERE name = ?", columnName);
+        }
+
+        @Override
+        boolean indexExists(Connection connection, String tableName, String indexName) throws SQLException {
+            return exists(connection, "SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?", indexName);
+        }
+
+        @Override
+        String dropIndex(String tableName, String indexName) {
+            return "DROP INDEX " + indexName;
+        }
+
+        @Override
+        String binaryUidType() {
+            return "BLOB";
+        }
+
+        @Override
+        String autoIncrementKey() {
+            // AUTOINCREMENT 保证序号不会复用已删除的值
+            return "INTEGER PRIMARY KEY AUTOINCREMENT";
+        }
+
+        @Override
+        String sectionOf(String column) {
+            // SQLite 的右移是算术右移，负数同样向下取整
+            return "(" + column + " >> 4)";
+        }
+
+        @Override
+        String insertIgnore() {
+            return "INSERT OR IGNORE INTO ";
+        }
+
+        @Override
+        String upsert(String keyColumns, String column) {
+            return " ON CONFLICT (" + keyColumns + ") DO UPDATE SET " + column + " = excluded." + column;
+        }
+
+        @Override
+        String upsertAdd(String keyColumns, String column) {
+            return " ON CONFLICT (" + keyColumns + ") DO UPDATE SET " + column + " = " + column + " + excluded." + column;
+        }
+
+        @Override
+        String forUpdate() {
+            // 写事务以 IMMEDIATE 模式开始，整个数据库文件已被锁定
+            return "";
+        }
+
+        @Override
+        String tupleIn(String columns, String values, int count) {
+            return appendValues(new StringBuilder(columns).append(" IN (VALUES "), values, count).append(")").toString();
+        }
+    };
+
+    abstract boolean tableExists(Connection connection, String tableName) throws SQLException;
+
+    abstract boolean columnExists(Connection connection, String tableName, String columnName) throws SQLException;
+
+    abstract boolean indexExists(Connection connection, String tableName, String indexName) throws SQLException;
+
+    abstract String dropIndex(String tableName, String indexName);
+
+    /**
+     * 以 16 字节保存的世界 UID 的列类型
+     */
+    abstract String binaryUidType();
+
+    /**
+     * 自增主键列的类型与约束
+     */
+    abstract String autoIncrementKey();
+
+    /**
+     * 由方块 Y 坐标计算区块段编号的表达式
+     */
+    abstract String sectionOf(String column);
+
+    /**
+     * 主键冲突时忽略该行的 INSERT 前缀
+     */
+    abstract String insertIgnore();
+
+    /**
+     * 接在 INSERT ... VALUES 之后：主键冲突时以新值覆盖 column
+     * @param keyColumns 主键列，逗号分隔
+     */
+    abstract String upsert(String keyColumns, String column);
+
+    /**
+     * 接在 INSERT ... VALUES 之后：主键冲突时把新值累加到 column
+     * @param keyColumns 主键列，逗号分隔
+     */
+    abstract String upsertAdd(String keyColumns, String column);
+
+    /**
+     * 事务中读取并锁定行的 SELECT 后缀
+     */
+    abstract String forUpdate();
+
+    /**
+     * 多列 IN 条件，如 (x, y, z) IN ((?, ?, ?), (?, ?, ?))
+     * @param columns 带括号的列列表
+     * @param values 单行的占位符，如 (?, ?, ?)
+     * @param count 行数
+     */
+    abstract String tupleIn(String columns, String values, int count);
+
+    static SqlDialect fromName(String name) {
+        return "sqlite".equalsIgnoreCase(name) ? SQLITE : MYSQL;
+    }
+
+    private static boolean exists(Connection connection, String query, String parameter) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(query)) {
+            stmt.setString(1, parameter);
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next();
+            }
+        }
+    }
+
+    private static StringBuilder appendValues(StringBuilder query, String values, int count) {
+        for (int i = 0; i < count; i++) {
+            query.append(i == 0 ? "" : ", ").append(values);
+        }
+        return query;
+    }
+}
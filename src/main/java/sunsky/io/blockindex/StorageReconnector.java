@@ -0,0 +1,90 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 数据库连接断开 (启动时未能连接，或写入时连接失败) 后在异步线程中重连
+ * 连续失败时重试间隔从 initialDelayMillis 开始加倍，最长为 maxDelayMillis；连接成功后恢复初始间隔。
+ * 断开期间的变更由写回队列记入本地日志，主线程不等待数据库。
+ */
+public class StorageReconnector {
+
+    private static final long CHECK_INTERVAL_TICKS = 20L;
+
+    private final Plugin plugin;
+    private final DatabaseManager databaseManager;
+    private final BlockIndexMetrics metrics;
+    private final long initialDelayMillis;
+    private final long maxDelayMillis;
+    private final Runnable onReconnect;
+    private final AtomicBoolean running = new AtomicBoolean(false);
+
+    private BukkitTask task;
+    private long delayMillis;
+    private long nextAttemptMillis;
+
+    /**
+     * @param plugin 插件实例
+     * @param databaseManager 数据库管理器
+     * @param metrics 运行指标，记录每次重连的结果
+     * @param initialDelayMillis 第一次重试前的等待时间 (毫秒)
+     * @param maxDelayMillis 重试间隔上限 (毫秒)
+     * @param onReconnect 重连成功后在异步线程中执行
+     */
+    public StorageReconnector(Plugin plugin, DatabaseManager databaseManager, BlockIndexMetrics metrics,
+                              long initialDelayMillis, long maxDelayMillis, Runnable onReconnect) {
+        this.plugin = plugin;
+        this.databaseManager = databaseManager;
+        this.metrics = metrics;
+        this.initialDelayMillis = Math.max(100L, initialDelayMillis);
+        this.maxDelayMillis = Math.max(this.initialDelayMillis, maxDelayMillis);
+        this.onReconnect = onReconnect;
+        this.delayMillis = this.initialDelayMillis;
+    }
+
+    /**
+     * 开始每秒检查一次连接状态
+     */
+    public void start() {
+        nextAttemptMillis = System.currentTimeMillis() + delayMillis;
+        task = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::check, CHECK_INTERVAL_TICKS, CHECK_INTERVAL_TICKS);
+    }
+
+    private void check() {
+        if (databaseManager.isConnected()) {
+            // 连接中断 (写入失败时标记) 后第一次重试也在初始间隔之后
+            delayMillis = initialDelayMillis;
+            nextAttemptMillis = System.currentTimeMillis() + delayMillis;
+            return;
+        }
+        if (System.currentTimeMillis() < nextAttemptMillis || !running.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            boolean connected = databaseManager.setupDatabaseConfig();
+            metrics.recordReconnect(connected);
+            if (connected) {
+                plugin.getLogger().info("数据库已重新连接");
+                delayMillis = initialDelayMillis;
+                onReconnect.run();
+            } else {
+                plugin.getLogger().warning("数据库重连失败，" + delayMillis / 1000.0 + " 秒后重试");
+                nextAttemptMillis = System.currentTimeMillis() + delayMillis;
+                delayMillis = Math.min(delayMillis * 2, maxDelayMillis);
+            }
+        } finally {
+            running.set(false);
+        }
+    }
+
+    public void shutdown() {
+        if (task != null) {
+            task.cancel();
+            task = null;
+        }
+    }
+}
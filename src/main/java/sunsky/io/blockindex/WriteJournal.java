@@ -0,0 +1,372 @@
+package sunsky.io.blockindex;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.CRC32;
+
+/**
+ * 数据库不可用时的本地写入日志，只追加
+ *
+ * 日志由固定大小的段文件 (编号.journal) 组成，当前段通过 MappedByteBuffer 映射写入，每批追加后落盘。
+ * 记录：长度、CRC32，之后为操作 (0 写入 / 1 删除)、世界 UID、坐标，写入操作还有方块类型名称；长度为 0 表示段内数据结束。
+ * 重放进度 (段编号与段内偏移) 保存在 checkpoint 文件中，每批重放成功后原子替换；进度之前的段被删除。
+ *
+ * 崩溃时最后一批记录可能不完整：打开时以 CRC 找到当前段有效数据的末尾，其后的内容清零后继续追加。
+ * 一批变更写入数据库后、保存进度前崩溃，重启后这批变更会再次重放，写入与删除都是幂等的。
+ * 反复重放失败 (并非连接问题) 的变更以文本追加到 quarantine.log 后跳过，不阻塞之后的变更。
+ */
+final class WriteJournal {
+
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MIN_SEGMENT_SIZE = 1 << 16;
+    private static final byte OP_UPLOAD = 0;
+    private static final byte OP_DELETE = 1;
+
+    private final File directory;
+    private final File checkpointFile;
+    private final File quarantineFile;
+    private final int segmentSize;
+
+    private RandomAccessFile writeFile;
+    private MappedByteBuffer writeBuffer;
+    private long writeSegment;
+    private int writePosition;
+
+    private long readSegment;
+    private int readPosition;
+    // 最近映射的一个只读段
+    private MappedByteBuffer readBuffer;
+    private long readBufferSegment = -1L;
+
+    // read 返回后、commit 之前的读取位置
+    private long scannedSegment;
+    private int scannedPosition;
+    private int scannedCount;
+
+    private long size;
+
+    /**
+     * @param directory 日志目录
+     * @param segmentSize 段文件大小 (字节)
+     */
+    WriteJournal(File directory, int segmentSize) {
+        this.directory = directory;
+        this.checkpointFile = new File(directory, "checkpoint");
+        this.quarantineFile = new File(directory, "quarantine.log");
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, segmentSize);
+    }
+
+    /**
+     * 打开日志目录，恢复写入位置与重放进度
+     */
+    synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create directory " + directory);
+        }
+        List<Long> segments = listSegments();
+        long first = segments.isEmpty() ? 1L : segments.get(0);
+        long last = segments.isEmpty() ? 1L : segments.get(segments.size() - 1);
+        readSegment = first;
+        readPosition = 0;
+        if (checkpointFile.isFile() && checkpointFile.length() >= 12) {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(checkpointFile))) {
+                long segment = in.readLong();
+                int position = in.readInt();
+                if (segment >= first && segment <= last && position >= 0) {
+                    readSegment = segment;
+                    readPosition = position;
+                }
+            }
+        }
+        openWriteSegment(last);
+        // 当前段中最后一条有效记录之后的内容 (不完整的记录) 清零
+        writePosition = 0;
+        int end;
+        while ((end = recordEnd(writeBuffer, writePosition, writeBuffer.capacity())) >= 0) {
+            writePosition = end;
+        }
+        for (int i = writePosition; i < writeBuffer.capacity(); i++) {
+            if (writeBuffer.get(i) != 0) {
+                writeBuffer.put(i, (byte) 0);
+            }
+        }
+        writeBuffer.force();
+        size = scan(readSegment, readPosition, Integer.MAX_VALUE, null);
+        deleteSegmentsBefore(readSegment);
+    }
+
+    /**
+     * 尚未重放的变更数
+     */
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 追加一批变更并落盘
+     */
+    synchronized void append(Collection<BlockMutation> mutations) throws IOException {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        for (BlockMutation mutation : mutations) {
+            byte[] payload = encode(mutation);
+            if ((long) writePosition + RECORD_HEADER_SIZE + payload.length > writeBuffer.capacity()) {
+                roll();
+            }
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer target = writeBuffer.duplicate();
+            target.position(writePosition + RECORD_HEADER_SIZE);
+            target.put(payload);
+            writeBuffer.putInt(writePosition + 4, (int) crc.getValue());
+            writeBuffer.putInt(writePosition, payload.length);
+            writePosition += RECORD_HEADER_SIZE + payload.length;
+        }
+        writeBuffer.force();
+        size += mutations.size();
+    }
+
+    /**
+     * 从重放进度处按顺序读取最多 max 条变更，重放成功后调用 commit 保存进度
+     * 同一坐标可能出现多次，以后读到的为准
+     */
+    synchronized List<BlockMutation> read(int max) throws IOException {
+        List<BlockMutation> mutations = new ArrayList<>(Math.min(max, 1024));
+        scan(readSegment, readPosition, max, mutations);
+        return mutations;
+    }
+
+    /**
+     * 保存上一次 read 之后的重放进度，删除已重放完的段
+     */
+    synchronized void commit() throws IOException {
+        readSegment = scannedSegment;
+        readPosition = scannedPosition;
+        size = Math.max(0L, size - scannedCount);
+        scannedCount = 0;
+        File temp = new File(directory, "checkpoint.tmp");
+        try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+            out.setLength(0);
+            out.writeLong(readSegment);
+            out.writeInt(readPosition);
+            out.getFD().sync();
+        }
+        Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        deleteSegmentsBefore(readSegment);
+    }
+
+    /**
+     * 将无法重放的变更以文本追加到 quarantine.log，每行一条：时间、操作、世界 UID、坐标、方块类型
+     */
+    synchronized void quarantine(Collection<BlockMutation> mutations) throws IOException {
+        if (mutations.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        long now = System.currentTimeMillis();
+        for (BlockMutation mutation : mutations) {
+            BlockKey key = mutation.getKey();
+            lines.append(now).append(' ').append(mutation.isDelete() ? "delete" : "upload").append(' ')
+                    .append(key.getUid()).append(' ').append(key.getX()).append(' ').append(key.getY()).append(' ').append(key.getZ());
+            if (!mutation.isDelete()) {
+                lines.append(' ').append(mutation.getBlockType());
+            }
+            lines.append('\n');
+        }
+        Files.write(quarantineFile.toPath(), lines.toString().getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+    }
+
+    File getQuarantineFile() {
+        return quarantineFile;
+    }
+
+    synchronized void close() throws IOException {
+        if (writeFile != null) {
+            writeBuffer.force();
+            writeFile.close();
+            writeFile = null;
+        }
+        readBuffer = null;
+        readBufferSegment = -1L;
+    }
+
+    /**
+     * 从指定位置依次读取记录，结束位置记入 scannedSegment/scannedPosition
+     * @param out 接收读取的变更，为 null 时只计数
+     * @return 读取的记录数
+     */
+    private int scan(long segment, int position, int max, List<BlockMutation> out) throws IOException {
+        int count = 0;
+        while (count < max) {
+            ByteBuffer buffer = segmentBuffer(segment);
+            int end = buffer == null ? -1 : recordEnd(buffer, position, segment == writeSegment ? writePosition : buffer.capacity());
+            if (end < 0) {
+                if (segment >= writeSegment) {
+                    break;
+                }
+                segment++;
+                position = 0;
+                continue;
+            }
+            if (out != null) {
+                out.add(decode(buffer, position + RECORD_HEADER_SIZE));
+            }
+            position = end;
+            count++;
+        }
+        scannedSegment = segment;
+        scannedPosition = position;
+        scannedCount = count;
+        return count;
+    }
+
+    /**
+     * 校验 position 处的记录
+     * @return 记录的结束位置，没有有效记录时返回 -1
+     */
+    private static int recordEnd(ByteBuffer buffer, int position, int limit) {
+        if ((long) position + RECORD_HEADER_SIZE > limit) {
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        long end = (long) position + RECORD_HEADER_SIZE + length;
+        if (length <= 0 || end > limit) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(position + RECORD_HEADER_SIZE).limit((int) end);
+        crc.update(payload);
+        return (int) crc.getValue() == buffer.getInt(position + 4) ? (int) end : -1;
+    }
+
+    private static byte[] encode(BlockMutation mutation) {
+        BlockKey key = mutation.getKey();
+        byte[] name = mutation.isDelete() ? null : mutation.getBlockType().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer payload = ByteBuffer.allocate(1 + 16 + 12 + (name == null ? 0 : 2 + name.length));
+        UUID uid = UUID.fromString(key.getUid());
+        payload.put(name == null ? OP_DELETE : OP_UPLOAD)
+                .putLong(uid.getMostSignificantBits())
+                .putLong(uid.getLeastSignificantBits())
+                .putInt(key.getX())
+                .putInt(key.getY())
+                .putInt(key.getZ());
+        if (name != null) {
+            payload.putShort((short) name.length).put(name);
+        }
+        return payload.array();
+    }
+
+    private static BlockMutation decode(ByteBuffer buffer, int offset) {
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset);
+        byte op = record.get();
+        String uid = new UUID(record.getLong(), record.getLong()).toString();
+        int x = record.getInt();
+        int y = record.getInt();
+        int z = record.getInt();
+        if (op == OP_DELETE) {
+            return BlockMutation.delete(uid, x, y, z);
+        }
+        byte[] name = new byte[record.getShort() & 0xFFFF];
+        record.get(name);
+        return BlockMutation.upload(uid, x, y, z, new String(name, StandardCharsets.UTF_8));
+    }
+
+    private ByteBuffer segmentBuffer(long segment) throws IOException {
+        if (segment == writeSegment) {
+            return writeBuffer;
+        }
+        if (segment != readBufferSegment) {
+            File file = segmentFile(segment);
+            if (!file.isFile()) {
+                return null;
+            }
+            try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+                readBuffer = in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length());
+            }
+            readBufferSegment = segment;
+        }
+        return readBuffer;
+    }
+
+    private void openWriteSegment(long segment) throws IOException {
+        writeFile = new RandomAccessFile(segmentFile(segment), "rw");
+        if (writeFile.length() < MIN_SEGMENT_SIZE) {
+            writeFile.setLength(segmentSize);
+        }
+        writeBuffer = writeFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, writeFile.length());
+        writeSegment = segment;
+    }
+
+    /**
+     * 当前段已满，切换到下一个段
+     */
+    private void roll() throws IOException {
+        writeBuffer.force();
+        writeFile.close();
+        openWriteSegment(writeSegment + 1);
+        writePosition = 0;
+    }
+
+    private void deleteSegmentsBefore(long segment) {
+        for (long id : listSegments()) {
+            if (id >= segment) {
+                break;
+            }
+            if (id == readBufferSegment) {
+                readBuffer = null;
+                readBufferSegment = -1L;
+            }
+            // 仍被映射时 (如 Windows) 删除可能失败，下次提交时重试
+            segmentFile(id).delete();
+        }
+    }
+
+    private List<Long> listSegments() {
+        List<Long> segments = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return segments;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(SEGMENT_SUFFIX)) {
+                continue;
+            }
+            try {
+                segments.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+            } catch (NumberFormatException ignored) {
+                // 不是日志段
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%08d", segment) + SEGMENT_SUFFIX);
+    }
+}
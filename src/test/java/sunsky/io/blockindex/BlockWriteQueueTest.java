@@ -0,0 +1,173 @@
+package sunsky.io.blockindex;
+
+import org.bukkit.plugin.Plugin;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BlockWriteQueueTest {
+
+    private static final String UID = UUID.randomUUID().toString();
+
+    // 每次 applyBlockMutations 收到的变更与指纹
+    private final List<List<BlockMutation>> batches = new ArrayList<>();
+    private final List<Map<ChunkPos, Long>> fingerprintBatches = new ArrayList<>();
+    // 在 applyBlockMutations 中执行，可以模拟写入期间的入队与写入失败
+    private StorageHook hook;
+    private BlockWriteQueue queue;
+
+    private interface StorageHook {
+        void beforeApply(Collection<BlockMutation> mutations) throws SQLException;
+    }
+
+    @Before
+    public void setUp() {
+        BlockStorage storage = (BlockStorage) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{BlockStorage.class}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "isConnected":
+                    return true;
+                case "applyBlockMutations":
+                    @SuppressWarnings("unchecked")
+                    Collection<BlockMutation> mutations = (Collection<BlockMutation>) args[0];
+                    @SuppressWarnings("unchecked")
+                    Map<ChunkPos, Long> fingerprints = (Map<ChunkPos, Long>) args[1];
+                    if (hook != null) {
+                        StorageHook current = hook;
+                        hook = null;
+                        current.beforeApply(mutations);
+                    }
+                    batches.add(new ArrayList<>(mutations));
+                    fingerprintBatches.add(fingerprints);
+                    return null;
+                default:
+                    return defaultValue(method.getReturnType());
+            }
+        });
+        Plugin plugin = (Plugin) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{Plugin.class}, (proxy, method, args) -> {
+            if (method.getName().equals("getLogger")) {
+                return Logger.getLogger("BlockWriteQueueTest");
+            }
+            return defaultValue(method.getReturnType());
+        });
+        ChunkFingerprints fingerprints = new ChunkFingerprints(storage, 16);
+        BlockLookupCache lookupCache = new BlockLookupCache(storage, 16, 16, 1000L, 4);
+        queue = new BlockWriteQueue(plugin, storage, fingerprints, lookupCache, 1000);
+        lookupCache.setWriteQueue(queue);
+    }
+
+    @Test
+    public void placeThenBreakCollapsesToOneDelete() {
+        queue.enqueueUpload(UID, 1, 2, 3, "CHEST");
+        queue.enqueueDelete(UID, 1, 2, 3);
+
+        assertEquals(1, queue.getPendingCount());
+        assertTrue(queue.peek(new BlockKey(UID, 1, 2, 3)).isDelete());
+        queue.flush();
+
+        assertEquals(1, batches.size());
+        assertEquals(1, batches.get(0).size());
+        assertTrue(batches.get(0).get(0).isDelete());
+        assertEquals(0, queue.getPendingCount());
+        assertNull(queue.peek(new BlockKey(UID, 1, 2, 3)));
+    }
+
+    @Test
+    public void lastMutationPerCoordinateWinsAndOthersKeepOrder() {
+        queue.enqueueUpload(UID, 1, 0, 0, "CHEST");
+        queue.enqueueUpload(UID, 2, 0, 0, "BARREL");
+        queue.enqueueAll(Arrays.asList(BlockMutation.delete(UID, 3, 0, 0), BlockMutation.upload(UID, 1, 0, 0, "FURNACE")));
+        queue.flush();
+
+        List<BlockMutation> batch = batches.get(0);
+        assertEquals(3, batch.size());
+        assertEquals(new BlockKey(UID, 1, 0, 0), batch.get(0).getKey());
+        assertEquals("FURNACE", batch.get(0).getBlockType());
+        assertEquals("BARREL", batch.get(1).getBlockType());
+        assertTrue(batch.get(2).isDelete());
+    }
+
+    @Test
+    public void failedBatchIsRequeuedWithoutOverridingNewerMutations() {
+        queue.enqueueUpload(UID, 1, 0, 0, "CHEST");
+        queue.enqueueUpload(UID, 2, 0, 0, "CHEST");
+        hook = mutations -> {
+            // 写入期间同一坐标又有新的变更
+            queue.enqueueDelete(UID, 1, 0, 0);
+            throw new SQLException("connection reset");
+        };
+        queue.flush();
+
+        assertTrue(batches.isEmpty());
+        assertEquals(2, queue.getPendingCount());
+        assertTrue(queue.peek(new BlockKey(UID, 1, 0, 0)).isDelete());
+        queue.flush();
+
+        List<BlockMutation> batch = batches.get(0);
+        assertEquals(2, batch.size());
+        for (BlockMutation mutation : batch) {
+            assertEquals(mutation.getKey().getX() == 1, mutation.isDelete());
+        }
+    }
+
+    @Test
+    public void inflightMutationsStayVisibleToPeek() {
+        BlockKey key = new BlockKey(UID, 5, 6, 7);
+        queue.enqueueUpload(UID, 5, 6, 7, "CHEST");
+        BlockMutation[] seen = new BlockMutation[1];
+        hook = mutations -> seen[0] = queue.peek(key);
+        queue.flush();
+
+        assertEquals("CHEST", seen[0].getBlockType());
+        assertNull(queue.peek(key));
+    }
+
+    @Test
+    public void snapshotDiffSkipsCoordinatesChangedAfterTheSnapshot() throws SQLException {
+        ChunkPos chunk = new ChunkPos(UID, 0, 0);
+        long snapshot = queue.getSequence();
+        // 快照之后破坏的方块已经写入数据库
+        queue.enqueueDelete(UID, 1, 2, 3);
+        queue.flush();
+        batches.clear();
+
+        List<BlockMutation> applied = queue.applySnapshot(Arrays.asList(
+                BlockMutation.upload(UID, 1, 2, 3, "CHEST"), BlockMutation.upload(UID, 4, 2, 3, "CHEST")), chunk, 42L, snapshot);
+
+        assertEquals(1, applied.size());
+        assertEquals(new BlockKey(UID, 4, 2, 3), applied.get(0).getKey());
+        assertEquals(applied, batches.get(0));
+        // 区块在快照之后有变化，不记录指纹
+        assertTrue(fingerprintBatches.get(fingerprintBatches.size() - 1).isEmpty());
+
+        applied = queue.applySnapshot(Collections.singletonList(BlockMutation.upload(UID, 1, 2, 3, "CHEST")), chunk, 43L, queue.getSequence());
+        assertEquals(1, applied.size());
+        assertEquals(Collections.singletonMap(chunk, 43L), fingerprintBatches.get(fingerprintBatches.size() - 1));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,167 @@
+package sunsky.io.blockindex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RegionFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private RegionFile region;
+
+    @Before
+    public void setUp() throws IOException {
+        file = new File(folder.getRoot(), "r.0.0.bir");
+        region = RegionFile.open(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        region.close();
+    }
+
+    @Test
+    public void writtenChunksAreReadBackAfterReopen() throws IOException {
+        int index = RegionFile.localIndex(3, 5);
+        RegionFile.ChunkData chunk = new RegionFile.ChunkData();
+        chunk.set(48, -64, 80, 7);
+        chunk.set(63, 319, 95, 0);
+        chunk.set(50, 70, 81, 65534);
+        chunk.setFingerprint(-42L);
+        region.write(Collections.singletonMap(index, chunk));
+        reopen();
+
+        assertEquals(7, region.getMaterialId(index, 48, -64, 80));
+        assertEquals(0, region.getMaterialId(index, 63, 319, 95));
+        assertEquals(65534, region.getMaterialId(index, 50, 70, 81));
+        assertEquals(-1, region.getMaterialId(index, 49, -64, 80));
+        assertEquals(-1, region.getMaterialId(index, 48, 0, 80));
+        assertEquals(Long.valueOf(-42L), region.getFingerprint(index));
+        assertNull(region.getFingerprint(RegionFile.localIndex(0, 0)));
+        assertEquals(-1, region.getMaterialId(RegionFile.localIndex(0, 0), 0, 0, 0));
+    }
+
+    @Test
+    public void forEachVisitsOnlyBlocksInsideTheBox() throws IOException {
+        int index = RegionFile.localIndex(0, 0);
+        RegionFile.ChunkData chunk = new RegionFile.ChunkData();
+        for (int y = 0; y < 64; y += 8) {
+            chunk.set(1, y, 2, y);
+        }
+        region.write(Collections.singletonMap(index, chunk));
+
+        List<Integer> visited = new ArrayList<>();
+        assertTrue(region.forEach(index, 0, 0, new BlockBox(0, 10, 0, 15, 40, 15), (x, y, z, id) -> {
+            assertEquals(1, x);
+            assertEquals(2, z);
+            assertEquals(y, id);
+            visited.add(y);
+            return true;
+        }));
+        assertEquals(Arrays.asList(16, 24, 32, 40), visited);
+        assertFalse(region.forEach(index, 0, 0, new BlockBox(0, 0, 0, 15, 63, 15), (x, y, z, id) -> false));
+    }
+
+    @Test
+    public void rewrittenChunkReplacesThePreviousRecord() throws IOException {
+        int index = RegionFile.localIndex(31, 31);
+        RegionFile.ChunkData chunk = new RegionFile.ChunkData();
+        chunk.set(500, 10, 500, 1);
+        chunk.set(501, 10, 500, 2);
+        region.write(Collections.singletonMap(index, chunk));
+
+        RegionFile.ChunkData updated = region.read(index);
+        updated.remove(500, 10, 500);
+        updated.set(502, 10, 500, 3);
+        region.write(Collections.singletonMap(index, updated));
+        reopen();
+
+        assertEquals(-1, region.getMaterialId(index, 500, 10, 500));
+        assertEquals(2, region.getMaterialId(index, 501, 10, 500));
+        assertEquals(3, region.getMaterialId(index, 502, 10, 500));
+        assertEquals(0, region.getDiscardedRecords());
+    }
+
+    @Test
+    public void corruptedRecordIsDiscardedOnOpen() throws IOException {
+        int first = RegionFile.localIndex(0, 0);
+        int second = RegionFile.localIndex(1, 0);
+        Map<Integer, RegionFile.ChunkData> chunks = new HashMap<>();
+        chunks.put(first, chunkWith(0, 1));
+        chunks.put(second, chunkWith(16, 2));
+        region.write(chunks);
+        long dataEnd = region.getFileBytes();
+        region.close();
+        // 损坏最后一条记录 (second) 的类型编号
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long position = dataEnd - 5;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 0xFF);
+        }
+        region = RegionFile.open(file);
+
+        assertEquals(1, region.getDiscardedRecords());
+        assertEquals(1, region.getMaterialId(first, 0, 0, 0));
+        assertEquals(-1, region.getMaterialId(second, 16, 0, 0));
+    }
+
+    @Test
+    public void compactionKeepsLiveRecords() throws IOException {
+        int index = RegionFile.localIndex(7, 9);
+        int chunkX = 7 << 4;
+        int chunkZ = 9 << 4;
+        // 反复重写同一个区块，直到旧记录超过整理阈值
+        while (!region.needsCompaction()) {
+            RegionFile.ChunkData chunk = new RegionFile.ChunkData();
+            for (int y = 0; y < 256; y++) {
+                for (int x = 0; x < 16; x++) {
+                    chunk.set(chunkX + x, y, chunkZ, y);
+                }
+            }
+            chunk.setFingerprint(region.getFileBytes());
+            region.write(Collections.singletonMap(index, chunk));
+        }
+        Long fingerprint = region.getFingerprint(index);
+        long liveBytes = region.getLiveBytes();
+        region.compact();
+        reopen();
+
+        assertFalse(region.needsCompaction());
+        assertEquals(liveBytes, region.getLiveBytes());
+        assertEquals(fingerprint, region.getFingerprint(index));
+        assertEquals(255, region.getMaterialId(index, chunkX + 15, 255, chunkZ));
+    }
+
+    private void reopen() throws IOException {
+        region.close();
+        region = RegionFile.open(file);
+    }
+
+    private static RegionFile.ChunkData chunkWith(int x, int materialId) {
+        RegionFile.ChunkData chunk = new RegionFile.ChunkData();
+        chunk.set(x, 0, 0, materialId);
+        return chunk;
+    }
+}
@@ -0,0 +1,168 @@
+package sunsky.io.blockindex;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WriteJournalTest {
+
+    private static final String UID = UUID.randomUUID().toString();
+    // 删除记录：长度 + CRC32 + 操作、UID、坐标
+    private static final int DELETE_RECORD_SIZE = 8 + 1 + 16 + 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private WriteJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = new File(folder.getRoot(), "journal");
+        journal = new WriteJournal(directory, 0);
+        journal.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        journal.close();
+    }
+
+    @Test
+    public void appendedMutationsSurviveReopen() throws IOException {
+        journal.append(Arrays.asList(
+                BlockMutation.upload(UID, 1, 64, -3, "CHEST"),
+                BlockMutation.delete(UID, 1, 64, -3),
+                BlockMutation.upload(UID, -100, -64, 2000, "BARREL")));
+        reopen();
+
+        assertEquals(3, journal.size());
+        List<BlockMutation> read = journal.read(Integer.MAX_VALUE);
+        assertEquals(3, read.size());
+        assertMutation(read.get(0), 1, 64, -3, "CHEST");
+        assertMutation(read.get(1), 1, 64, -3, null);
+        assertMutation(read.get(2), -100, -64, 2000, "BARREL");
+    }
+
+    @Test
+    public void commitPersistsReplayProgress() throws IOException {
+        journal.append(deletes(0, 10));
+        assertEquals(4, journal.read(4).size());
+        journal.commit();
+        assertEquals(6, journal.size());
+        reopen();
+
+        assertEquals(6, journal.size());
+        List<BlockMutation> read = journal.read(Integer.MAX_VALUE);
+        assertEquals(6, read.size());
+        assertEquals(4, read.get(0).getKey().getX());
+    }
+
+    @Test
+    public void readWithoutCommitReplaysAgainAfterReopen() throws IOException {
+        journal.append(deletes(0, 5));
+        assertEquals(5, journal.read(Integer.MAX_VALUE).size());
+        reopen();
+
+        assertEquals(5, journal.size());
+        assertEquals(0, journal.read(1).get(0).getKey().getX());
+    }
+
+    @Test
+    public void tornRecordIsDiscardedOnOpen() throws IOException {
+        journal.append(deletes(0, 3));
+        journal.close();
+        // 模拟最后一条记录写到一半时崩溃
+        try (RandomAccessFile segment = new RandomAccessFile(onlySegment(), "rw")) {
+            long position = 3L * DELETE_RECORD_SIZE - 1;
+            segment.seek(position);
+            int value = segment.read();
+            segment.seek(position);
+            segment.write(value ^ 0xFF);
+        }
+        journal.open();
+
+        assertEquals(2, journal.size());
+        journal.append(deletes(100, 101));
+        reopen();
+        List<BlockMutation> read = journal.read(Integer.MAX_VALUE);
+        assertEquals(3, read.size());
+        assertEquals(1, read.get(1).getKey().getX());
+        assertEquals(100, read.get(2).getKey().getX());
+    }
+
+    @Test
+    public void replayedSegmentsAreDeleted() throws IOException {
+        // 超过一个最小段 (64 KiB) 的记录
+        int count = (1 << 16) / DELETE_RECORD_SIZE * 2;
+        journal.append(deletes(0, count));
+        assertTrue(segmentCount() > 1);
+        reopen();
+
+        assertEquals(count, journal.size());
+        assertEquals(count, journal.read(Integer.MAX_VALUE).size());
+        journal.commit();
+        assertTrue(journal.isEmpty());
+        assertEquals(1, segmentCount());
+        reopen();
+        assertTrue(journal.isEmpty());
+    }
+
+    @Test
+    public void quarantineWritesOneLinePerMutation() throws IOException {
+        assertFalse(journal.getQuarantineFile().exists());
+        journal.quarantine(Arrays.asList(BlockMutation.upload(UID, 1, 2, 3, "CHEST"), BlockMutation.delete(UID, 4, 5, 6)));
+
+        List<String> lines = Files.readAllLines(journal.getQuarantineFile().toPath());
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith(UID + " 1 2 3 CHEST"));
+        assertTrue(lines.get(1).endsWith(UID + " 4 5 6"));
+    }
+
+    private void reopen() throws IOException {
+        journal.close();
+        journal = new WriteJournal(directory, 0);
+        journal.open();
+    }
+
+    private File onlySegment() {
+        File[] segments = directory.listFiles((dir, name) -> name.endsWith(".journal"));
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    private int segmentCount() {
+        return directory.listFiles((dir, name) -> name.endsWith(".journal")).length;
+    }
+
+    private static List<BlockMutation> deletes(int fromX, int toX) {
+        List<BlockMutation> mutations = new ArrayList<>();
+        for (int x = fromX; x < toX; x++) {
+            mutations.add(BlockMutation.delete(UID, x, 0, 0));
+        }
+        return mutations;
+    }
+
+    private static void assertMutation(BlockMutation mutation, int x, int y, int z, String blockType) {
+        assertEquals(new BlockKey(UID, x, y, z), mutation.getKey());
+        assertEquals(blockType == null, mutation.isDelete());
+        if (blockType != null) {
+            assertEquals(blockType, mutation.getBlockType());
+        }
+    }
+}